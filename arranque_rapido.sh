@@ -0,0 +1,29 @@
+#!/bin/bash
+# Arranque rapido de AlquilerCoches para procesos cortos (cron, lotes).
+#
+#   ./arranque_rapido.sh entrenar   ejecucion de entrenamiento: al terminar
+#                                   guarda en alquiler.jsa las clases cargadas
+#                                   (UCP, driver de Oracle, SLF4J/log4j...)
+#   ./arranque_rapido.sh            arranca con ese archivo (si existe)
+#
+# El archivo (AppCDS) necesita un JDK 13 o posterior y hay que regenerarlo al
+# cambiar de JDK o de librerias. Los tiempos de cada fase salen en el log.
+#
+# ALQUILER_CP: classpath con bin y las librerias de la user_library de Eclipse
+# (ojdbc, ucp, slf4j, log4j, fscontext).
+CP=${ALQUILER_CP:-"bin:lib/*"}
+ARCHIVO=${ALQUILER_JSA:-alquiler.jsa}
+
+# Sin JNDI, pool sin conexiones de antemano y solo el compilador C1: en un
+# proceso de segundos no compensa optimizar mas
+OPCIONES="-Darranque.rapido=true -XX:TieredStopAtLevel=1 -XX:+UseSerialGC"
+
+if [ "$1" = "entrenar" ]; then
+	shift
+	exec java -XX:ArchiveClassesAtExit="$ARCHIVO" $OPCIONES -cp "$CP" lsi.ubu.AlquilerCoches "$@"
+fi
+
+if [ -f "$ARCHIVO" ]; then
+	OPCIONES="-XX:SharedArchiveFile=$ARCHIVO $OPCIONES"
+fi
+exec java $OPCIONES -cp "$CP" lsi.ubu.AlquilerCoches "$@"
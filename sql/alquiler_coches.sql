@@ -9,6 +9,13 @@ drop table clientes cascade constraints;
 drop table facturas cascade constraints;
 drop table lineas_factura cascade constraints;
 drop table reservas cascade constraints;
+drop table reservas_hist cascade constraints;
+drop table anulaciones_lote;
+drop table flota_lote;
+drop table clientes_totales cascade constraints;
+drop table claves_idempotencia;
+drop table facturas_pendientes;
+drop table facturas_reservas;
 
 create table clientes(
 	NIF	varchar(9) primary key,
@@ -48,6 +55,27 @@ create table reservas(
 	fecha_fin	date,
 	check (fecha_fin >= fecha_ini)
 );
+-- Listado paginado de las reservas de un cliente (ver ServicioImpl.listarReservas)
+create index reservas_cliente_fecha on reservas(cliente, fecha_ini, idReserva);
+
+-- Reservas terminadas que ya no participan en las comprobaciones de
+-- solapamiento (ver lsi.ubu.servicios.ArchivoReservas)
+create table reservas_hist(
+	idReserva	integer primary key,
+	cliente  	varchar(9) references clientes,
+	matricula	varchar(8) references vehiculos,
+	fecha_ini	date not null,
+	fecha_fin	date
+);
+create index reservas_hist_matricula on reservas_hist(matricula, fecha_ini);
+-- Listado paginado, que tambien recorre las reservas archivadas
+create index reservas_hist_cliente_fecha on reservas_hist(cliente, fecha_ini, idReserva);
+
+-- Todas las reservas, activas y archivadas, para informes
+create or replace view reservas_todas as
+	select idReserva, cliente, matricula, fecha_ini, fecha_fin from reservas
+	union all
+	select idReserva, cliente, matricula, fecha_ini, fecha_fin from reservas_hist;
 
 create sequence seq_num_fact;
 create table facturas(
@@ -55,6 +83,16 @@ create table facturas(
 	importe		numeric( 8, 2),
 	cliente		varchar(9) not null references clientes
 );
+-- Listado paginado de las facturas de un cliente
+create index facturas_cliente on facturas(cliente, nroFactura);
+
+-- Factura de cada reserva; una factura de flota tiene varias. Sin referencia
+-- a reservas porque la reserva puede pasar a reservas_hist
+create table facturas_reservas(
+	idReserva	integer primary key,
+	nroFactura	integer not null references facturas
+);
+create index facturas_reservas_factura on facturas_reservas(nroFactura);
 
 create table lineas_factura(
 	nroFactura	integer references facturas,
@@ -62,6 +100,46 @@ create table lineas_factura(
 	importe		numeric( 7, 2),
 	primary key ( nroFactura, concepto)
 );
+
+-- Importe facturado y reservas por cliente, repartidos en varias ranuras
+-- para que las actualizaciones concurrentes no choquen (ver TotalesClientes)
+create table clientes_totales(
+	nif		varchar(9) references clientes,
+	ranura		integer,
+	importe		numeric( 12, 2) not null,
+	reservas	integer not null,
+	primary key ( nif, ranura)
+);
+
+-- Claves de idempotencia de los alquileres ya confirmados, con la huella de
+-- los datos de la peticion que las uso
+create table claves_idempotencia(
+	clave		varchar(64) primary key,
+	huella		char(64) not null,
+	idReserva	integer,
+	nroFactura	integer,
+	fecha		date default sysdate not null
+);
+
+-- Reservas con la factura por generar (facturacion diferida, ver GeneradorFacturas)
+create table facturas_pendientes(
+	idReserva	integer primary key references reservas,
+	fecha		date default sysdate not null
+);
+
+-- Reservas a anular en una anulacion por lotes (se vacia al confirmar)
+create global temporary table anulaciones_lote(
+	idReserva	integer primary key,
+	cliente		varchar(9),
+	importe		numeric( 8, 2),
+	nroFactura	integer
+) on commit delete rows;
+
+-- Vehiculos de un alquiler de flota (se vacia al confirmar, ver ServicioImpl.alquilarFlota)
+create global temporary table flota_lote(
+	matricula	varchar(8) primary key,
+	idReserva	integer
+) on commit delete rows;
 	
 
 create or replace procedure reset_seq( p_seq_name varchar )
@@ -94,9 +172,14 @@ begin
   	reset_seq( 'seq_reservas' );
         
   
+    delete from clientes_totales;
+    delete from claves_idempotencia;
+    delete from facturas_pendientes;
+    delete from facturas_reservas;
     delete from lineas_factura;
     delete from facturas;
     delete from reservas;
+    delete from reservas_hist;
     delete from vehiculos;
     delete from modelos;
     delete from precio_combustible;
@@ -120,6 +203,37 @@ begin
 end;
 /
 
+-- Hace que seq_reservas y seq_num_fact de este fragmento den numeros
+-- congruentes con p_fragmento modulo p_maximo y mayores que los ya usados
+-- (ver lsi.ubu.util.EnrutadorFragmentos). Llamar despues de inicializa_test.
+create or replace procedure configura_fragmento( p_fragmento integer, p_maximo integer ) is
+    l_max integer;
+
+    procedure ajusta( p_seq_name varchar, p_usado integer ) is
+        l_val number;
+        l_obj number;
+    begin
+        execute immediate
+        'select ' || p_seq_name || '.nextval from dual' INTO l_val;
+
+        -- Primer valor libre del fragmento; se salta hasta el y desde ahi
+        -- se avanza de p_maximo en p_maximo
+        l_obj := (trunc(greatest(l_val, p_usado) / p_maximo) + 1) * p_maximo + p_fragmento;
+        execute immediate
+        'alter sequence ' || p_seq_name || ' increment by ' || (l_obj - l_val) || ' minvalue 0';
+        execute immediate
+        'select ' || p_seq_name || '.nextval from dual' INTO l_val;
+        execute immediate
+        'alter sequence ' || p_seq_name || ' increment by ' || p_maximo || ' minvalue 0';
+    end;
+begin
+    select nvl(max(idReserva), 0) into l_max from reservas_todas;
+    ajusta( 'seq_reservas', l_max );
+    select nvl(max(nroFactura), 0) into l_max from facturas;
+    ajusta( 'seq_num_fact', l_max );
+end;
+/
+
 --set serveroutput on
 exec inicializa_test;
 
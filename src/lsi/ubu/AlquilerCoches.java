@@ -1,12 +1,21 @@
 ﻿package lsi.ubu;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.tests.Tests;
+import lsi.ubu.util.ControladorTamanoPool;
 import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.ServidorMetricas;
+import lsi.ubu.util.TiemposArranque;
 //prueba Álvaro
 /**
  * AlquierCoches: Implementa la facturacion de un coche de alquiler segun el PDF de la carpeta enunciado
@@ -20,19 +29,107 @@ import lsi.ubu.util.ExecuteScript;
  */
 public class AlquilerCoches {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(AlquilerCoches.class);
+	/**
+	 * Logger. Se crea al usarlo por primera vez, para que el arranque mida por
+	 * separado lo que cuesta iniciar el registro.
+	 */
+	private static class Log {
+		private static final Logger LOGGER = LoggerFactory.getLogger(AlquilerCoches.class);
+	}
 
+	/**
+	 * Principal. Con -Darranque.rapido=true (ver arranque_rapido.sh) el pool se
+	 * crea sin JNDI y sin conexiones de antemano, el script SQL solo se lanza si
+	 * el esquema no existe todavia y no se arranca el ajuste del tamano del
+	 * pool, que en un proceso corto no llega a actuar.
+	 * 
+	 * @param args no se usan
+	 * @throws SQLException si hay un error con la base de datos
+	 */
 	public static void main(String[] args) throws SQLException {
+		TiemposArranque tiempos = new TiemposArranque();
+		boolean rapido = Boolean.getBoolean("arranque.rapido");
 
-		LOGGER.info("Comienzo de los tests");
+		Log.LOGGER.info("Comienzo de los tests");
+		tiempos.fase("registro (log)");
 
 		// Crear las tablas y filas en base de datos para la prueba
-		ExecuteScript.run("sql/alquiler_coches.sql");
+		ControladorTamanoPool controlPool = null;
+		if (rapido) {
+			PoolDeConexiones.iniciarSinJndi();
+			boolean creado = esquemaCreado();
+			tiempos.fase("pool y primera conexion");
+			if (!creado) {
+				ExecuteScript.run("sql/alquiler_coches.sql");
+				tiempos.fase("script sql");
+			}
+		} else {
+			ExecuteScript.run("sql/alquiler_coches.sql");
+			tiempos.fase("script sql");
+
+			// Ajuste del tamano del pool segun la carga
+			controlPool = new ControladorTamanoPool(PoolDeConexiones.getInstance(), 3, 20);
+			controlPool.iniciar(10, TimeUnit.SECONDS);
+			tiempos.fase("pool");
+		}
+
+		// Metricas en /metrics si se indica un puerto (-Dmetricas.puerto=9464)
+		ServidorMetricas servidorMetricas = null;
+		Integer puertoMetricas = Integer.getInteger("metricas.puerto");
+		if (puertoMetricas != null) {
+			servidorMetricas = new ServidorMetricas();
+			try {
+				servidorMetricas.iniciar(puertoMetricas);
+			} catch (IOException e) {
+				Log.LOGGER.warn("No se pudo publicar las metricas en el puerto {}: {}", puertoMetricas, e.getMessage());
+			}
+			tiempos.fase("servidor de metricas");
+		}
 
 		// Ejecutar los tests
 		Tests tests = new Tests();
 		tests.ejecutarTests();
+		tiempos.fase("tests");
+
+		if (controlPool != null) {
+			controlPool.detener();
+		}
+		if (servidorMetricas != null) {
+			servidorMetricas.detener();
+		}
+
+		tiempos.volcar(Log.LOGGER);
+		Log.LOGGER.info("Fin de los tests");
+	}
 
-		LOGGER.info("Fin de los tests");
+	/**
+	 * Comprueba si el script SQL ya se ejecuto en este esquema.
+	 * 
+	 * @return true si existe el procedimiento inicializa_test y es valido
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	private static boolean esquemaCreado() throws SQLException {
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			st = con.prepareStatement("SELECT COUNT(*) FROM user_objects WHERE object_name = 'INICIALIZA_TEST' AND status = 'VALID'");
+			rs = st.executeQuery();
+			rs.next();
+			boolean creado = rs.getInt(1) > 0;
+			con.commit();
+			return creado;
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
 	}
 }
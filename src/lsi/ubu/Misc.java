@@ -8,6 +8,7 @@ public class Misc {
 	public static final int MANY_DAYS = 100;//1000;Para hacer pruebas ponemos nºs pequeños
 	public static final int MAX_BEGIN = 50; //100;
 	public static final int DEFAULT_INVOICE_DAYS = 4;
+	public static final int OPEN_END_DAYS = 1000; // Dias que bloquea el vehiculo una reserva sin fecha de fin
 	
 	public static Date truncDate( Date d ) {
 		
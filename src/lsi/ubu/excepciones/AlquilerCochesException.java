@@ -5,6 +5,8 @@ import java.sql.SQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import lsi.ubu.util.Metricas;
+
 /**
  * AlquierCochesException: Implementa las excepciones contextualizadas de la
  * transaccion de alquiler de coches
@@ -25,6 +27,13 @@ public class AlquilerCochesException extends SQLException {
 	public static final int VEHICULO_NO_EXIST = 2;
 	public static final int SIN_DIAS = 3;
 	public static final int VEHICULO_OCUPADO = 4;
+	public static final int RESERVA_NO_EXIST = 5;
+	public static final int SOBRECARGA = 6;
+	public static final int CURSOR_INVALIDO = 7;
+	public static final int PLAZO_AGOTADO = 8;
+	public static final int BD_NO_DISPONIBLE = 9;
+	public static final int CLAVE_REUTILIZADA = 10;
+	public static final int RESERVA_EN_FLOTA = 11;
 
 	private int codigo; // = -1;
 	private String mensaje;
@@ -48,6 +57,27 @@ this.codigo = code;
 		case VEHICULO_OCUPADO:
 			mensaje="El vehiculo no esta disponible";
 			break;
+		case RESERVA_NO_EXIST:
+			mensaje="Reserva inexistente";
+			break;
+		case SOBRECARGA:
+			mensaje="Servicio sobrecargado, reintente mas tarde";
+			break;
+		case CURSOR_INVALIDO:
+			mensaje="Cursor de paginacion invalido";
+			break;
+		case PLAZO_AGOTADO:
+			mensaje="Plazo de la operacion agotado";
+			break;
+		case BD_NO_DISPONIBLE:
+			mensaje="Base de datos no disponible, reintente mas tarde";
+			break;
+		case CLAVE_REUTILIZADA:
+			mensaje="Clave de idempotencia ya usada con otros datos";
+			break;
+		case RESERVA_EN_FLOTA:
+			mensaje="La reserva es parte de un alquiler de flota";
+			break;
 			
 		//Mensaje por defecto para un error no conocido
 		default:
@@ -56,10 +86,14 @@ this.codigo = code;
 		}
 
 		LOGGER.debug(mensaje);
+		Metricas.getInstance().registrarExcepcion(code);
 
-		// Traza_de_pila
-		for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-			LOGGER.debug(ste.toString());
+		// Traza_de_pila (solo si se va a escribir: con SOBRECARGA se lanzan
+		// muchas y deben salir baratas)
+		if (LOGGER.isDebugEnabled()) {
+			for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
+				LOGGER.debug(ste.toString());
+			}
 		}
 	}
 
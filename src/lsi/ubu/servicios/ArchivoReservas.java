@@ -0,0 +1,144 @@
+package lsi.ubu.servicios;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Archivado de reservas terminadas. Mueve a RESERVAS_HIST las reservas cuya
+ * fecha de fin efectiva es anterior a una fecha de corte, para que RESERVAS,
+ * que es la que consultan las comprobaciones de solapamiento, no crezca sin
+ * limite. Las reservas con la factura aun pendiente se dejan para una pasada
+ * posterior. La fecha de corte no puede ser futura: una reserva en curso que
+ * pasase al historico dejaria de verse al comprobar solapamientos. Por lo
+ * mismo, una reserva sin fecha de fin termina cuando dejan de bloquearla esas
+ * comprobaciones ({@link Misc#OPEN_END_DAYS} dias), no a los dias que se
+ * facturan.
+ *
+ * Se trabaja por trozos acotados que se confirman uno a uno: si el proceso se
+ * interrumpe basta con volver a lanzarlo y continua donde lo dejo. Para
+ * informes que necesiten todo el historico esta la vista RESERVAS_TODAS.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ArchivoReservas {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArchivoReservas.class);
+
+	private static final int TAMANO_TROZO = 5000;
+
+	/**
+	 * Mueve un trozo de reservas al historico en un solo viaje a la BD. El trozo
+	 * se lee de un cursor con LIMIT y no con ROWNUM, que se aplica antes de
+	 * saltar las filas bloqueadas y devolveria trozos incompletos. El corte se
+	 * limita tambien con el reloj de la BD.
+	 */
+	private static final String SQL_ARCHIVAR_TROZO =
+		"DECLARE " +
+		"  TYPE t_ids IS TABLE OF reservas.idReserva%TYPE; " +
+		"  v_ids t_ids; " +
+		"  v_dias NUMBER := ?; " +
+		"  v_corte DATE := LEAST(TRUNC(?), TRUNC(SYSDATE)); " +
+		"  v_limite NUMBER := ?; " +
+		"  CURSOR c_terminadas IS " +
+		"    SELECT idReserva FROM reservas " +
+		"     WHERE NVL(fecha_fin, fecha_ini + v_dias) < v_corte " +
+		"       AND idReserva NOT IN (SELECT idReserva FROM facturas_pendientes) " +
+		"     FOR UPDATE SKIP LOCKED; " +
+		"BEGIN " +
+		"  OPEN c_terminadas; " +
+		"  FETCH c_terminadas BULK COLLECT INTO v_ids LIMIT v_limite; " +
+		"  CLOSE c_terminadas; " +
+		"  FORALL i IN 1 .. v_ids.COUNT " +
+		"    INSERT INTO reservas_hist (idReserva, cliente, matricula, fecha_ini, fecha_fin) " +
+		"    SELECT idReserva, cliente, matricula, fecha_ini, fecha_fin FROM reservas WHERE idReserva = v_ids(i); " +
+		"  FORALL i IN 1 .. v_ids.COUNT " +
+		"    DELETE FROM reservas WHERE idReserva = v_ids(i); " +
+		"  ? := v_ids.COUNT; " +
+		"END;";
+
+	/**
+	 * Principal.
+	 * 
+	 * @param args el primer argumento, opcional, son los dias de antiguedad
+	 *             (por defecto 365)
+	 */
+	public static void main(String[] args) {
+		int dias = args.length > 0 ? Integer.parseInt(args[0]) : 365;
+		try {
+			new ArchivoReservas().archivar(Misc.addDays(Misc.getCurrentDate(), -dias), TAMANO_TROZO);
+		} catch (SQLException e) {
+			LOGGER.error("Error archivando reservas: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Archiva las reservas terminadas antes de la fecha de corte.
+	 * 
+	 * @param corte        fecha de corte, como mucho la de hoy
+	 * @param tamanoTrozo  reservas movidas por transaccion
+	 * @return numero total de reservas archivadas
+	 * @throws SQLException si hay un error con la base de datos; lo ya
+	 *                      confirmado queda archivado
+	 * @throws IllegalArgumentException si la fecha de corte es futura
+	 */
+	public long archivar(Date corte, int tamanoTrozo) throws SQLException {
+		if (Misc.truncDate(corte).after(Misc.getCurrentDate())) {
+			throw new IllegalArgumentException("La fecha de corte no puede ser futura: " + corte);
+		}
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CallableStatement cst = null;
+		long total = 0;
+
+		try {
+			con = pool.getConnection();
+			cst = con.prepareCall(SQL_ARCHIVAR_TROZO);
+
+			int movidas;
+			do {
+				cst.setInt(1, Misc.OPEN_END_DAYS);
+				cst.setDate(2, new java.sql.Date(corte.getTime()));
+				cst.setInt(3, tamanoTrozo);
+				cst.registerOutParameter(4, Types.INTEGER);
+				cst.execute();
+				movidas = cst.getInt(4);
+				con.commit();
+
+				total += movidas;
+				LOGGER.debug("Trozo archivado: {} reservas ({} en total)", movidas, total);
+			} while (movidas == tamanoTrozo);
+
+			LOGGER.info("Archivadas {} reservas terminadas antes de {}", total, corte);
+			return total;
+
+		} catch (SQLException e) {
+			LOGGER.error("SQLException archivando reservas tras {} movidas: {}", total, e.getMessage());
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en archivar.", exRollback);
+				}
+			}
+			throw e;
+		} finally {
+			try { if (cst != null) cst.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando CallableStatement en archivar", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en archivar", e); }
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package lsi.ubu.servicios;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * Claves de idempotencia de los alquileres. Una peticion repetida con la misma
+ * clave devuelve la reserva y la factura de la primera sin volver a ejecutar
+ * la transaccion.
+ *
+ * La clave se inserta en CLAVES_IDEMPOTENCIA como primera sentencia de la
+ * transaccion del alquiler: si otra transaccion con la misma clave esta en
+ * curso, la insercion espera a que termine y entonces falla por clave
+ * duplicada (si confirmo) o sigue adelante (si se deshizo). Los alquileres que
+ * fallan no dejan clave, asi que su reintento se ejecuta de nuevo. Delante de
+ * la tabla hay una cache acotada en memoria con los resultados ya confirmados.
+ *
+ * Con la clave se guarda la huella (SHA-256) de los datos de la peticion. Una
+ * clave repetida con otros datos es un error del cliente, no un reintento, y
+ * se rechaza con {@link AlquilerCochesException#CLAVE_REUTILIZADA} en lugar
+ * de devolver el resultado de otra peticion.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ClavesIdempotencia {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClavesIdempotencia.class);
+
+	private static final int TAMANO_CACHE = 10000;
+
+	/** Resultado confirmado y huella de la peticion que lo produjo. */
+	private static final class Recordado {
+		private final String huella;
+		private final ResultadoAlquiler resultado;
+
+		Recordado(String huella, ResultadoAlquiler resultado) {
+			this.huella = huella;
+			this.resultado = resultado;
+		}
+	}
+
+	/** Resultados confirmados mas recientes, en orden de acceso (LRU). */
+	private static final Map<String, Recordado> CACHE = new LinkedHashMap<String, Recordado>(TAMANO_CACHE, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Recordado> eldest) {
+			return size() > TAMANO_CACHE;
+		}
+	};
+
+	private ClavesIdempotencia() {
+	}
+
+	/**
+	 * Huella de los datos de una peticion de alquiler.
+	 *
+	 * @param nifCliente cliente
+	 * @param matricula  vehiculo
+	 * @param fechaIni   fecha de inicio (puede ser null)
+	 * @param fechaFin   fecha de fin (puede ser null)
+	 * @return SHA-256 en hexadecimal (64 caracteres)
+	 */
+	static String huella(String nifCliente, String matricula, Date fechaIni, Date fechaFin) {
+		String datos = nifCliente + '|' + matricula + '|' + (fechaIni == null ? "-" : Long.toString(fechaIni.getTime()))
+				+ '|' + (fechaFin == null ? "-" : Long.toString(fechaFin.getTime()));
+		try {
+			byte[] resumen = MessageDigest.getInstance("SHA-256").digest(datos.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(resumen.length * 2);
+			for (byte b : resumen) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 no disponible", e);
+		}
+	}
+
+	/**
+	 * Busca una clave en la cache.
+	 *
+	 * @param clave  clave de idempotencia
+	 * @param huella huella de los datos de la peticion
+	 * @return resultado guardado, o null si no esta
+	 * @throws AlquilerCochesException con codigo CLAVE_REUTILIZADA si la clave
+	 *                                 se uso con otros datos
+	 */
+	static ResultadoAlquiler enCache(String clave, String huella) throws AlquilerCochesException {
+		Recordado recordado;
+		synchronized (CACHE) {
+			recordado = CACHE.get(clave);
+		}
+		if (recordado == null) {
+			return null;
+		}
+		comprobarHuella(clave, huella, recordado.huella);
+		return recordado.resultado;
+	}
+
+	/**
+	 * Guarda en la cache el resultado de una transaccion ya confirmada.
+	 *
+	 * @param clave     clave de idempotencia
+	 * @param huella    huella de los datos de la peticion
+	 * @param resultado reserva y factura creadas
+	 */
+	static void recordar(String clave, String huella, ResultadoAlquiler resultado) {
+		synchronized (CACHE) {
+			CACHE.put(clave, new Recordado(huella, resultado));
+		}
+	}
+
+	private static void comprobarHuella(String clave, String huella, String guardada)
+			throws AlquilerCochesException {
+		if (!huella.equals(guardada)) {
+			LOGGER.warn("Clave de idempotencia {} reutilizada con otros datos", clave);
+			throw new AlquilerCochesException(AlquilerCochesException.CLAVE_REUTILIZADA);
+		}
+	}
+
+	/**
+	 * Reserva la clave para la transaccion en curso. Si ya estaba usada deshace
+	 * la transaccion y devuelve el resultado original.
+	 *
+	 * @param con    conexion de la transaccion
+	 * @param clave  clave de idempotencia
+	 * @param huella huella de los datos de la peticion
+	 * @return null si la clave es nueva, o el resultado de la peticion original
+	 * @throws SQLException si hay un error con la base de datos; con codigo
+	 *                      CLAVE_REUTILIZADA si la clave se uso con otros datos
+	 */
+	static ResultadoAlquiler reservar(Connection con, String clave, String huella) throws SQLException {
+		PreparedStatement st = con.prepareStatement("INSERT INTO claves_idempotencia (clave, huella) VALUES (?, ?)");
+		try {
+			st.setString(1, clave);
+			st.setString(2, huella);
+			st.executeUpdate();
+			return null;
+		} catch (SQLException e) {
+			if (!new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.PK_VIOLATED)) {
+				throw e;
+			}
+		} finally {
+			st.close();
+		}
+
+		con.rollback();
+		st = con.prepareStatement("SELECT idReserva, nroFactura, huella FROM claves_idempotencia WHERE clave = ?");
+		try {
+			st.setString(1, clave);
+			ResultSet rs = st.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("Clave de idempotencia " + clave + " sin resultado");
+			}
+			ResultadoAlquiler resultado = new ResultadoAlquiler(rs.getInt(1), rs.getInt(2));
+			String guardada = rs.getString(3);
+			rs.close();
+			comprobarHuella(clave, huella, guardada);
+			recordar(clave, huella, resultado);
+			LOGGER.info("Alquiler repetido con clave {}: se devuelve {}", clave, resultado);
+			return resultado;
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * Anota el resultado de la transaccion en la fila de su clave, sin confirmar.
+	 *
+	 * @param con       conexion de la transaccion
+	 * @param clave     clave de idempotencia
+	 * @param resultado reserva y factura creadas
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	static void completar(Connection con, String clave, ResultadoAlquiler resultado) throws SQLException {
+		PreparedStatement st = con.prepareStatement("UPDATE claves_idempotencia SET idReserva = ?, nroFactura = ? WHERE clave = ?");
+		try {
+			st.setInt(1, resultado.getIdReserva());
+			st.setInt(2, resultado.getNroFactura());
+			st.setString(3, clave);
+			st.executeUpdate();
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * Borra las claves anteriores a una fecha; pasado ese tiempo ya no se
+	 * esperan reintentos.
+	 *
+	 * @param antesDe fecha limite
+	 * @return numero de claves borradas
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public static int purgar(Date antesDe) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+
+		try {
+			con = pool.getConnection();
+			st = con.prepareStatement("DELETE FROM claves_idempotencia WHERE fecha < ?");
+			st.setDate(1, new java.sql.Date(antesDe.getTime()));
+			int borradas = st.executeUpdate();
+			con.commit();
+			LOGGER.info("Purgadas {} claves de idempotencia anteriores a {}", borradas, antesDe);
+			return borradas;
+		} finally {
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en purgar", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en purgar", e); }
+		}
+	}
+}
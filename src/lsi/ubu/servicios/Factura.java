@@ -0,0 +1,33 @@
+package lsi.ubu.servicios;
+
+import java.math.BigDecimal;
+
+/**
+ * Factura tal como se devuelve en los listados.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class Factura {
+
+	private final int nroFactura;
+	private final BigDecimal importe;
+
+	public Factura(int nroFactura, BigDecimal importe) {
+		this.nroFactura = nroFactura;
+		this.importe = importe;
+	}
+
+	public int getNroFactura() {
+		return nroFactura;
+	}
+
+	public BigDecimal getImporte() {
+		return importe;
+	}
+
+	@Override
+	public String toString() {
+		return "factura " + nroFactura + " de " + importe;
+	}
+}
@@ -0,0 +1,226 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.FiltroBloom;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Filtros de Bloom sobre CLIENTES.NIF y VEHICULOS.MATRICULA. Permiten a
+ * {@link ServicioImpl} rechazar clientes y vehiculos inexistentes sin pedir
+ * conexion al pool; si el filtro dice que la clave puede existir se hace la
+ * comprobacion normal contra la base de datos.
+ *
+ * Los filtros se cargan al construir el objeto y se reconstruyen cada cierto
+ * tiempo (para quitar lo borrado y redimensionarlos). Quien inserte clientes o
+ * vehiculos mientras tanto debe anadirlos con {@link #anadirCliente(String)} y
+ * {@link #anadirVehiculo(String)}; si no, hasta la siguiente reconstruccion se
+ * rechazarian como inexistentes. Lo que se anade durante una reconstruccion
+ * se apunta aparte y se vuelve a anadir al filtro nuevo antes de publicarlo,
+ * porque la carga puede haber leido las tablas antes de la insercion.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class FiltrosExistencia {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(FiltrosExistencia.class);
+
+	/** Margen sobre el numero actual de filas para admitir inserciones. */
+	private static final double HOLGURA = 1.5;
+
+	private final double tasaFalsosPositivos;
+	private final long maxBytes;
+
+	private volatile FiltroBloom clientes;
+	private volatile FiltroBloom vehiculos;
+
+	/** Protege las altas frente a la publicacion de filtros nuevos. */
+	private final Object cerrojo = new Object();
+	/** Altas durante la reconstruccion en curso; null si no hay ninguna. */
+	private List<String> altasClientes;
+	private List<String> altasVehiculos;
+
+	private ScheduledExecutorService planificador;
+
+	/**
+	 * Crea y carga los filtros.
+	 *
+	 * @param tasaFalsosPositivos tasa de falsos positivos de cada filtro
+	 * @param maxBytes            memoria maxima de cada filtro
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public FiltrosExistencia(double tasaFalsosPositivos, long maxBytes) throws SQLException {
+		this.tasaFalsosPositivos = tasaFalsosPositivos;
+		this.maxBytes = maxBytes;
+		reconstruir();
+	}
+
+	/**
+	 * Vuelve a cargar los dos filtros desde la base de datos y los sustituye.
+	 *
+	 * @throws SQLException si hay un error con la base de datos; se mantienen
+	 *                      los filtros anteriores
+	 */
+	public synchronized void reconstruir() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+
+		synchronized (cerrojo) {
+			altasClientes = new ArrayList<String>();
+			altasVehiculos = new ArrayList<String>();
+		}
+		try {
+			con = pool.getConnection();
+			FiltroBloom nuevosClientes = cargar(con, "SELECT COUNT(*) FROM clientes", "SELECT nif FROM clientes");
+			FiltroBloom nuevosVehiculos = cargar(con, "SELECT COUNT(*) FROM vehiculos", "SELECT matricula FROM vehiculos");
+			con.commit();
+			synchronized (cerrojo) {
+				for (String nif : altasClientes) {
+					nuevosClientes.anadir(nif);
+				}
+				for (String matricula : altasVehiculos) {
+					nuevosVehiculos.anadir(matricula);
+				}
+				clientes = nuevosClientes;
+				vehiculos = nuevosVehiculos;
+			}
+			LOGGER.info("Filtros de existencia reconstruidos: clientes {} bits/{} hashes, vehiculos {} bits/{} hashes",
+					nuevosClientes.getNumBits(), nuevosClientes.getNumHashes(), nuevosVehiculos.getNumBits(), nuevosVehiculos.getNumHashes());
+		} finally {
+			synchronized (cerrojo) {
+				altasClientes = null;
+				altasVehiculos = null;
+			}
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en reconstruir", e); }
+		}
+	}
+
+	private FiltroBloom cargar(Connection con, String sqlContar, String sqlClaves) throws SQLException {
+		PreparedStatement st = con.prepareStatement(sqlContar);
+		long filas;
+		try {
+			ResultSet rs = st.executeQuery();
+			rs.next();
+			filas = rs.getLong(1);
+			rs.close();
+		} finally {
+			st.close();
+		}
+
+		FiltroBloom filtro = new FiltroBloom((long) (filas * HOLGURA), tasaFalsosPositivos, maxBytes);
+		st = con.prepareStatement(sqlClaves);
+		try {
+			st.setFetchSize(1000);
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				filtro.anadir(rs.getString(1));
+			}
+			rs.close();
+		} finally {
+			st.close();
+		}
+		return filtro;
+	}
+
+	/**
+	 * Reconstruye los filtros periodicamente en un hilo de fondo.
+	 *
+	 * @param periodo periodo entre reconstrucciones
+	 * @param unidad  unidad del periodo
+	 */
+	public synchronized void iniciar(long periodo, TimeUnit unidad) {
+		if (planificador != null) {
+			return;
+		}
+		planificador = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "filtros-existencia");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		planificador.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconstruir();
+				} catch (SQLException e) {
+					LOGGER.warn("No se pudieron reconstruir los filtros de existencia: {}", e.getMessage());
+				}
+			}
+		}, periodo, periodo, unidad);
+	}
+
+	/**
+	 * Para la reconstruccion periodica.
+	 */
+	public synchronized void detener() {
+		if (planificador != null) {
+			planificador.shutdownNow();
+			planificador = null;
+		}
+	}
+
+	/**
+	 * @param nif cliente
+	 * @return false si seguro que el cliente no existe
+	 */
+	public boolean puedeExistirCliente(String nif) {
+		return nif != null && clientes.puedeContener(nif);
+	}
+
+	/**
+	 * @param matricula vehiculo
+	 * @return false si seguro que el vehiculo no existe
+	 */
+	public boolean puedeExistirVehiculo(String matricula) {
+		return matricula != null && vehiculos.puedeContener(matricula);
+	}
+
+	/**
+	 * Anota un cliente recien insertado.
+	 *
+	 * @param nif cliente
+	 */
+	public void anadirCliente(String nif) {
+		synchronized (cerrojo) {
+			clientes.anadir(nif);
+			if (altasClientes != null) {
+				altasClientes.add(nif);
+			}
+		}
+	}
+
+	/**
+	 * Anota un vehiculo recien insertado.
+	 *
+	 * @param matricula vehiculo
+	 */
+	public void anadirVehiculo(String matricula) {
+		synchronized (cerrojo) {
+			vehiculos.anadir(matricula);
+			if (altasVehiculos != null) {
+				altasVehiculos.add(matricula);
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package lsi.ubu.servicios;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Generacion diferida de facturas. Con la facturacion diferida activada
+ * ({@link ServicioImpl#setFacturacionDiferida(boolean)}) el alquiler solo
+ * confirma la reserva y una fila en FACTURAS_PENDIENTES; este proceso vacia esa
+ * tabla por trozos con varios hilos y crea las facturas y sus lineas.
+ *
+ * Cada trozo se bloquea con FOR UPDATE SKIP LOCKED, de modo que los hilos no
+ * se pisan: se lee de un cursor con LIMIT, que salta las filas de los otros
+ * hilos y sigue con las siguientes (con ROWNUM todos pedirian las mismas
+ * primeras filas y solo uno se las llevaria). Las facturas se crean en la misma transaccion que borra sus
+ * filas pendientes: si un hilo falla, el trozo vuelve a quedar pendiente y se
+ * repite entero (al menos una vez), pero una fila ya borrada no vuelve a
+ * facturarse (idempotente). Los importes se calculan con los datos de la
+ * reserva en el momento de facturar, asi que recogen las modificaciones que
+ * haya tenido mientras esperaba.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class GeneradorFacturas {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeneradorFacturas.class);
+
+	/** Espera de un hilo cuando no encuentra nada pendiente. */
+	private static final long ESPERA_VACIO_MS = 200;
+
+	/**
+	 * Factura un trozo de reservas pendientes en un solo viaje a la BD. Las
+	 * reservas se buscan tambien en el historico por si se archivaron mientras
+	 * esperaban; las que ya no existen solo se quitan de la tabla de
+	 * pendientes.
+	 */
+	private static final String SQL_FACTURAR_TROZO =
+		"DECLARE " +
+		"  TYPE t_ids IS TABLE OF facturas_pendientes.idReserva%TYPE; " +
+		"  v_ids t_ids; " +
+		"  v_dias NUMBER := ?; " +
+		"  v_limite NUMBER := ?; " +
+		"  v_ranura NUMBER := ?; " +
+		"  v_nro facturas.nroFactura%TYPE; " +
+		"  v_facturadas NUMBER := 0; " +
+		"  CURSOR c_pendientes IS " +
+		"    SELECT idReserva FROM facturas_pendientes FOR UPDATE SKIP LOCKED; " +
+		"BEGIN " +
+		"  OPEN c_pendientes; " +
+		"  FETCH c_pendientes BULK COLLECT INTO v_ids LIMIT v_limite; " +
+		"  CLOSE c_pendientes; " +
+		"  FOR i IN 1 .. v_ids.COUNT LOOP " +
+		"    FOR r IN (SELECT r.cliente, NVL(r.fecha_fin - r.fecha_ini, v_dias) dias, m.id_modelo, " +
+		"                     m.precio_cada_dia, m.capacidad_deposito, m.tipo_combustible, pc.precio_por_litro " +
+		"                FROM reservas_todas r JOIN vehiculos v ON r.matricula = v.matricula " +
+		"                JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"                JOIN precio_combustible pc ON m.tipo_combustible = pc.tipo_combustible " +
+		"               WHERE r.idReserva = v_ids(i)) LOOP " +
+		"      SELECT seq_num_fact.nextVal INTO v_nro FROM dual; " +
+		"      INSERT INTO facturas (nroFactura, cliente, importe) " +
+		"      VALUES (v_nro, r.cliente, r.precio_cada_dia * r.dias + r.precio_por_litro * r.capacidad_deposito); " +
+		"      INSERT INTO facturas_reservas (idReserva, nroFactura) VALUES (v_ids(i), v_nro); " +
+		"      INSERT INTO lineas_factura (nroFactura, concepto, importe) " +
+		"      VALUES (v_nro, r.dias || ' dias de alquiler, vehiculo modelo ' || r.id_modelo, r.precio_cada_dia * r.dias); " +
+		"      INSERT INTO lineas_factura (nroFactura, concepto, importe) " +
+		"      VALUES (v_nro, 'Deposito lleno de ' || r.capacidad_deposito || ' litros de ' || r.tipo_combustible, " +
+		"              r.precio_por_litro * r.capacidad_deposito); " +
+		"      " + TotalesClientes.crearRanuras("SELECT r.cliente nif FROM dual") + "; " +
+		"      UPDATE clientes_totales SET importe = importe + r.precio_cada_dia * r.dias + r.precio_por_litro * r.capacidad_deposito " +
+		"       WHERE nif = r.cliente AND ranura = v_ranura; " +
+		"      v_facturadas := v_facturadas + 1; " +
+		"    END LOOP; " +
+		"  END LOOP; " +
+		"  FORALL i IN 1 .. v_ids.COUNT " +
+		"    DELETE FROM facturas_pendientes WHERE idReserva = v_ids(i); " +
+		"  ? := v_ids.COUNT; " +
+		"  ? := v_facturadas; " +
+		"END;";
+
+	private final int hilos;
+	private final int tamanoTrozo;
+	private ExecutorService ejecutor;
+	private volatile boolean activo;
+
+	private final AtomicLong facturadas = new AtomicLong();
+	private final AtomicLong trozos = new AtomicLong();
+	private final AtomicLong errores = new AtomicLong();
+
+	/**
+	 * Crea el generador.
+	 *
+	 * @param hilos       hilos que vacian la tabla de pendientes
+	 * @param tamanoTrozo reservas facturadas por transaccion
+	 */
+	public GeneradorFacturas(int hilos, int tamanoTrozo) {
+		this.hilos = hilos;
+		this.tamanoTrozo = tamanoTrozo;
+	}
+
+	/**
+	 * Arranca los hilos, que trabajan hasta que se llame a {@link #detener()}.
+	 */
+	public synchronized void iniciar() {
+		if (ejecutor != null) {
+			return;
+		}
+		activo = true;
+		ejecutor = Executors.newFixedThreadPool(hilos, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "generador-facturas-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (int i = 0; i < hilos; i++) {
+			ejecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					bucle();
+				}
+			});
+		}
+		LOGGER.info("Generador de facturas iniciado con {} hilos y trozos de {}", hilos, tamanoTrozo);
+	}
+
+	/**
+	 * Para los hilos cuando terminen el trozo en curso. Lo que quede pendiente
+	 * se facturara en el siguiente arranque.
+	 */
+	public synchronized void detener() {
+		if (ejecutor == null) {
+			return;
+		}
+		activo = false;
+		ejecutor.shutdown();
+		try {
+			if (!ejecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+				ejecutor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			ejecutor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		ejecutor = null;
+		LOGGER.info("Generador de facturas detenido: {} facturas en {} trozos, {} errores", facturadas.get(), trozos.get(), errores.get());
+	}
+
+	private void bucle() {
+		while (activo) {
+			try {
+				if (facturarTrozo() == 0) {
+					Thread.sleep(ESPERA_VACIO_MS);
+				}
+			} catch (SQLException e) {
+				errores.incrementAndGet();
+				LOGGER.warn("Error facturando un trozo de pendientes, se reintentara: {}", e.getMessage());
+				try {
+					Thread.sleep(ESPERA_VACIO_MS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Factura un trozo de reservas pendientes en una transaccion.
+	 *
+	 * @return numero de filas pendientes procesadas (0 si no habia ninguna
+	 *         libre)
+	 * @throws SQLException si hay un error con la base de datos; el trozo se
+	 *                      deshace y queda pendiente
+	 */
+	public int facturarTrozo() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CallableStatement cst = null;
+
+		try {
+			con = pool.getConnection();
+			cst = con.prepareCall(SQL_FACTURAR_TROZO);
+			cst.setInt(1, Misc.DEFAULT_INVOICE_DAYS);
+			cst.setInt(2, tamanoTrozo);
+			cst.setInt(3, TotalesClientes.ranura());
+			cst.registerOutParameter(4, Types.INTEGER);
+			cst.registerOutParameter(5, Types.INTEGER);
+			cst.execute();
+			int procesadas = cst.getInt(4);
+			int nuevas = cst.getInt(5);
+			con.commit();
+
+			if (procesadas > 0) {
+				facturadas.addAndGet(nuevas);
+				trozos.incrementAndGet();
+				LOGGER.debug("Trozo facturado: {} facturas de {} pendientes", nuevas, procesadas);
+			}
+			return procesadas;
+
+		} catch (SQLException e) {
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en facturarTrozo.", exRollback);
+				}
+			}
+			throw e;
+		} finally {
+			try { if (cst != null) cst.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando CallableStatement en facturarTrozo", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en facturarTrozo", e); }
+		}
+	}
+
+	/**
+	 * Factura todo lo pendiente desde el hilo que llama, sin arrancar el pool.
+	 *
+	 * @return numero de filas pendientes procesadas
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public long vaciar() throws SQLException {
+		long total = 0;
+		int procesadas;
+		do {
+			procesadas = facturarTrozo();
+			total += procesadas;
+		} while (procesadas == tamanoTrozo);
+		return total;
+	}
+
+	public long getFacturadas() {
+		return facturadas.get();
+	}
+
+	public long getTrozos() {
+		return trozos.get();
+	}
+
+	public long getErrores() {
+		return errores.get();
+	}
+}
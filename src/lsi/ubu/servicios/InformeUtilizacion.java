@@ -0,0 +1,395 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Informe de utilizacion de la flota: porcentaje de dias-vehiculo ocupados por
+ * modelo, tipo de combustible y mes.
+ *
+ * Las reservas se leen una sola vez en trozos de tamano fijo y cada trozo se
+ * agrega en paralelo (fork-join) sobre contadores primitivos por modelo y mes,
+ * asi que el coste es lineal en el numero de reservas y la memoria no depende
+ * de el. {@link #calcularConSql} es la implementacion de referencia en SQL y
+ * debe dar exactamente los mismos contadores. Ambas leen la vista
+ * RESERVAS_TODAS para contar tambien las reservas archivadas.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class InformeUtilizacion {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(InformeUtilizacion.class);
+
+	private static final int TAMANO_TROZO = 50000;
+
+	private static final String SQL_MODELOS =
+		"SELECT m.id_modelo, m.nombre, m.tipo_combustible, COUNT(v.matricula) " +
+		"FROM modelos m LEFT JOIN vehiculos v ON v.id_modelo = m.id_modelo " +
+		"GROUP BY m.id_modelo, m.nombre, m.tipo_combustible ORDER BY m.id_modelo";
+
+	private static final String SQL_RESERVAS =
+		"SELECT v.id_modelo, r.fecha_ini, NVL(r.fecha_fin, r.fecha_ini + ?) " +
+		"FROM reservas_todas r JOIN vehiculos v ON r.matricula = v.matricula " +
+		"WHERE r.fecha_ini < ? AND NVL(r.fecha_fin, r.fecha_ini + ?) > ?";
+
+	/** Referencia: un dia generado por cada dia del periodo y COUNT por modelo y mes. */
+	private static final String SQL_REFERENCIA =
+		"WITH dias AS (SELECT TRUNC(?) + LEVEL - 1 AS dia FROM dual CONNECT BY LEVEL <= ?) " +
+		"SELECT v.id_modelo, TO_CHAR(d.dia, 'YYYY-MM'), COUNT(*) " +
+		"FROM reservas_todas r JOIN vehiculos v ON r.matricula = v.matricula " +
+		"JOIN dias d ON d.dia >= r.fecha_ini AND d.dia < NVL(r.fecha_fin, r.fecha_ini + ?) " +
+		"GROUP BY v.id_modelo, TO_CHAR(d.dia, 'YYYY-MM')";
+
+	/**
+	 * Resultado del informe. Los dias ocupados se guardan en un unico array
+	 * indexado por modelo y mes.
+	 */
+	public static class Resultado {
+		private final int[] idModelos;
+		private final String[] nombres;
+		private final String[] combustibles;
+		private final int[] vehiculos;
+		private final YearMonth[] meses;
+		private final long[] diasMes; // dias del mes dentro del periodo
+		private final long[] ocupados;
+
+		Resultado(int[] idModelos, String[] nombres, String[] combustibles, int[] vehiculos, YearMonth[] meses,
+				long[] diasMes, long[] ocupados) {
+			this.idModelos = idModelos;
+			this.nombres = nombres;
+			this.combustibles = combustibles;
+			this.vehiculos = vehiculos;
+			this.meses = meses;
+			this.diasMes = diasMes;
+			this.ocupados = ocupados;
+		}
+
+		public int getNumModelos() {
+			return idModelos.length;
+		}
+
+		public int getIdModelo(int modelo) {
+			return idModelos[modelo];
+		}
+
+		public String getNombre(int modelo) {
+			return nombres[modelo];
+		}
+
+		public String getCombustible(int modelo) {
+			return combustibles[modelo];
+		}
+
+		public YearMonth[] getMeses() {
+			return meses.clone();
+		}
+
+		/**
+		 * Dias-vehiculo ocupados de un modelo en un mes.
+		 *
+		 * @param modelo indice del modelo
+		 * @param mes    indice del mes
+		 * @return dias ocupados
+		 */
+		public long getDiasOcupados(int modelo, int mes) {
+			return ocupados[modelo * meses.length + mes];
+		}
+
+		/**
+		 * Porcentaje de ocupacion de un modelo en un mes.
+		 *
+		 * @param modelo indice del modelo
+		 * @param mes    indice del mes
+		 * @return porcentaje entre 0 y 100 (0 si el modelo no tiene vehiculos)
+		 */
+		public double getOcupacion(int modelo, int mes) {
+			long disponibles = vehiculos[modelo] * diasMes[mes];
+			return disponibles == 0 ? 0 : 100.0 * getDiasOcupados(modelo, mes) / disponibles;
+		}
+
+		/**
+		 * Porcentaje de ocupacion por tipo de combustible y mes.
+		 *
+		 * @return por cada combustible, la ocupacion de cada mes
+		 */
+		public Map<String, double[]> getOcupacionPorCombustible() {
+			Map<String, long[]> ocupadosPorTipo = new LinkedHashMap<String, long[]>();
+			Map<String, long[]> disponiblesPorTipo = new HashMap<String, long[]>();
+			for (int m = 0; m < idModelos.length; m++) {
+				long[] o = ocupadosPorTipo.computeIfAbsent(combustibles[m], k -> new long[meses.length]);
+				long[] d = disponiblesPorTipo.computeIfAbsent(combustibles[m], k -> new long[meses.length]);
+				for (int i = 0; i < meses.length; i++) {
+					o[i] += getDiasOcupados(m, i);
+					d[i] += vehiculos[m] * diasMes[i];
+				}
+			}
+			Map<String, double[]> resultado = new LinkedHashMap<String, double[]>();
+			for (Map.Entry<String, long[]> e : ocupadosPorTipo.entrySet()) {
+				long[] d = disponiblesPorTipo.get(e.getKey());
+				double[] porcentaje = new double[meses.length];
+				for (int i = 0; i < meses.length; i++) {
+					porcentaje[i] = d[i] == 0 ? 0 : 100.0 * e.getValue()[i] / d[i];
+				}
+				resultado.put(e.getKey(), porcentaje);
+			}
+			return resultado;
+		}
+
+		/**
+		 * Compara los contadores con otro resultado del mismo periodo.
+		 *
+		 * @param otro resultado a comparar
+		 * @return true si todos los dias ocupados coinciden
+		 */
+		public boolean mismosContadores(Resultado otro) {
+			return Arrays.equals(idModelos, otro.idModelos) && Arrays.equals(meses, otro.meses)
+					&& Arrays.equals(ocupados, otro.ocupados);
+		}
+	}
+
+	/**
+	 * Calcula el informe recorriendo las reservas una vez.
+	 *
+	 * @param desde primer dia del periodo
+	 * @param hasta dia siguiente al ultimo del periodo
+	 * @return resultado del informe
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Resultado calcular(java.util.Date desde, java.util.Date hasta) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		Periodo periodo = new Periodo(desde, hasta);
+		try {
+			con = pool.getConnection();
+			Dimensiones dim = leerModelos(con);
+			long[] total = new long[dim.ids.length * periodo.meses.length];
+
+			st = con.prepareStatement(SQL_RESERVAS);
+			st.setInt(1, Misc.DEFAULT_INVOICE_DAYS);
+			st.setDate(2, java.sql.Date.valueOf(LocalDate.ofEpochDay(periodo.fin)));
+			st.setInt(3, Misc.DEFAULT_INVOICE_DAYS);
+			st.setDate(4, java.sql.Date.valueOf(LocalDate.ofEpochDay(periodo.ini)));
+			st.setFetchSize(5000);
+			rs = st.executeQuery();
+
+			// Un trozo de reservas en arrays primitivos, reutilizados entre trozos
+			int[] modelo = new int[TAMANO_TROZO];
+			long[] ini = new long[TAMANO_TROZO];
+			long[] fin = new long[TAMANO_TROZO];
+			long reservas = 0;
+			int n = 0;
+			while (rs.next()) {
+				Integer indice = dim.indices.get(rs.getInt(1));
+				if (indice == null) {
+					continue;
+				}
+				modelo[n] = indice;
+				ini[n] = rs.getDate(2).toLocalDate().toEpochDay();
+				fin[n] = rs.getDate(3).toLocalDate().toEpochDay();
+				if (++n == TAMANO_TROZO) {
+					sumar(total, agregar(periodo, modelo, ini, fin, n));
+					reservas += n;
+					n = 0;
+				}
+			}
+			sumar(total, agregar(periodo, modelo, ini, fin, n));
+			reservas += n;
+			con.commit();
+
+			LOGGER.info("Informe de utilizacion: {} reservas, {} modelos, {} meses", reservas, dim.ids.length,
+					periodo.meses.length);
+			return new Resultado(dim.ids, dim.nombres, dim.combustibles, dim.vehiculos, periodo.meses,
+					periodo.diasMes, total);
+
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en calcular", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en calcular", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en calcular", e); }
+		}
+	}
+
+	/**
+	 * Implementacion de referencia en SQL, para comprobar {@link #calcular}.
+	 * Genera una fila por dia del periodo, por lo que es mucho mas lenta.
+	 *
+	 * @param desde primer dia del periodo
+	 * @param hasta dia siguiente al ultimo del periodo
+	 * @return resultado del informe
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Resultado calcularConSql(java.util.Date desde, java.util.Date hasta) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		Periodo periodo = new Periodo(desde, hasta);
+		try {
+			con = pool.getConnection();
+			Dimensiones dim = leerModelos(con);
+			long[] total = new long[dim.ids.length * periodo.meses.length];
+
+			st = con.prepareStatement(SQL_REFERENCIA);
+			st.setDate(1, java.sql.Date.valueOf(LocalDate.ofEpochDay(periodo.ini)));
+			st.setLong(2, periodo.fin - periodo.ini);
+			st.setInt(3, Misc.DEFAULT_INVOICE_DAYS);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				Integer indice = dim.indices.get(rs.getInt(1));
+				int mes = Arrays.asList(periodo.meses).indexOf(YearMonth.parse(rs.getString(2)));
+				if (indice != null && mes >= 0) {
+					total[indice * periodo.meses.length + mes] += rs.getLong(3);
+				}
+			}
+			con.commit();
+			return new Resultado(dim.ids, dim.nombres, dim.combustibles, dim.vehiculos, periodo.meses,
+					periodo.diasMes, total);
+
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en calcularConSql", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en calcularConSql", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en calcularConSql", e); }
+		}
+	}
+
+	/**
+	 * Agrega un trozo en paralelo: cada hilo acumula en su propio array y los
+	 * arrays se suman al combinar.
+	 */
+	private static long[] agregar(Periodo periodo, int[] modelo, long[] ini, long[] fin, int n) {
+		int numMeses = periodo.meses.length;
+		int tamano = numMeses * (1 + maximo(modelo, n));
+		return IntStream.range(0, n).parallel().collect(() -> new long[tamano],
+				(acc, i) -> periodo.repartir(acc, modelo[i] * numMeses, ini[i], fin[i]), InformeUtilizacion::sumar);
+	}
+
+	private static int maximo(int[] valores, int n) {
+		int max = 0;
+		for (int i = 0; i < n; i++) {
+			max = Math.max(max, valores[i]);
+		}
+		return max;
+	}
+
+	private static void sumar(long[] destino, long[] origen) {
+		for (int i = 0; i < origen.length; i++) {
+			destino[i] += origen[i];
+		}
+	}
+
+	private Dimensiones leerModelos(Connection con) throws SQLException {
+		PreparedStatement st = con.prepareStatement(SQL_MODELOS);
+		ResultSet rs = st.executeQuery();
+		List<Object[]> filas = new ArrayList<Object[]>();
+		while (rs.next()) {
+			filas.add(new Object[] { rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4) });
+		}
+		rs.close();
+		st.close();
+
+		Dimensiones dim = new Dimensiones(filas.size());
+		for (int i = 0; i < filas.size(); i++) {
+			Object[] f = filas.get(i);
+			dim.ids[i] = (Integer) f[0];
+			dim.nombres[i] = (String) f[1];
+			dim.combustibles[i] = (String) f[2];
+			dim.vehiculos[i] = (Integer) f[3];
+			dim.indices.put(dim.ids[i], i);
+		}
+		return dim;
+	}
+
+	/** Modelos del informe. */
+	private static class Dimensiones {
+		final int[] ids;
+		final String[] nombres;
+		final String[] combustibles;
+		final int[] vehiculos;
+		final Map<Integer, Integer> indices = new HashMap<Integer, Integer>();
+
+		Dimensiones(int n) {
+			ids = new int[n];
+			nombres = new String[n];
+			combustibles = new String[n];
+			vehiculos = new int[n];
+		}
+	}
+
+	/** Periodo del informe dividido en meses, en dias desde epoch. */
+	private static class Periodo {
+		final long ini;
+		final long fin;
+		final YearMonth[] meses;
+		final long[] inicioMes; // con un elemento extra: fin del periodo
+		final long[] diasMes;
+
+		Periodo(java.util.Date desde, java.util.Date hasta) {
+			ini = new java.sql.Date(Misc.truncDate(desde).getTime()).toLocalDate().toEpochDay();
+			fin = new java.sql.Date(Misc.truncDate(hasta).getTime()).toLocalDate().toEpochDay();
+			if (fin <= ini) {
+				throw new IllegalArgumentException("El periodo del informe esta vacio");
+			}
+			YearMonth primero = YearMonth.from(LocalDate.ofEpochDay(ini));
+			YearMonth ultimo = YearMonth.from(LocalDate.ofEpochDay(fin - 1));
+			int n = (int) (ultimo.getYear() * 12L + ultimo.getMonthValue() - primero.getYear() * 12L
+					- primero.getMonthValue()) + 1;
+			meses = new YearMonth[n];
+			inicioMes = new long[n + 1];
+			diasMes = new long[n];
+			for (int i = 0; i < n; i++) {
+				meses[i] = primero.plusMonths(i);
+				inicioMes[i] = Math.max(ini, meses[i].atDay(1).toEpochDay());
+			}
+			inicioMes[n] = fin;
+			for (int i = 0; i < n; i++) {
+				diasMes[i] = inicioMes[i + 1] - inicioMes[i];
+			}
+		}
+
+		/** Suma los dias de [a, b) recortados al periodo en los meses que toca. */
+		void repartir(long[] acc, int desplazamiento, long a, long b) {
+			long desde = Math.max(a, ini);
+			long hasta = Math.min(b, fin);
+			if (desde >= hasta) {
+				return;
+			}
+			int mes = Arrays.binarySearch(inicioMes, desde);
+			if (mes < 0) {
+				mes = -mes - 2;
+			}
+			for (; mes < meses.length && inicioMes[mes] < hasta; mes++) {
+				acc[desplazamiento + mes] += Math.min(hasta, inicioMes[mes + 1]) - Math.max(desde, inicioMes[mes]);
+			}
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package lsi.ubu.servicios;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Mapa de ocupacion de la flota: un conjunto de bits por matricula con un bit
+ * por dia reservado, dentro de una ventana de varios anos.
+ *
+ * Los bits viven fuera del heap, en un fichero proyectado en memoria, asi que
+ * al reiniciar la JVM basta con volver a abrir el fichero en lugar de recorrer
+ * RESERVAS. ServicioImpl lo actualiza tras cada commit y
+ * {@link #reconstruir()} lo rehace desde la base de datos si se desincroniza.
+ *
+ * Formato del fichero: una cabecera de {@value #CABECERA} bytes y un registro
+ * por vehiculo con la matricula (8 bytes ASCII, 8 de relleno) seguida de las
+ * palabras de 64 bits de su ventana. Los intervalos son [ini, fin), igual que
+ * en la comprobacion de solapamiento, y una reserva sin fecha de fin ocupa
+ * {@link Misc#OPEN_END_DAYS} dias como en ella: el mapa dice que dias bloquea
+ * cada vehiculo, no cuantos se facturan.
+ *
+ * Las escrituras estan sincronizadas; las lecturas no, pues cada palabra se lee
+ * de una vez y una lectura concurrente a lo sumo ve el estado anterior. Cada
+ * lectura trabaja sobre la {@link Proyeccion} vigente, que
+ * {@link #reconstruir()} sustituye de una vez: el mapa nuevo se construye en
+ * un fichero temporal, se renombra sobre el bueno y solo entonces se publica,
+ * de modo que ninguna lectura ve un mapa a medio hacer ni un fichero
+ * truncado.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class OcupacionVehiculos {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(OcupacionVehiculos.class);
+
+	private static final int MAGICO = 0x4F435550; // "OCUP"
+	private static final int VERSION = 1;
+	private static final int CABECERA = 64;
+	private static final int LONG_MATRICULA = 8;
+	private static final int LONG_CLAVE = 16;
+
+	// Posiciones en la cabecera
+	private static final int POS_MAGICO = 0;
+	private static final int POS_VERSION = 4;
+	private static final int POS_BASE = 8;
+	private static final int POS_PALABRAS = 16;
+	private static final int POS_CAPACIDAD = 20;
+	private static final int POS_USADOS = 24;
+
+	/** Anos de la ventana por defecto (uno hacia atras y tres hacia delante). */
+	private static final int ANOS_ATRAS = 1;
+	private static final int ANOS_VENTANA = 4;
+
+	private final File fichero;
+
+	/** Mapa en uso; solo se sustituye entero, en reconstruir. */
+	private volatile Proyeccion vigente;
+
+	/**
+	 * Un fichero de mapa abierto y proyectado, con su indice de matriculas. La
+	 * cabecera no cambia mientras esta en uso; al crecer la capacidad el
+	 * buffer se proyecta de nuevo antes de anadir al indice la matricula que
+	 * no cabia, asi que quien encuentra un registro en el indice ve ya un
+	 * buffer que lo contiene.
+	 */
+	private static final class Proyeccion {
+		private final RandomAccessFile raf;
+		private volatile MappedByteBuffer mapa;
+
+		private final long base; // primer dia de la ventana (epoch day)
+		private final int palabras; // palabras de 64 bits por vehiculo
+		private final int longRegistro;
+		private int capacidad;
+		private int usados;
+
+		private final Map<String, Integer> indice = new ConcurrentHashMap<String, Integer>();
+
+		private Proyeccion(RandomAccessFile raf, long base, int palabras, int capacidad, int usados) {
+			this.raf = raf;
+			this.base = base;
+			this.palabras = palabras;
+			this.capacidad = capacidad;
+			this.usados = usados;
+			this.longRegistro = LONG_CLAVE + palabras * 8;
+		}
+
+		private void proyectar() throws IOException {
+			long tamano = CABECERA + (long) capacidad * longRegistro;
+			if (raf.length() < tamano) {
+				raf.setLength(tamano);
+			}
+			mapa = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, tamano);
+		}
+	}
+
+	private OcupacionVehiculos(File fichero) {
+		this.fichero = fichero;
+	}
+
+	/**
+	 * Abre el mapa guardado en el fichero, o lo crea vacio si no existe.
+	 *
+	 * @param fichero   fichero del mapa
+	 * @param capacidad vehiculos previstos (crece si hace falta)
+	 * @return mapa de ocupacion
+	 * @throws IOException si no se puede leer o crear el fichero
+	 */
+	public static OcupacionVehiculos abrir(File fichero, int capacidad) throws IOException {
+		OcupacionVehiculos ocupacion = new OcupacionVehiculos(fichero);
+		if (fichero.exists() && fichero.length() >= CABECERA) {
+			ocupacion.vigente = cargar(fichero);
+		} else {
+			ocupacion.vigente = crear(fichero, Math.max(1, capacidad));
+		}
+		return ocupacion;
+	}
+
+	/** Crea un mapa vacio con la ventana a partir del ano pasado. */
+	private static Proyeccion crear(File fichero, int capacidad) throws IOException {
+		LocalDate inicio = LocalDate.now().minusYears(ANOS_ATRAS).withDayOfYear(1);
+		int dias = (int) (inicio.plusYears(ANOS_VENTANA).toEpochDay() - inicio.toEpochDay());
+		long base = inicio.toEpochDay();
+		int palabras = (dias + 63) / 64;
+
+		RandomAccessFile raf = new RandomAccessFile(fichero, "rw");
+		Proyeccion p = new Proyeccion(raf, base, palabras, capacidad, 0);
+		try {
+			raf.setLength(0);
+			p.proyectar();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		p.mapa.putInt(POS_MAGICO, MAGICO);
+		p.mapa.putInt(POS_VERSION, VERSION);
+		p.mapa.putLong(POS_BASE, base);
+		p.mapa.putInt(POS_PALABRAS, palabras);
+		p.mapa.putInt(POS_CAPACIDAD, capacidad);
+		p.mapa.putInt(POS_USADOS, 0);
+		LOGGER.info("Mapa de ocupacion creado en {} desde {} ({} dias, {} vehiculos)", fichero,
+				LocalDate.ofEpochDay(base), palabras * 64, capacidad);
+		return p;
+	}
+
+	private static Proyeccion cargar(File fichero) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fichero, "rw");
+		MappedByteBuffer cabecera = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, CABECERA);
+		if (cabecera.getInt(POS_MAGICO) != MAGICO || cabecera.getInt(POS_VERSION) != VERSION) {
+			raf.close();
+			throw new IOException("El fichero " + fichero + " no es un mapa de ocupacion valido");
+		}
+		Proyeccion p = new Proyeccion(raf, cabecera.getLong(POS_BASE), cabecera.getInt(POS_PALABRAS),
+				cabecera.getInt(POS_CAPACIDAD), cabecera.getInt(POS_USADOS));
+		p.proyectar();
+
+		byte[] clave = new byte[LONG_MATRICULA];
+		for (int i = 0; i < p.usados; i++) {
+			int pos = CABECERA + i * p.longRegistro;
+			for (int j = 0; j < LONG_MATRICULA; j++) {
+				clave[j] = p.mapa.get(pos + j);
+			}
+			p.indice.put(new String(clave, StandardCharsets.US_ASCII).trim(), i);
+		}
+		LOGGER.info("Mapa de ocupacion cargado de {} ({} vehiculos)", fichero, p.usados);
+		return p;
+	}
+
+	/**
+	 * Marca como ocupados los dias [ini, fin) de un vehiculo.
+	 *
+	 * @param matricula vehiculo
+	 * @param ini       primer dia
+	 * @param fin       dia siguiente al ultimo
+	 */
+	public synchronized void marcar(String matricula, Date ini, Date fin) {
+		Proyeccion p = vigente;
+		cambiar(p, registro(p, matricula, true), dia(ini), dia(fin), true);
+	}
+
+	/**
+	 * Libera los dias [ini, fin) de un vehiculo.
+	 *
+	 * @param matricula vehiculo
+	 * @param ini       primer dia
+	 * @param fin       dia siguiente al ultimo
+	 */
+	public synchronized void liberar(String matricula, Date ini, Date fin) {
+		Proyeccion p = vigente;
+		int registro = registro(p, matricula, false);
+		if (registro >= 0) {
+			cambiar(p, registro, dia(ini), dia(fin), false);
+		}
+	}
+
+	/**
+	 * Indica si un vehiculo esta libre en los dias [ini, fin).
+	 *
+	 * @param matricula vehiculo
+	 * @param ini       primer dia
+	 * @param fin       dia siguiente al ultimo
+	 * @return true si no hay ningun dia ocupado (o el vehiculo no esta en el
+	 *         mapa)
+	 */
+	public boolean estaLibre(String matricula, Date ini, Date fin) {
+		Proyeccion p = vigente;
+		Integer registro = p.indice.get(matricula);
+		return registro == null || libre(p, registro, dia(ini), dia(fin));
+	}
+
+	/**
+	 * Vehiculos libres en los dias [ini, fin), recorriendo toda la flota.
+	 *
+	 * @param ini primer dia
+	 * @param fin dia siguiente al ultimo
+	 * @return matriculas libres
+	 */
+	public List<String> libres(Date ini, Date fin) {
+		long desde = dia(ini);
+		long hasta = dia(fin);
+		Proyeccion p = vigente;
+		List<String> libres = new ArrayList<String>();
+		for (Map.Entry<String, Integer> e : p.indice.entrySet()) {
+			if (libre(p, e.getValue(), desde, hasta)) {
+				libres.add(e.getKey());
+			}
+		}
+		return libres;
+	}
+
+	/**
+	 * Dias ocupados de un vehiculo en [ini, fin), para calcular su utilizacion.
+	 *
+	 * @param matricula vehiculo
+	 * @param ini       primer dia
+	 * @param fin       dia siguiente al ultimo
+	 * @return numero de dias ocupados
+	 */
+	public int diasOcupados(String matricula, Date ini, Date fin) {
+		Proyeccion p = vigente;
+		Integer registro = p.indice.get(matricula);
+		if (registro == null) {
+			return 0;
+		}
+		int[] rango = rango(p, dia(ini), dia(fin));
+		int total = 0;
+		for (int w = rango[0] >>> 6; rango[0] < rango[1] && w <= (rango[1] - 1) >>> 6; w++) {
+			total += Long.bitCount(palabra(p, registro, w) & mascara(w, rango[0], rango[1]));
+		}
+		return total;
+	}
+
+	/**
+	 * Rehace el mapa desde la base de datos: todos los vehiculos y las reservas
+	 * que caen dentro de la ventana, que se recoloca a partir del ano pasado.
+	 * Se construye en un fichero aparte que luego sustituye al actual; mientras
+	 * tanto las lecturas siguen viendo el mapa anterior.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 * @throws IOException  si hay un error con el fichero
+	 */
+	public synchronized void reconstruir() throws SQLException, IOException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		File temporal = new File(fichero.getPath() + ".tmp");
+		Proyeccion nueva = null;
+		Proyeccion anterior = vigente;
+
+		try {
+			con = pool.getConnection();
+
+			st = con.prepareStatement("SELECT count(*) FROM vehiculos");
+			rs = st.executeQuery();
+			rs.next();
+			int vehiculos = rs.getInt(1);
+			rs.close();
+			st.close();
+
+			nueva = crear(temporal, Math.max(Math.max(1, anterior.capacidad), vehiculos));
+
+			st = con.prepareStatement("SELECT matricula FROM vehiculos ORDER BY matricula");
+			rs = st.executeQuery();
+			while (rs.next()) {
+				registro(nueva, rs.getString(1), true);
+			}
+			rs.close();
+			st.close();
+
+			java.sql.Date desde = new java.sql.Date(fecha(nueva.base).getTime());
+			java.sql.Date hasta = new java.sql.Date(fecha(nueva.base + nueva.palabras * 64L).getTime());
+			st = con.prepareStatement("SELECT matricula, fecha_ini, NVL(fecha_fin, fecha_ini + ?) FROM reservas "
+					+ "WHERE matricula IS NOT NULL AND fecha_ini < ? AND NVL(fecha_fin, fecha_ini + ?) > ?");
+			st.setInt(1, Misc.OPEN_END_DAYS);
+			st.setDate(2, hasta);
+			st.setInt(3, Misc.OPEN_END_DAYS);
+			st.setDate(4, desde);
+			st.setFetchSize(1000);
+			rs = st.executeQuery();
+			int reservas = 0;
+			while (rs.next()) {
+				cambiar(nueva, registro(nueva, rs.getString(1), true), dia(rs.getDate(2)), dia(rs.getDate(3)), true);
+				reservas++;
+			}
+			con.commit();
+			nueva.mapa.force();
+
+			// Publicar: primero el fichero, de una vez, y despues el buffer
+			Files.move(temporal.toPath(), fichero.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			vigente = nueva;
+			nueva = null;
+			// El buffer anterior sigue siendo valido para quien aun lo lea
+			anterior.raf.close();
+			LOGGER.info("Mapa de ocupacion reconstruido: {} vehiculos, {} reservas", vigente.usados, reservas);
+
+		} finally {
+			if (nueva != null) {
+				try {
+					nueva.raf.close();
+				} catch (IOException e) {
+					LOGGER.warn("Error cerrando el mapa temporal en reconstruir", e);
+				}
+				if (!temporal.delete()) {
+					LOGGER.warn("No se pudo borrar el mapa temporal {}", temporal);
+				}
+			}
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en reconstruir", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en reconstruir", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en reconstruir", e); }
+		}
+	}
+
+	/**
+	 * Vuelca los cambios al fichero y lo cierra.
+	 *
+	 * @throws IOException si hay un error con el fichero
+	 */
+	public synchronized void cerrar() throws IOException {
+		Proyeccion p = vigente;
+		p.mapa.force();
+		p.raf.close();
+	}
+
+	/**
+	 * Registro de un vehiculo, dandolo de alta si no estaba y se pide.
+	 */
+	private static int registro(Proyeccion p, String matricula, boolean alta) {
+		Integer registro = p.indice.get(matricula);
+		if (registro != null || !alta) {
+			return registro == null ? -1 : registro;
+		}
+		if (p.usados == p.capacidad) {
+			p.capacidad *= 2;
+			try {
+				p.proyectar();
+			} catch (IOException e) {
+				throw new IllegalStateException("No se puede ampliar el mapa de ocupacion", e);
+			}
+			p.mapa.putInt(POS_CAPACIDAD, p.capacidad);
+		}
+		MappedByteBuffer mapa = p.mapa;
+		int pos = CABECERA + p.usados * p.longRegistro;
+		byte[] clave = matricula.getBytes(StandardCharsets.US_ASCII);
+		for (int j = 0; j < LONG_CLAVE; j++) {
+			mapa.put(pos + j, j < clave.length && j < LONG_MATRICULA ? clave[j] : 0);
+		}
+		for (int w = 0; w < p.palabras; w++) {
+			mapa.putLong(pos + LONG_CLAVE + w * 8, 0L);
+		}
+		p.indice.put(matricula, p.usados);
+		p.usados++;
+		mapa.putInt(POS_USADOS, p.usados);
+		return p.usados - 1;
+	}
+
+	private static void cambiar(Proyeccion p, int registro, long desde, long hasta, boolean ocupar) {
+		int[] rango = rango(p, desde, hasta);
+		if (rango[0] >= rango[1]) {
+			LOGGER.debug("Intervalo fuera de la ventana del mapa de ocupacion");
+			return;
+		}
+		for (int w = rango[0] >>> 6; w <= (rango[1] - 1) >>> 6; w++) {
+			long m = mascara(w, rango[0], rango[1]);
+			long actual = palabra(p, registro, w);
+			escribir(p, registro, w, ocupar ? actual | m : actual & ~m);
+		}
+	}
+
+	private static boolean libre(Proyeccion p, int registro, long desde, long hasta) {
+		int[] rango = rango(p, desde, hasta);
+		for (int w = rango[0] >>> 6; rango[0] < rango[1] && w <= (rango[1] - 1) >>> 6; w++) {
+			if ((palabra(p, registro, w) & mascara(w, rango[0], rango[1])) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Recorta [desde, hasta) a la ventana y lo pasa a posiciones de bit. */
+	private static int[] rango(Proyeccion p, long desde, long hasta) {
+		long total = p.palabras * 64L;
+		int ini = (int) Math.max(0, Math.min(total, desde - p.base));
+		int fin = (int) Math.max(0, Math.min(total, hasta - p.base));
+		return new int[] { ini, fin };
+	}
+
+	/** Bits de la palabra w que caen en [ini, fin). */
+	private static long mascara(int w, int ini, int fin) {
+		int primero = Math.max(ini - (w << 6), 0);
+		int ultimo = Math.min(fin - (w << 6), 64);
+		long alto = ultimo == 64 ? -1L : (1L << ultimo) - 1;
+		return alto & (-1L << primero);
+	}
+
+	private static long palabra(Proyeccion p, int registro, int w) {
+		return p.mapa.getLong(CABECERA + registro * p.longRegistro + LONG_CLAVE + w * 8);
+	}
+
+	private static void escribir(Proyeccion p, int registro, int w, long valor) {
+		p.mapa.putLong(CABECERA + registro * p.longRegistro + LONG_CLAVE + w * 8, valor);
+	}
+
+	private static long dia(Date d) {
+		return Instant.ofEpochMilli(d.getTime()).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+
+	private static Date fecha(long dia) {
+		return Date.from(LocalDate.ofEpochDay(dia).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+}
@@ -0,0 +1,39 @@
+package lsi.ubu.servicios;
+
+import java.util.List;
+
+/**
+ * Una pagina de un listado y el cursor para pedir la siguiente.
+ *
+ * @param <T> tipo de los elementos
+ * @version 1.0
+ * @since 1.0
+ */
+public class Pagina<T> {
+
+	private final List<T> elementos;
+	private final String siguienteCursor;
+
+	public Pagina(List<T> elementos, String siguienteCursor) {
+		this.elementos = elementos;
+		this.siguienteCursor = siguienteCursor;
+	}
+
+	public List<T> getElementos() {
+		return elementos;
+	}
+
+	/**
+	 * Cursor opaco de la pagina siguiente; se pasa tal cual en la siguiente
+	 * llamada.
+	 *
+	 * @return el cursor, o null si esta es la ultima pagina
+	 */
+	public String getSiguienteCursor() {
+		return siguienteCursor;
+	}
+
+	public boolean hayMas() {
+		return siguienteCursor != null;
+	}
+}
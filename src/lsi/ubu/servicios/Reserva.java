@@ -0,0 +1,46 @@
+package lsi.ubu.servicios;
+
+import java.util.Date;
+
+/**
+ * Reserva tal como se devuelve en los listados.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class Reserva {
+
+	private final int idReserva;
+	private final String matricula;
+	private final Date fechaIni;
+	private final Date fechaFin;
+
+	public Reserva(int idReserva, String matricula, Date fechaIni, Date fechaFin) {
+		this.idReserva = idReserva;
+		this.matricula = matricula;
+		this.fechaIni = fechaIni;
+		this.fechaFin = fechaFin;
+	}
+
+	public int getIdReserva() {
+		return idReserva;
+	}
+
+	public String getMatricula() {
+		return matricula;
+	}
+
+	public Date getFechaIni() {
+		return fechaIni;
+	}
+
+	/** @return fecha de fin, o null si se reservo sin ella */
+	public Date getFechaFin() {
+		return fechaFin;
+	}
+
+	@Override
+	public String toString() {
+		return "reserva " + idReserva + " de " + matricula + " desde " + fechaIni + " hasta " + fechaFin;
+	}
+}
@@ -0,0 +1,31 @@
+package lsi.ubu.servicios;
+
+/**
+ * Identificadores de la reserva y la factura creadas por un alquiler.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ResultadoAlquiler {
+
+	private final int idReserva;
+	private final int nroFactura;
+
+	public ResultadoAlquiler(int idReserva, int nroFactura) {
+		this.idReserva = idReserva;
+		this.nroFactura = nroFactura;
+	}
+
+	public int getIdReserva() {
+		return idReserva;
+	}
+
+	public int getNroFactura() {
+		return nroFactura;
+	}
+
+	@Override
+	public String toString() {
+		return "reserva " + idReserva + ", factura " + nroFactura;
+	}
+}
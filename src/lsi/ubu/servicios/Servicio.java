@@ -2,8 +2,101 @@ package lsi.ubu.servicios;
 
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 
 public interface Servicio {
 
 	public void alquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException;
+
+	/**
+	 * Alquila como {@link #alquilar} pero con una clave de idempotencia: si la
+	 * clave ya se uso en un alquiler confirmado con los mismos datos no se
+	 * repite la transaccion y se devuelven la reserva y la factura originales.
+	 * 
+	 * @param claveIdempotencia clave unica de la peticion (null para no usarla)
+	 * @param nifCliente        cliente
+	 * @param matricula         vehiculo
+	 * @param fechaIni          fecha de inicio
+	 * @param fechaFin          fecha de fin (null para los dias por defecto)
+	 * @return reserva y factura creadas (o las de la peticion original)
+	 * @throws SQLException si hay un error con la base de datos; con codigo
+	 *                      CLAVE_REUTILIZADA si la clave se uso con otro
+	 *                      cliente, vehiculo o fechas
+	 */
+	public ResultadoAlquiler alquilarIdempotente(String claveIdempotencia, String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException;
+
+	/**
+	 * Alquila varios vehiculos para las mismas fechas en una sola transaccion:
+	 * o se reservan todos o ninguno, y se emite una unica factura con las
+	 * lineas de cada vehiculo. Sus reservas no se pueden anular ni modificar
+	 * por separado (RESERVA_EN_FLOTA); anularLote las anula si recibe todas.
+	 * 
+	 * @param nifCliente  cliente
+	 * @param matriculas  vehiculos (sin repetir)
+	 * @param fechaIni    fecha de inicio
+	 * @param fechaFin    fecha de fin (null para los dias por defecto)
+	 * @return reserva de cada vehiculo, en el orden de matriculas, todas con
+	 *         la misma factura
+	 * @throws SQLException si hay un error con la base de datos; con codigo
+	 *                      VEHICULO_OCUPADO si algun vehiculo no esta libre
+	 */
+	public List<ResultadoAlquiler> alquilarFlota(String nifCliente, List<String> matriculas, Date fechaIni, Date fechaFin) throws SQLException;
+
+	public void anular_alquiler(String idReserva, String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException;
+
+	/**
+	 * Anula de una vez un conjunto de reservas y sus facturas, con borrados en
+	 * bloque en una unica transaccion. Las reservas de un alquiler de flota se
+	 * anulan todas juntas o ninguna.
+	 * 
+	 * @param idsReserva identificadores de las reservas a anular
+	 * @return numero de reservas anuladas (las inexistentes se ignoran)
+	 * @throws SQLException si hay un error con la base de datos; con codigo
+	 *                      RESERVA_EN_FLOTA, sin anular nada, si el lote
+	 *                      incluye parte de una flota pero no toda
+	 */
+	public int anularLote(List<Integer> idsReserva) throws SQLException;
+
+	/**
+	 * Cambia la fecha de fin de una reserva sin anularla y volver a crearla.
+	 * Solo se comprueba la disponibilidad del tramo anadido y se ajustan la
+	 * linea de dias de alquiler y el total de la factura. La comprobacion es
+	 * segura frente a alquileres concurrentes solo si estos bloquean el
+	 * vehiculo (reserva atomica o de flota).
+	 * 
+	 * @param idReserva     reserva a modificar
+	 * @param nuevaFechaFin nueva fecha de fin
+	 * @throws SQLException si hay un error con la base de datos; con codigo
+	 *                      RESERVA_EN_FLOTA si es de un alquiler de flota
+	 */
+	public void modificarAlquiler(int idReserva, Date nuevaFechaFin) throws SQLException;
+
+	/**
+	 * Reservas de un cliente, de la mas reciente a la mas antigua, por paginas,
+	 * incluidas las ya archivadas. Cada pagina se busca a partir de la ultima fila de la anterior
+	 * (paginacion por clave), asi que cuesta lo mismo sea cual sea su posicion.
+	 * 
+	 * @param nifCliente cliente
+	 * @param cursor     null para la primera pagina o el cursor devuelto con
+	 *                   la anterior
+	 * @param limite     elementos por pagina (como mucho 500)
+	 * @return la pagina y el cursor de la siguiente
+	 * @throws SQLException si hay un error con la base de datos;
+	 *                      AlquilerCochesException CURSOR_INVALIDO si el cursor
+	 *                      no es uno devuelto por este listado
+	 */
+	public Pagina<Reserva> listarReservas(String nifCliente, String cursor, int limite) throws SQLException;
+
+	/**
+	 * Facturas de un cliente, de la ultima a la primera, por paginas (como
+	 * {@link #listarReservas}).
+	 * 
+	 * @param nifCliente cliente
+	 * @param cursor     null para la primera pagina o el cursor devuelto con
+	 *                   la anterior
+	 * @param limite     elementos por pagina (como mucho 500)
+	 * @return la pagina y el cursor de la siguiente
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Pagina<Factura> listarFacturas(String nifCliente, String cursor, int limite) throws SQLException;
 }
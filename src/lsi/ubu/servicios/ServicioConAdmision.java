@@ -0,0 +1,123 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import lsi.ubu.util.ControlAdmision;
+import lsi.ubu.util.ControlAdmision.Tipo;
+
+/**
+ * Servicio que pasa cada operacion por un {@link ControlAdmision} antes de
+ * delegarla en otro servicio. Las operaciones rechazadas lanzan
+ * AlquilerCochesException con codigo SOBRECARGA sin llegar a pedir conexion.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ServicioConAdmision implements Servicio {
+
+	private final Servicio servicio;
+	private final ControlAdmision control;
+
+	/**
+	 * Crea el servicio.
+	 *
+	 * @param servicio servicio en el que se delegan las operaciones admitidas
+	 * @param control  control de admision que decide el turno de cada una
+	 */
+	public ServicioConAdmision(Servicio servicio, ControlAdmision control) {
+		this.servicio = servicio;
+		this.control = control;
+	}
+
+	/**
+	 * @return control de admision, para consultar sus contadores
+	 */
+	public ControlAdmision getControl() {
+		return control;
+	}
+
+	@Override
+	public void alquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException {
+		control.entrar(Tipo.RESERVA);
+		try {
+			servicio.alquilar(nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			control.salir(Tipo.RESERVA);
+		}
+	}
+
+	@Override
+	public ResultadoAlquiler alquilarIdempotente(String claveIdempotencia, String nifCliente, String matricula,
+			Date fechaIni, Date fechaFin) throws SQLException {
+		control.entrar(Tipo.RESERVA);
+		try {
+			return servicio.alquilarIdempotente(claveIdempotencia, nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			control.salir(Tipo.RESERVA);
+		}
+	}
+
+	@Override
+	public List<ResultadoAlquiler> alquilarFlota(String nifCliente, List<String> matriculas, Date fechaIni, Date fechaFin)
+			throws SQLException {
+		control.entrar(Tipo.RESERVA);
+		try {
+			return servicio.alquilarFlota(nifCliente, matriculas, fechaIni, fechaFin);
+		} finally {
+			control.salir(Tipo.RESERVA);
+		}
+	}
+
+	@Override
+	public void anular_alquiler(String idReserva, String nifCliente, String matricula, Date fechaIni, Date fechaFin)
+			throws SQLException {
+		control.entrar(Tipo.ANULACION);
+		try {
+			servicio.anular_alquiler(idReserva, nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			control.salir(Tipo.ANULACION);
+		}
+	}
+
+	@Override
+	public int anularLote(List<Integer> idsReserva) throws SQLException {
+		control.entrar(Tipo.ANULACION);
+		try {
+			return servicio.anularLote(idsReserva);
+		} finally {
+			control.salir(Tipo.ANULACION);
+		}
+	}
+
+	@Override
+	public void modificarAlquiler(int idReserva, Date nuevaFechaFin) throws SQLException {
+		control.entrar(Tipo.RESERVA);
+		try {
+			servicio.modificarAlquiler(idReserva, nuevaFechaFin);
+		} finally {
+			control.salir(Tipo.RESERVA);
+		}
+	}
+
+	@Override
+	public Pagina<Reserva> listarReservas(String nifCliente, String cursor, int limite) throws SQLException {
+		control.entrar(Tipo.CONSULTA);
+		try {
+			return servicio.listarReservas(nifCliente, cursor, limite);
+		} finally {
+			control.salir(Tipo.CONSULTA);
+		}
+	}
+
+	@Override
+	public Pagina<Factura> listarFacturas(String nifCliente, String cursor, int limite) throws SQLException {
+		control.entrar(Tipo.CONSULTA);
+		try {
+			return servicio.listarFacturas(nifCliente, cursor, limite);
+		} finally {
+			control.salir(Tipo.CONSULTA);
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package lsi.ubu.servicios;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.util.EnrutadorFragmentos;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Servicio repartido entre los fragmentos de un {@link EnrutadorFragmentos}.
+ * Cada operacion se ejecuta con otro servicio (normalmente
+ * {@link ServicioImpl}) despues de asignar al hilo el pool del fragmento que le
+ * corresponde:
+ * <ul>
+ * <li>alquilar y anular_alquiler, el dueno de la matricula: la reserva, su
+ * comprobacion de solapes y su factura quedan en un unico fragmento y en una
+ * transaccion local.</li>
+ * <li>alquilarFlota, el dueno de las matriculas si es el mismo para todas; una
+ * flota repartida entre fragmentos no se puede reservar de forma atomica y se
+ * rechaza.</li>
+ * <li>modificarAlquiler, el que genero el idReserva.</li>
+ * <li>anularLote, cada grupo de ids en su fragmento; cada grupo confirma por
+ * separado, asi que el lote deja de ser atomico entre fragmentos.</li>
+ * <li>los listados consultan todos los fragmentos y mezclan los resultados;
+ * el cursor guarda la posicion en cada uno.</li>
+ * </ul>
+ * Los datos de referencia (PRECIO_COMBUSTIBLE, MODELOS, CLIENTES) estan
+ * replicados en todos los fragmentos para que la validacion del alquiler sea
+ * local; {@link #replicarReferencia(PoolDeConexiones)} los copia desde una base
+ * de datos origen, junto con cada vehiculo a su fragmento. Los totales por
+ * cliente (CLIENTES_TOTALES) quedan repartidos: hay que sumarlos en todos.
+ *
+ * Los componentes que leen del pool por defecto (FiltrosExistencia,
+ * OcupacionVehiculos) no conocen los fragmentos y no se deben combinar con
+ * este servicio.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ServicioFragmentado implements Servicio {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioFragmentado.class);
+
+	/** Tablas de referencia en orden de dependencia: tabla, columnas clave, resto. */
+	private static final String[][][] REFERENCIA = {
+		{ { "precio_combustible" }, { "tipo_combustible" }, { "precio_por_litro" } },
+		{ { "modelos" }, { "id_modelo" }, { "nombre", "precio_cada_dia", "capacidad_deposito", "tipo_combustible" } },
+		{ { "clientes" }, { "nif" }, { "nombre", "ape1", "ape2", "direccion" } } };
+
+	private static final String[][] VEHICULOS = { { "vehiculos" }, { "matricula" }, { "id_modelo", "color" } };
+
+	private static final int TAMANO_LOTE = 500;
+
+	private final Servicio servicio;
+	private final EnrutadorFragmentos enrutador;
+
+	/**
+	 * Crea el servicio.
+	 *
+	 * @param servicio  servicio que ejecuta cada operacion en su fragmento
+	 * @param enrutador fragmentos y reparto de las matriculas
+	 */
+	public ServicioFragmentado(Servicio servicio, EnrutadorFragmentos enrutador) {
+		this.servicio = servicio;
+		this.enrutador = enrutador;
+	}
+
+	@Override
+	public void alquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException {
+		PoolDeConexiones anterior = entrar(enrutador.fragmentoDe(matricula));
+		try {
+			servicio.alquilar(nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			PoolDeConexiones.asignarAlHilo(anterior);
+		}
+	}
+
+	@Override
+	public ResultadoAlquiler alquilarIdempotente(String claveIdempotencia, String nifCliente, String matricula,
+			Date fechaIni, Date fechaFin) throws SQLException {
+		PoolDeConexiones anterior = entrar(enrutador.fragmentoDe(matricula));
+		try {
+			return servicio.alquilarIdempotente(claveIdempotencia, nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			PoolDeConexiones.asignarAlHilo(anterior);
+		}
+	}
+
+	@Override
+	public List<ResultadoAlquiler> alquilarFlota(String nifCliente, List<String> matriculas, Date fechaIni, Date fechaFin)
+			throws SQLException {
+		PoolDeConexiones fragmento = null;
+		for (String matricula : matriculas) {
+			PoolDeConexiones pool = enrutador.fragmentoDe(matricula);
+			if (fragmento != null && pool != fragmento) {
+				throw new SQLFeatureNotSupportedException("Flota con vehiculos en varios fragmentos: reservelos por separado");
+			}
+			fragmento = pool;
+		}
+		if (fragmento == null) {
+			return new ArrayList<ResultadoAlquiler>();
+		}
+		PoolDeConexiones anterior = entrar(fragmento);
+		try {
+			return servicio.alquilarFlota(nifCliente, matriculas, fechaIni, fechaFin);
+		} finally {
+			PoolDeConexiones.asignarAlHilo(anterior);
+		}
+	}
+
+	@Override
+	public void anular_alquiler(String idReserva, String nifCliente, String matricula, Date fechaIni, Date fechaFin)
+			throws SQLException {
+		PoolDeConexiones anterior = entrar(enrutador.fragmentoDe(matricula));
+		try {
+			servicio.anular_alquiler(idReserva, nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			PoolDeConexiones.asignarAlHilo(anterior);
+		}
+	}
+
+	@Override
+	public int anularLote(List<Integer> idsReserva) throws SQLException {
+		Map<PoolDeConexiones, List<Integer>> grupos = new LinkedHashMap<PoolDeConexiones, List<Integer>>();
+		for (Integer id : idsReserva) {
+			PoolDeConexiones pool = id != null ? enrutador.fragmentoDeId(id) : null;
+			if (pool == null) {
+				continue; // No es de ningun fragmento: no existe
+			}
+			List<Integer> grupo = grupos.get(pool);
+			if (grupo == null) {
+				grupo = new ArrayList<Integer>();
+				grupos.put(pool, grupo);
+			}
+			grupo.add(id);
+		}
+
+		int anuladas = 0;
+		for (Map.Entry<PoolDeConexiones, List<Integer>> grupo : grupos.entrySet()) {
+			PoolDeConexiones anterior = entrar(grupo.getKey());
+			try {
+				anuladas += servicio.anularLote(grupo.getValue());
+			} finally {
+				PoolDeConexiones.asignarAlHilo(anterior);
+			}
+		}
+		return anuladas;
+	}
+
+	@Override
+	public void modificarAlquiler(int idReserva, Date nuevaFechaFin) throws SQLException {
+		PoolDeConexiones pool = enrutador.fragmentoDeId(idReserva);
+		if (pool == null) {
+			throw new AlquilerCochesException(AlquilerCochesException.RESERVA_NO_EXIST);
+		}
+		PoolDeConexiones anterior = entrar(pool);
+		try {
+			servicio.modificarAlquiler(idReserva, nuevaFechaFin);
+		} finally {
+			PoolDeConexiones.asignarAlHilo(anterior);
+		}
+	}
+
+	@Override
+	public Pagina<Reserva> listarReservas(final String nifCliente, String cursor, final int limite) throws SQLException {
+		return listar(cursor, limite, new Listado<Reserva>() {
+			@Override
+			Pagina<Reserva> pagina(String cursorFragmento) throws SQLException {
+				return servicio.listarReservas(nifCliente, cursorFragmento, limite);
+			}
+
+			@Override
+			String cursorDe(Reserva r) {
+				return ServicioImpl.cursorDe(r);
+			}
+
+			@Override
+			public int compare(Reserva a, Reserva b) {
+				int c = b.getFechaIni().compareTo(a.getFechaIni());
+				return c != 0 ? c : Integer.compare(b.getIdReserva(), a.getIdReserva());
+			}
+		});
+	}
+
+	@Override
+	public Pagina<Factura> listarFacturas(final String nifCliente, String cursor, final int limite) throws SQLException {
+		return listar(cursor, limite, new Listado<Factura>() {
+			@Override
+			Pagina<Factura> pagina(String cursorFragmento) throws SQLException {
+				return servicio.listarFacturas(nifCliente, cursorFragmento, limite);
+			}
+
+			@Override
+			String cursorDe(Factura f) {
+				return ServicioImpl.cursorDe(f);
+			}
+
+			@Override
+			public int compare(Factura a, Factura b) {
+				return Integer.compare(b.getNroFactura(), a.getNroFactura());
+			}
+		});
+	}
+
+	/** Un listado paginado de cada fragmento y su orden. */
+	private abstract static class Listado<T> implements Comparator<T> {
+		abstract Pagina<T> pagina(String cursorFragmento) throws SQLException;
+
+		abstract String cursorDe(T elemento);
+	}
+
+	/**
+	 * Pide una pagina a cada fragmento no agotado, mezcla y se queda con las
+	 * primeras. En el cursor, cada fragmento avanza solo hasta el ultimo de sus
+	 * elementos devueltos.
+	 */
+	private <T> Pagina<T> listar(String cursor, int limite, Listado<T> listado) throws SQLException {
+		Map<Integer, String> posiciones = leerCursor(cursor);
+		Map<Integer, List<T>> paginas = new TreeMap<Integer, List<T>>();
+		Map<Integer, String> siguientes = new TreeMap<Integer, String>();
+		List<T> todos = new ArrayList<T>();
+
+		for (Map.Entry<Integer, PoolDeConexiones> f : enrutador.getFragmentos().entrySet()) {
+			String posicion = posiciones.get(f.getKey());
+			if ("".equals(posicion)) {
+				continue; // Agotado
+			}
+			PoolDeConexiones anterior = entrar(f.getValue());
+			try {
+				Pagina<T> pagina = listado.pagina(posicion);
+				paginas.put(f.getKey(), pagina.getElementos());
+				siguientes.put(f.getKey(), pagina.getSiguienteCursor());
+				todos.addAll(pagina.getElementos());
+			} finally {
+				PoolDeConexiones.asignarAlHilo(anterior);
+			}
+		}
+
+		Collections.sort(todos, listado);
+		List<T> resultado = new ArrayList<T>(todos.subList(0, Math.min(Math.min(limite, ServicioImpl.MAX_LIMITE_PAGINA), todos.size())));
+		T ultimo = resultado.isEmpty() ? null : resultado.get(resultado.size() - 1);
+
+		Map<Integer, String> nuevas = new TreeMap<Integer, String>(posiciones);
+		boolean hayMas = false;
+		for (Map.Entry<Integer, List<T>> p : paginas.entrySet()) {
+			List<T> elementos = p.getValue();
+			int usados = 0;
+			// Cada pagina viene ordenada: los devueltos son los que no van despues del ultimo
+			while (ultimo != null && usados < elementos.size() && listado.compare(elementos.get(usados), ultimo) <= 0) {
+				usados++;
+			}
+			String nueva;
+			if (usados == elementos.size()) {
+				String siguiente = siguientes.get(p.getKey());
+				nueva = siguiente != null ? siguiente : "";
+			} else if (usados == 0) {
+				nueva = posiciones.get(p.getKey());
+			} else {
+				nueva = listado.cursorDe(elementos.get(usados - 1));
+			}
+			nuevas.put(p.getKey(), nueva);
+			hayMas |= !"".equals(nueva);
+		}
+		return new Pagina<T>(resultado, hayMas ? crearCursor(nuevas) : null);
+	}
+
+	/** Posicion por fragmento: sin entrada, desde el principio; "", agotado. */
+	private static String crearCursor(Map<Integer, String> posiciones) {
+		StringBuilder sb = new StringBuilder("S");
+		for (Map.Entry<Integer, String> p : posiciones.entrySet()) {
+			if (p.getValue() != null) {
+				sb.append(';').append(p.getKey()).append('=').append(p.getValue());
+			}
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static Map<Integer, String> leerCursor(String cursor) throws AlquilerCochesException {
+		Map<Integer, String> posiciones = new TreeMap<Integer, String>();
+		if (cursor == null) {
+			return posiciones;
+		}
+		try {
+			String[] partes = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII).split(";", -1);
+			if (!"S".equals(partes[0])) {
+				throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+			}
+			for (int i = 1; i < partes.length; i++) {
+				int igual = partes[i].indexOf('=');
+				posiciones.put(Integer.parseInt(partes[i].substring(0, igual)), partes[i].substring(igual + 1));
+			}
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			// Base64 o numero mal formados, o una parte sin '='
+			throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+		}
+		return posiciones;
+	}
+
+	private static PoolDeConexiones entrar(PoolDeConexiones pool) {
+		PoolDeConexiones anterior = PoolDeConexiones.getAsignadoAlHilo();
+		PoolDeConexiones.asignarAlHilo(pool);
+		return anterior;
+	}
+
+	/**
+	 * Copia los datos de referencia de una base de datos origen a todos los
+	 * fragmentos (insertando o actualizando) y cada vehiculo a su fragmento.
+	 * No borra lo que ya no este en el origen.
+	 *
+	 * @param origen pool de la base de datos con los datos maestros
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void replicarReferencia(PoolDeConexiones origen) throws SQLException {
+		List<List<Object[]>> tablas = new ArrayList<List<Object[]>>();
+		for (String[][] tabla : REFERENCIA) {
+			tablas.add(leer(origen, tabla));
+		}
+		List<Object[]> vehiculos = leer(origen, VEHICULOS);
+
+		for (Map.Entry<Integer, PoolDeConexiones> f : enrutador.getFragmentos().entrySet()) {
+			List<Object[]> propios = new ArrayList<Object[]>();
+			for (Object[] v : vehiculos) {
+				if (enrutador.numeroDe((String) v[0]) == f.getKey()) {
+					propios.add(v);
+				}
+			}
+
+			Connection con = null;
+			try {
+				con = f.getValue().getConnection();
+				for (int i = 0; i < REFERENCIA.length; i++) {
+					escribir(con, REFERENCIA[i], tablas.get(i));
+				}
+				escribir(con, VEHICULOS, propios);
+				con.commit();
+				LOGGER.info("Datos de referencia replicados en el fragmento {} ({} vehiculos)", f.getKey(), propios.size());
+			} catch (SQLException e) {
+				LOGGER.error("Error replicando los datos de referencia en el fragmento {}: {}", f.getKey(), e.getMessage());
+				if (con != null) {
+					try {
+						con.rollback();
+					} catch (SQLException exRollback) {
+						LOGGER.error("Error CRÍTICO al intentar rollback en replicarReferencia.", exRollback);
+					}
+				}
+				throw e;
+			} finally {
+				try {
+					if (con != null) {
+						con.close();
+					}
+				} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en replicarReferencia", e); }
+			}
+		}
+	}
+
+	private static List<Object[]> leer(PoolDeConexiones origen, String[][] tabla) throws SQLException {
+		List<String> columnas = columnas(tabla);
+		List<Object[]> filas = new ArrayList<Object[]>();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			con = origen.getConnection();
+			st = con.prepareStatement("SELECT " + String.join(", ", columnas) + " FROM " + tabla[0][0]);
+			st.setFetchSize(TAMANO_LOTE);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				Object[] fila = new Object[columnas.size()];
+				for (int i = 0; i < fila.length; i++) {
+					fila[i] = rs.getObject(i + 1);
+				}
+				filas.add(fila);
+			}
+			con.commit();
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en replicarReferencia", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en replicarReferencia", e); }
+			try { if (con != null) con.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando Connection en replicarReferencia", e); }
+		}
+		return filas;
+	}
+
+	/** MERGE por lotes de las filas en la tabla, por su clave. */
+	private static void escribir(Connection con, String[][] tabla, List<Object[]> filas) throws SQLException {
+		List<String> columnas = columnas(tabla);
+		StringBuilder sql = new StringBuilder("MERGE INTO ").append(tabla[0][0]).append(" t USING (SELECT ");
+		for (int i = 0; i < columnas.size(); i++) {
+			sql.append(i > 0 ? ", " : "").append("? ").append(columnas.get(i));
+		}
+		sql.append(" FROM dual) s ON (");
+		for (int i = 0; i < tabla[1].length; i++) {
+			sql.append(i > 0 ? " AND " : "").append("t.").append(tabla[1][i]).append(" = s.").append(tabla[1][i]);
+		}
+		sql.append(") WHEN MATCHED THEN UPDATE SET ");
+		for (int i = 0; i < tabla[2].length; i++) {
+			sql.append(i > 0 ? ", " : "").append("t.").append(tabla[2][i]).append(" = s.").append(tabla[2][i]);
+		}
+		sql.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", columnas)).append(") VALUES (s.")
+				.append(String.join(", s.", columnas)).append(")");
+
+		PreparedStatement st = con.prepareStatement(sql.toString());
+		try {
+			int pendientes = 0;
+			for (Object[] fila : filas) {
+				for (int i = 0; i < fila.length; i++) {
+					st.setObject(i + 1, fila[i]);
+				}
+				st.addBatch();
+				if (++pendientes == TAMANO_LOTE) {
+					st.executeBatch();
+					pendientes = 0;
+				}
+			}
+			if (pendientes > 0) {
+				st.executeBatch();
+			}
+		} finally {
+			st.close();
+		}
+	}
+
+	private static List<String> columnas(String[][] tabla) {
+		List<String> columnas = new ArrayList<String>();
+		Collections.addAll(columnas, tabla[1]);
+		Collections.addAll(columnas, tabla[2]);
+		return columnas;
+	}
+}
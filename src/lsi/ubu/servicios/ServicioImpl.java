@@ -1,19 +1,36 @@
 package lsi.ubu.servicios;
 
 import java.math.BigDecimal;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Types; // Importación necesaria para java.sql.Types.DATE
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import lsi.ubu.Misc;
 import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.util.Metricas;
+import lsi.ubu.util.Metricas.Operacion;
+import lsi.ubu.util.PlazoLimite;
 import lsi.ubu.util.PoolDeConexiones;
 // Asumiendo que estas clases de utilidad para errores Oracle son parte de tu proyecto
 import lsi.ubu.util.exceptions.SGBDError; 
@@ -24,11 +41,398 @@ public class ServicioImpl implements Servicio {
 
 	private static final int DIAS_DE_ALQUILER = 4; 
 
+	/** Filas por envio al cargar una anulacion por lotes. */
+	private static final int TAMANO_LOTE = 1000;
+
+	/**
+	 * Anulacion en un solo bloque: borra la reserva si coincide con los datos
+	 * dados (DELETE ... RETURNING) y borra su factura, que se busca en
+	 * FACTURAS_RESERVAS. Antes se quita la factura pendiente, si la hay: si el
+	 * generador la esta creando, se espera a que confirme y entonces se
+	 * encuentra y se borra. Si la factura es de una flota (tiene mas reservas)
+	 * no se toca nada y se devuelve -1 filas.
+	 */
+	private static final String SQL_ANULAR =
+		"DECLARE " +
+		"  v_id reservas.idReserva%TYPE := ?; " +
+		"  v_dias NUMBER := ?; " +
+		"  v_ranura NUMBER := ?; " +
+		"  v_importe facturas.importe%TYPE := 0; " +
+		"  v_cliente reservas.cliente%TYPE; " +
+		"  v_fin reservas.fecha_fin%TYPE; " +
+		"  v_filas NUMBER; " +
+		"  v_otras NUMBER; " +
+		"  v_nro facturas.nroFactura%TYPE; " +
+		"BEGIN " +
+		"  DELETE FROM facturas_pendientes WHERE idReserva = v_id; " +
+		"  DELETE FROM reservas " +
+		"   WHERE idReserva = v_id AND cliente = ? AND matricula = ? " +
+		"     AND fecha_ini = TRUNC(?) AND NVL(fecha_fin, fecha_ini + v_dias) = TRUNC(?) " +
+		"  RETURNING cliente, fecha_fin INTO v_cliente, v_fin; " +
+		"  v_filas := SQL%ROWCOUNT; " +
+		"  IF v_filas = 1 THEN " +
+		"    SELECT MIN(nroFactura) INTO v_nro FROM facturas_reservas WHERE idReserva = v_id; " +
+		"    SELECT COUNT(*) INTO v_otras FROM facturas_reservas WHERE nroFactura = v_nro AND idReserva <> v_id; " +
+		"    IF v_otras > 0 THEN " +
+		"      v_filas := -1; " +
+		"    END IF; " +
+		"  END IF; " +
+		"  IF v_filas = 1 THEN " +
+		"    IF v_nro IS NOT NULL THEN " +
+		"      DELETE FROM facturas_reservas WHERE nroFactura = v_nro; " +
+		"      DELETE FROM lineas_factura WHERE nroFactura = v_nro; " +
+		"      DELETE FROM facturas WHERE nroFactura = v_nro RETURNING importe INTO v_importe; " +
+		"    END IF; " +
+		"    " + TotalesClientes.crearRanuras("SELECT v_cliente nif FROM dual") + "; " +
+		"    UPDATE clientes_totales SET importe = importe - v_importe, reservas = reservas - 1 " +
+		"     WHERE nif = v_cliente AND ranura = v_ranura; " +
+		"  END IF; " +
+		"  ? := v_filas; " +
+		"  ? := v_nro; " +
+		"  ? := v_fin; " +
+		"END;";
+
+	/** Crea las ranuras de totales de los clientes del lote que aun no las tienen. */
+	private static final String SQL_CREAR_RANURAS_LOTE =
+		TotalesClientes.crearRanuras("SELECT DISTINCT cliente nif FROM anulaciones_lote WHERE cliente IS NOT NULL");
+
+	/**
+	 * Resta de los totales de cada cliente lo anulado en el lote. Las reservas
+	 * de una flota comparten factura: su importe se resta una sola vez. Las
+	 * ranuras ya existen (SQL_CREAR_RANURAS_LOTE).
+	 */
+	private static final String SQL_RESTAR_TOTALES_LOTE =
+		"MERGE INTO clientes_totales t " +
+		"USING (SELECT cliente, SUM(importe) importe, SUM(reservas) reservas " +
+		"         FROM (SELECT cliente, NVL(MAX(CASE WHEN nroFactura IS NOT NULL THEN importe END), 0) importe, COUNT(*) reservas " +
+		"                 FROM anulaciones_lote WHERE cliente IS NOT NULL GROUP BY cliente, nroFactura) " +
+		"        GROUP BY cliente) s " +
+		"ON (t.nif = s.cliente AND t.ranura = ?) " +
+		"WHEN MATCHED THEN UPDATE SET t.importe = t.importe - s.importe, t.reservas = t.reservas - s.reservas";
+
+	/** Carga una reserva a anular en la tabla temporal. */
+	private static final String SQL_CARGAR_LOTE =
+		"INSERT INTO anulaciones_lote (idReserva, cliente) " +
+		"SELECT idReserva, cliente FROM reservas WHERE idReserva = ?";
+
+	/**
+	 * Asocia cada reserva del lote con su factura (FACTURAS_RESERVAS) y el
+	 * importe de esta.
+	 */
+	private static final String SQL_EMPAREJAR_FACTURAS =
+		"MERGE INTO anulaciones_lote t " +
+		"USING (SELECT fr.idReserva, f.nroFactura, f.importe " +
+		"         FROM facturas_reservas fr JOIN facturas f ON f.nroFactura = fr.nroFactura " +
+		"        WHERE fr.idReserva IN (SELECT idReserva FROM anulaciones_lote)) s " +
+		"ON (t.idReserva = s.idReserva) " +
+		"WHEN MATCHED THEN UPDATE SET t.nroFactura = s.nroFactura, t.importe = s.importe";
+
+	/**
+	 * Reservas del lote de una flota que no se anula entera: su factura cubre
+	 * tambien reservas que se quedan.
+	 */
+	private static final String SQL_FLOTAS_INCOMPLETAS =
+		"SELECT COUNT(*) FROM anulaciones_lote a " +
+		"WHERE EXISTS (SELECT 1 FROM facturas_reservas fr " +
+		"               WHERE fr.nroFactura = a.nroFactura " +
+		"                 AND fr.idReserva NOT IN (SELECT idReserva FROM anulaciones_lote))";
+
+	/**
+	 * Validacion del alquiler en un solo viaje: una fila con la existencia del
+	 * cliente, los datos del vehiculo, modelo y combustible (nulos si el
+	 * vehiculo no existe) y si hay alguna reserva solapada. Parametros: nif,
+	 * matricula, fin efectivo, inicio, matricula.
+	 */
+	private static final String SQL_VALIDAR_ALQUILER =
+		"SELECT (SELECT COUNT(*) FROM clientes WHERE nif = ?) AS cliente_existe, " +
+		"       m.id_modelo, m.precio_cada_dia, m.capacidad_deposito, m.tipo_combustible, " +
+		"       pc.tipo_combustible AS pc_tipo, pc.precio_por_litro, " +
+		"       CASE WHEN EXISTS (SELECT 1 FROM reservas r WHERE r.matricula = ? " +
+		"                            AND r.fecha_ini < ? AND NVL(r.fecha_fin, r.fecha_ini + " + Misc.OPEN_END_DAYS + ") > ?) " +
+		"            THEN 1 ELSE 0 END AS ocupado " +
+		"FROM dual " +
+		"LEFT JOIN vehiculos v ON v.matricula = ? " +
+		"LEFT JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"LEFT JOIN precio_combustible pc ON m.tipo_combustible = pc.tipo_combustible";
+
+	/**
+	 * Validacion e insercion de la reserva en un solo viaje y sin carrera:
+	 * bloquea la fila del vehiculo (FOR UPDATE) y solo entonces inserta con
+	 * INSERT ... SELECT ... WHERE NOT EXISTS (solape). Dos reservas del mismo
+	 * vehiculo se ordenan en el bloqueo y la segunda ve la primera confirmada;
+	 * en SERIALIZABLE, en lugar de no verla, el bloqueo da ORA-08177. Devuelve
+	 * el codigo de AlquilerCochesException (0 si se inserto), el idReserva y
+	 * los datos del modelo. Parametros: nif, matricula, inicio, fin (puede ser
+	 * nulo), fin efectivo y los de salida.
+	 */
+	private static final String SQL_RESERVAR_ATOMICO =
+		"DECLARE " +
+		"  v_nif clientes.nif%TYPE := ?; " +
+		"  v_matricula vehiculos.matricula%TYPE := ?; " +
+		"  v_ini DATE := ?; " +
+		"  v_fin DATE := ?; " +
+		"  v_fin_efectivo DATE := ?; " +
+		"  v_existe NUMBER; " +
+		"  v_codigo NUMBER := 0; " +
+		"  v_id reservas.idReserva%TYPE; " +
+		"  v_modelo modelos.id_modelo%TYPE; " +
+		"  v_precio_dia modelos.precio_cada_dia%TYPE; " +
+		"  v_capacidad modelos.capacidad_deposito%TYPE; " +
+		"  v_combustible modelos.tipo_combustible%TYPE; " +
+		"  v_precio_litro precio_combustible.precio_por_litro%TYPE; " +
+		"BEGIN " +
+		"  SELECT COUNT(*) INTO v_existe FROM clientes WHERE nif = v_nif; " +
+		"  IF v_existe = 0 THEN " +
+		"    v_codigo := " + AlquilerCochesException.CLIENTE_NO_EXIST + "; " +
+		"  ELSE " +
+		"    BEGIN " +
+		"      SELECT m.id_modelo, m.precio_cada_dia, m.capacidad_deposito, m.tipo_combustible, pc.precio_por_litro " +
+		"        INTO v_modelo, v_precio_dia, v_capacidad, v_combustible, v_precio_litro " +
+		"        FROM vehiculos v JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"        JOIN precio_combustible pc ON m.tipo_combustible = pc.tipo_combustible " +
+		"       WHERE v.matricula = v_matricula " +
+		"         FOR UPDATE OF v.matricula; " +
+		"      INSERT INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin) " +
+		"      SELECT seq_reservas.nextval, v_nif, v_matricula, v_ini, v_fin FROM dual " +
+		"       WHERE NOT EXISTS (SELECT 1 FROM reservas r WHERE r.matricula = v_matricula " +
+		"                            AND r.fecha_ini < v_fin_efectivo AND NVL(r.fecha_fin, r.fecha_ini + " + Misc.OPEN_END_DAYS + ") > v_ini); " +
+		"      IF SQL%ROWCOUNT = 0 THEN " +
+		"        v_codigo := " + AlquilerCochesException.VEHICULO_OCUPADO + "; " +
+		"      ELSE " +
+		"        v_id := seq_reservas.currval; " +
+		"      END IF; " +
+		"    EXCEPTION WHEN NO_DATA_FOUND THEN " +
+		"      v_codigo := " + AlquilerCochesException.VEHICULO_NO_EXIST + "; " +
+		"    END; " +
+		"  END IF; " +
+		"  ? := v_codigo; ? := v_id; ? := v_modelo; ? := v_precio_dia; " +
+		"  ? := v_capacidad; ? := v_combustible; ? := v_precio_litro; " +
+		"END;";
+
+	/**
+	 * Reserva de una flota en un solo viaje, con los vehiculos ya cargados en
+	 * FLOTA_LOTE: comprueba el cliente, bloquea los vehiculos de uno en uno por
+	 * orden de matricula (dos flotas con vehiculos comunes los piden en el
+	 * mismo orden y no se interbloquean), busca solapes de todos a la vez y, si
+	 * no hay, numera e inserta todas las reservas con una sola sentencia.
+	 * Devuelve el codigo de AlquilerCochesException (0 si se insertaron).
+	 * Parametros: nif, inicio, fin (puede ser nulo), fin efectivo y el de
+	 * salida.
+	 */
+	private static final String SQL_RESERVAR_FLOTA =
+		"DECLARE " +
+		"  v_nif clientes.nif%TYPE := ?; " +
+		"  v_ini DATE := ?; " +
+		"  v_fin DATE := ?; " +
+		"  v_fin_efectivo DATE := ?; " +
+		"  v_existe NUMBER; " +
+		"  v_codigo NUMBER := 0; " +
+		"BEGIN " +
+		"  SELECT COUNT(*) INTO v_existe FROM clientes WHERE nif = v_nif; " +
+		"  IF v_existe = 0 THEN " +
+		"    v_codigo := " + AlquilerCochesException.CLIENTE_NO_EXIST + "; " +
+		"  ELSE " +
+		"    FOR f IN (SELECT matricula FROM flota_lote ORDER BY matricula) LOOP " +
+		"      v_existe := 0; " +
+		"      FOR b IN (SELECT v.matricula FROM vehiculos v JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"                  JOIN precio_combustible pc ON m.tipo_combustible = pc.tipo_combustible " +
+		"                 WHERE v.matricula = f.matricula FOR UPDATE OF v.matricula) LOOP " +
+		"        v_existe := 1; " +
+		"      END LOOP; " +
+		"      IF v_existe = 0 THEN " +
+		"        v_codigo := " + AlquilerCochesException.VEHICULO_NO_EXIST + "; " +
+		"        EXIT; " +
+		"      END IF; " +
+		"    END LOOP; " +
+		"    IF v_codigo = 0 THEN " +
+		"      SELECT COUNT(*) INTO v_existe FROM reservas r JOIN flota_lote f ON r.matricula = f.matricula " +
+		"       WHERE r.fecha_ini < v_fin_efectivo AND NVL(r.fecha_fin, r.fecha_ini + " + Misc.OPEN_END_DAYS + ") > v_ini AND ROWNUM = 1; " +
+		"      IF v_existe > 0 THEN " +
+		"        v_codigo := " + AlquilerCochesException.VEHICULO_OCUPADO + "; " +
+		"      ELSE " +
+		"        UPDATE flota_lote SET idReserva = seq_reservas.nextval; " +
+		"        INSERT INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin) " +
+		"        SELECT idReserva, v_nif, matricula, v_ini, v_fin FROM flota_lote; " +
+		"      END IF; " +
+		"    END IF; " +
+		"  END IF; " +
+		"  ? := v_codigo; " +
+		"END;";
+
+	/** Reserva y precios de cada vehiculo de la flota recien insertada. */
+	private static final String SQL_DATOS_FLOTA =
+		"SELECT f.idReserva, f.matricula, m.precio_cada_dia, m.capacidad_deposito, m.tipo_combustible, pc.precio_por_litro " +
+		"FROM flota_lote f " +
+		"JOIN vehiculos v ON v.matricula = f.matricula " +
+		"JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"JOIN precio_combustible pc ON m.tipo_combustible = pc.tipo_combustible " +
+		"ORDER BY f.matricula";
+
+	/**
+	 * Reserva a modificar con sus precios, la factura que le corresponde
+	 * (FACTURAS_RESERVAS, como en la anulacion) y cuantas reservas cubre esa
+	 * factura.
+	 */
+	private static final String SQL_DATOS_MODIFICACION =
+		"SELECT r.cliente, r.matricula, r.fecha_ini, r.fecha_fin, m.id_modelo, m.precio_cada_dia, fr.nroFactura, " +
+		"       (SELECT COUNT(*) FROM facturas_reservas o WHERE o.nroFactura = fr.nroFactura) AS reservas_factura " +
+		"FROM reservas r " +
+		"JOIN vehiculos v ON r.matricula = v.matricula " +
+		"JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"LEFT JOIN facturas_reservas fr ON fr.idReserva = r.idReserva " +
+		"WHERE r.idReserva = ?";
+
+	/** Elementos maximos por pagina en los listados. */
+	static final int MAX_LIMITE_PAGINA = 500;
+
+	/**
+	 * Primera pagina de reservas de un cliente, de la mas reciente a la mas
+	 * antigua, incluidas las archivadas. Cada tabla se recorre por separado y
+	 * en orden por su indice (reservas_cliente_fecha y
+	 * reservas_hist_cliente_fecha), parando en las filas pedidas; solo esas,
+	 * como mucho el doble, se mezclan y se vuelven a cortar. Asi una pagina
+	 * cuesta lo mismo sea cual sea el historial del cliente. Se pide una fila
+	 * de mas para saber si hay pagina siguiente. Es publica para poder revisar
+	 * su plan de ejecucion. Parametros de cada rama: nif, filas; y al final
+	 * filas.
+	 */
+	public static final String SQL_RESERVAS_PRIMERA = paginaReservas("");
+
+	/**
+	 * Pagina siguiente: las reservas anteriores a (fecha_ini, idReserva) del
+	 * cursor, con las mismas dos ramas que la primera pagina. El primer
+	 * predicado acota el recorrido del indice y el segundo descarta las de la
+	 * misma fecha ya devueltas. La fecha viaja como texto (yyyyMMddHHmmss) para
+	 * compararla con segundos y sin convertir la columna. Parametros de cada
+	 * rama: nif, fecha, fecha, idReserva, filas; y al final filas.
+	 */
+	public static final String SQL_RESERVAS_SIGUIENTE = paginaReservas(
+		"AND fecha_ini <= TO_DATE(?, 'YYYYMMDDHH24MISS') " +
+		"AND (fecha_ini < TO_DATE(?, 'YYYYMMDDHH24MISS') OR idReserva < ?) ");
+
+	/** Primera pagina de facturas de un cliente, de la ultima a la primera. Parametros: nif, filas. */
+	private static final String SQL_FACTURAS_PRIMERA =
+		"SELECT * FROM (SELECT nroFactura, importe FROM facturas WHERE cliente = ? ORDER BY nroFactura DESC) " +
+		"WHERE ROWNUM <= ?";
+
+	/** Pagina siguiente de facturas. Parametros: nif, nroFactura, filas. */
+	private static final String SQL_FACTURAS_SIGUIENTE =
+		"SELECT * FROM (SELECT nroFactura, importe FROM facturas WHERE cliente = ? AND nroFactura < ? ORDER BY nroFactura DESC) " +
+		"WHERE ROWNUM <= ?";
+
+	/** Consulta de una pagina de reservas: cada tabla cortada por separado y la mezcla cortada otra vez. */
+	private static String paginaReservas(String condicion) {
+		String rama = "SELECT * FROM (SELECT idReserva, matricula, fecha_ini, fecha_fin FROM %s " +
+			"WHERE cliente = ? " + condicion + "ORDER BY fecha_ini DESC, idReserva DESC) WHERE ROWNUM <= ?";
+		return "SELECT * FROM (" + String.format(rama, "reservas") + " UNION ALL " + String.format(rama, "reservas_hist") +
+			" ORDER BY fecha_ini DESC, idReserva DESC) WHERE ROWNUM <= ?";
+	}
+
+	/** Mapa de ocupacion a mantener tras cada commit (opcional). */
+	private OcupacionVehiculos ocupacion;
+
+	/** Si es true la factura se deja pendiente para el GeneradorFacturas. */
+	private boolean facturacionDiferida;
+
+	/** Filtros para rechazar clientes y vehiculos inexistentes sin ir a la BD (opcional). */
+	private FiltrosExistencia filtros;
+
+	/** Si es true la reserva se valida e inserta con SQL_RESERVAR_ATOMICO. */
+	private boolean reservaAtomica;
+
+	/**
+	 * Activa el mantenimiento del mapa de ocupacion de la flota.
+	 * 
+	 * @param ocupacion mapa a actualizar, o null para no mantener ninguno
+	 */
+	public void setOcupacion(OcupacionVehiculos ocupacion) {
+		this.ocupacion = ocupacion;
+	}
+
+	/**
+	 * Activa la facturacion diferida: el alquiler confirma la reserva y deja
+	 * la factura en FACTURAS_PENDIENTES, que vacia un {@link GeneradorFacturas}.
+	 * En este modo el alquiler devuelve 0 como numero de factura.
+	 * 
+	 * @param facturacionDiferida true para diferir la creacion de facturas
+	 */
+	public void setFacturacionDiferida(boolean facturacionDiferida) {
+		this.facturacionDiferida = facturacionDiferida;
+	}
+
+	/**
+	 * Activa la reserva atomica: la comprobacion de solapes y la insercion se
+	 * hacen en una sola sentencia bajo el bloqueo del vehiculo, en un solo
+	 * viaje a la BD en lugar de dos, y no dependen del nivel de aislamiento.
+	 * Sin ella el alquiler comprueba e inserta sin bloquear el vehiculo, y dos
+	 * alquileres, o un alquiler y la ampliacion de
+	 * {@link #modificarAlquiler}, que se crucen pueden solaparse.
+	 * 
+	 * @param reservaAtomica true para reservar con bloqueo del vehiculo
+	 */
+	public void setReservaAtomica(boolean reservaAtomica) {
+		this.reservaAtomica = reservaAtomica;
+	}
+
+	/**
+	 * Activa el rechazo previo de clientes y vehiculos inexistentes con filtros
+	 * de Bloom, sin pedir conexion al pool.
+	 * 
+	 * @param filtros filtros a consultar, o null para ir siempre a la BD
+	 */
+	public void setFiltros(FiltrosExistencia filtros) {
+		this.filtros = filtros;
+	}
+
+	/**
+	 * Fin del intervalo que una reserva ocupa en el mapa: el mismo con el que
+	 * la bloquean las comprobaciones de solapamiento, asi que sin fecha de fin
+	 * son {@link Misc#OPEN_END_DAYS} dias y no los que se facturan.
+	 */
+	private static java.sql.Date finOcupado(Date ini, Date fin) {
+		return new java.sql.Date((fin != null ? fin : Misc.addDays(ini, Misc.OPEN_END_DAYS)).getTime());
+	}
+
+	/**
+	 * Refleja en el mapa de ocupacion un cambio ya confirmado. Un fallo aqui no
+	 * deshace la operacion: el mapa se corrige en la siguiente reconstruccion.
+	 */
+	private void actualizarOcupacion(String matricula, Date ini, Date fin, boolean ocupar) {
+		if (ocupacion == null) {
+			return;
+		}
+		try {
+			if (ocupar) {
+				ocupacion.marcar(matricula, ini, fin);
+			} else {
+				ocupacion.liberar(matricula, ini, fin);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warn("No se pudo actualizar el mapa de ocupacion de {}: {}", matricula, e.getMessage());
+		}
+	}
+
 	@Override
 	public void alquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException {
+		alquilarIdempotente(null, nifCliente, matricula, fechaIni, fechaFin);
+	}
+
+	@Override
+	public ResultadoAlquiler alquilarIdempotente(String claveIdempotencia, String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException {
+		String huella = null;
+		if (claveIdempotencia != null) {
+			huella = ClavesIdempotencia.huella(nifCliente, matricula, fechaIni, fechaFin);
+			ResultadoAlquiler previo = ClavesIdempotencia.enCache(claveIdempotencia, huella);
+			if (previo != null) {
+				LOGGER.info("Alquiler repetido con clave {}: se devuelve {}", claveIdempotencia, previo);
+				return previo;
+			}
+		}
+
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 		Connection con = null;
 		PreparedStatement st = null;
+		CallableStatement cst = null;
 		ResultSet rs = null;
 
 		long diasDiff = DIAS_DE_ALQUILER; 
@@ -62,401 +466,1043 @@ public class ServicioImpl implements Servicio {
             sqlFechaFinEfectivaParaComprobacion = new java.sql.Date(cal.getTimeInMillis());
         }
 
+		// Claves que seguro no existen: se rechazan sin pedir conexion, en el
+		// mismo orden que las comprobaciones contra la BD
+		if (filtros != null) {
+			if (!filtros.puedeExistirCliente(nifCliente)) {
+				throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST);
+			}
+			if (!filtros.puedeExistirVehiculo(matricula)) {
+				throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_NO_EXIST);
+			}
+		}
 
+		long inicio = System.nanoTime();
 		try {
 			con = pool.getConnection();
 			con.setAutoCommit(false); 
 
-			// 1. Comprobar existencia del cliente
-			String sqlCheckCliente = "SELECT 1 FROM Clientes WHERE NIF = ?";
-			st = con.prepareStatement(sqlCheckCliente);
-			st.setString(1, nifCliente);
-			rs = st.executeQuery();
-			if (!rs.next()) {
-			    if(rs!=null) rs.close(); 
-			    if(st!=null) st.close();
-				throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST);
+			// 0. Reservar la clave de idempotencia; si ya se uso, devolver lo que se creo
+			if (claveIdempotencia != null) {
+				ResultadoAlquiler previo = ClavesIdempotencia.reservar(con, claveIdempotencia, huella);
+				if (previo != null) {
+					return previo;
+				}
 			}
-			rs.close();
-			st.close();
 
-			// 2. Obtener datos del vehículo y precio del combustible
-			String queryVehiculoPrecio = 
-				"SELECT m.ID_MODELO, m.PRECIO_CADA_DIA, m.CAPACIDAD_DEPOSITO, m.TIPO_COMBUSTIBLE, pc.PRECIO_POR_LITRO " +
-				"FROM VEHICULOS v " +
-				"INNER JOIN MODELOS m ON v.ID_MODELO = m.ID_MODELO " +
-				"INNER JOIN PRECIO_COMBUSTIBLE pc ON m.TIPO_COMBUSTIBLE = pc.TIPO_COMBUSTIBLE " +
-				"WHERE v.MATRICULA = ?";
-			st = con.prepareStatement(queryVehiculoPrecio);
-			st.setString(1, matricula);
-			rs = st.executeQuery();
-			if (!rs.next()) {
-			    if(rs!=null) rs.close(); 
-			    if(st!=null) st.close();
+			BigDecimal precioCadaDia;
+			int capacidadDeposito;
+			BigDecimal precioPorLitro;
+			int idModelo;
+			String tipoCombustible;
+			int idReserva;
+			int GestiCanvis;
+			if (reservaAtomica) {
+				// 1-4. Validar, bloquear el vehiculo e insertar en un solo viaje
+				cst = con.prepareCall(SQL_RESERVAR_ATOMICO);
+				cst.setString(1, nifCliente);
+				cst.setString(2, matricula);
+				cst.setDate(3, sqlFechaIni);
+				if (sqlFechaFinParaInsertar != null) {
+					cst.setDate(4, sqlFechaFinParaInsertar);
+				} else {
+					cst.setNull(4, Types.DATE);
+				}
+				cst.setDate(5, sqlFechaFinEfectivaParaComprobacion);
+				cst.registerOutParameter(6, Types.INTEGER);
+				cst.registerOutParameter(7, Types.INTEGER);
+				cst.registerOutParameter(8, Types.INTEGER);
+				cst.registerOutParameter(9, Types.NUMERIC);
+				cst.registerOutParameter(10, Types.INTEGER);
+				cst.registerOutParameter(11, Types.VARCHAR);
+				cst.registerOutParameter(12, Types.NUMERIC);
+				cst.execute();
+
+				int codigo = cst.getInt(6);
+				if (codigo != 0) {
+					throw new AlquilerCochesException(codigo);
+				}
+				idReserva = cst.getInt(7);
+				idModelo = cst.getInt(8);
+				precioCadaDia = cst.getBigDecimal(9);
+				capacidadDeposito = cst.getInt(10);
+				tipoCombustible = cst.getString(11);
+				precioPorLitro = cst.getBigDecimal(12);
+				cst.close();
+			} else {
+				// 1-3. Cliente, datos del vehículo y precio, y solapamiento en una sola consulta
+				st = con.prepareStatement(SQL_VALIDAR_ALQUILER);
+				st.setString(1, nifCliente);
+				st.setString(2, matricula);
+				st.setDate(3, sqlFechaFinEfectivaParaComprobacion);
+				st.setDate(4, sqlFechaIni);
+				st.setString(5, matricula);
+				rs = st.executeQuery();
+				rs.next();
+
+				// Mismo orden de comprobaciones que con consultas separadas
+				if (rs.getInt("CLIENTE_EXISTE") == 0) {
+					throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST);
+				}
+				rs.getString("PC_TIPO");
+				if (rs.wasNull()) {
+					throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_NO_EXIST);
+				}
+				if (rs.getInt("OCUPADO") == 1) {
+					throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO);
+				}
+
+				precioCadaDia = rs.getBigDecimal("PRECIO_CADA_DIA");
+				capacidadDeposito = rs.getInt("CAPACIDAD_DEPOSITO");
+				precioPorLitro = rs.getBigDecimal("PRECIO_POR_LITRO");
+				idModelo = rs.getInt("ID_MODELO");
+				tipoCombustible = rs.getString("TIPO_COMBUSTIBLE");
+				rs.close();
+				st.close();
+
+				// 4. Insertar la reserva
+				String sqlInsertReserva = "INSERT INTO RESERVAS (IDRESERVA, CLIENTE, MATRICULA, FECHA_INI, FECHA_FIN) VALUES (seq_reservas.nextVal, ?, ?, ?, ?)";
+				st = con.prepareStatement(sqlInsertReserva, new String[] { "IDRESERVA" });
+				st.setString(1, nifCliente);
+				st.setString(2, matricula);
+				st.setDate(3, sqlFechaIni);
+				if (sqlFechaFinParaInsertar != null) {
+					st.setDate(4, sqlFechaFinParaInsertar);
+				} else {
+					st.setNull(4, Types.DATE); // MODIFICACIÓN CLAVE: Inserta NULL para pasar el Test Caso 4
+				}
+				GestiCanvis = st.executeUpdate();
+	            if (GestiCanvis == 0) { 
+	                throw new SQLException("Error al insertar la reserva, ninguna fila afectada.");
+	            }
+				rs = st.getGeneratedKeys();
+				rs.next();
+				idReserva = rs.getInt(1);
+				rs.close();
+				st.close();
+			}
+
+			// 5. Crear factura y sus líneas, o dejarla pendiente
+			ResultadoAlquiler resultado;
+			if (facturacionDiferida) {
+				st = con.prepareStatement("INSERT INTO FACTURAS_PENDIENTES (IDRESERVA) VALUES (?)");
+				st.setInt(1, idReserva);
+				st.executeUpdate();
+				st.close();
+
+				// El importe lo suma el generador al crear la factura
+				TotalesClientes.acumular(con, nifCliente, BigDecimal.ZERO, 1);
+				resultado = new ResultadoAlquiler(idReserva, 0);
+			} else {
+				BigDecimal diasFactura = new BigDecimal(diasDiff);
+				BigDecimal capacidadDepositoComoBigDecimal = new BigDecimal(capacidadDeposito);
+				BigDecimal precioAlquiler = precioCadaDia.multiply(diasFactura);
+				BigDecimal precioCombustible = precioPorLitro.multiply(capacidadDepositoComoBigDecimal);
+				BigDecimal precioTotalFactura = precioAlquiler.add(precioCombustible);
+
+				int nroFactura;
+				st = con.prepareStatement("SELECT seq_num_fact.nextVal AS valor FROM dual");
+				rs = st.executeQuery();
+				if (!rs.next()) {
+				    if(rs!=null) rs.close();
+				    if(st!=null) st.close();
+					throw new SQLException("No se pudo obtener el siguiente valor de la secuencia de facturas.");
+				}
+				nroFactura = rs.getInt("valor");
+				rs.close();
+				st.close();
+			
+				String sqlInsertFactura = "INSERT INTO FACTURAS (NROFACTURA, CLIENTE, IMPORTE) VALUES (?, ?, ?)";
+				st = con.prepareStatement(sqlInsertFactura);
+				st.setInt(1, nroFactura);
+				st.setString(2, nifCliente);
+				st.setBigDecimal(3, precioTotalFactura);
+				GestiCanvis = st.executeUpdate();
+	            if (GestiCanvis == 0) {
+	                throw new SQLException("Error al insertar la factura, ninguna fila afectada.");
+	            }
+				st.close();
+
+				String sqlInsertLineaAlquiler = "INSERT INTO LINEAS_FACTURA (NROFACTURA, CONCEPTO, IMPORTE) VALUES (?, ?, ?)";
+				st = con.prepareStatement(sqlInsertLineaAlquiler);
+				st.setInt(1, nroFactura);
+				st.setString(2, diasDiff + " dias de alquiler, vehiculo modelo " + idModelo);
+				st.setBigDecimal(3, precioAlquiler);
+				GestiCanvis = st.executeUpdate();
+	            if (GestiCanvis == 0) {
+	                 throw new SQLException("Error al insertar la línea de factura (alquiler), ninguna fila afectada.");
+	            }
+				st.close();
+
+				String sqlInsertLineaCombustible = "INSERT INTO LINEAS_FACTURA (NROFACTURA, CONCEPTO, IMPORTE) VALUES (?, ?, ?)";
+				st = con.prepareStatement(sqlInsertLineaCombustible);
+				st.setInt(1, nroFactura);
+				st.setString(2, "Deposito lleno de " + capacidadDeposito + " litros de " + tipoCombustible);
+				st.setBigDecimal(3, precioCombustible);
+				GestiCanvis = st.executeUpdate();
+	            if (GestiCanvis == 0) {
+	                throw new SQLException("Error al insertar la línea de factura (combustible), ninguna fila afectada.");
+	            }
+				st.close();
+
+				st = con.prepareStatement("INSERT INTO FACTURAS_RESERVAS (IDRESERVA, NROFACTURA) VALUES (?, ?)");
+				st.setInt(1, idReserva);
+				st.setInt(2, nroFactura);
+				st.executeUpdate();
+				st.close();
+
+				// 6. Acumular en los totales del cliente
+				TotalesClientes.acumular(con, nifCliente, precioTotalFactura, 1);
+
+				resultado = new ResultadoAlquiler(idReserva, nroFactura);
+			}
+
+			if (claveIdempotencia != null) {
+				ClavesIdempotencia.completar(con, claveIdempotencia, resultado);
+			}
+
+			con.commit(); 
+			LOGGER.info("Alquiler realizado y factura creada con éxito para cliente {} y vehículo {}.", nifCliente, matricula);
+			actualizarOcupacion(matricula, sqlFechaIni, finOcupado(sqlFechaIni, sqlFechaFinParaInsertar), true);
+			if (claveIdempotencia != null) {
+				ClavesIdempotencia.recordar(claveIdempotencia, huella, resultado);
+			}
+			return resultado;
+
+		} catch (SQLException e) {
+			Metricas.getInstance().registrarError(Operacion.ALQUILAR, e);
+			LOGGER.error("SQLException en alquilar (Código: {}): {}", e.getErrorCode(), e.getMessage(), e);
+			if (con != null) {
+				try {
+					LOGGER.info("Realizando rollback debido a SQLException en alquilar...");
+					con.rollback(); 
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en alquilar.", exRollback);
+				}
+			}
+			if (!(e instanceof AlquilerCochesException) && new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) { 
+				throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST); 
+			}
+			throw traducirPlazo(e); 
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en alquilar", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en alquilar", e); }
+			try { if (cst != null) cst.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando CallableStatement en alquilar", e); }
+			try { 
+				if (con != null) {
+					con.close(); 
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en alquilar", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.ALQUILAR, nanos);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Los vehiculos se cargan en FLOTA_LOTE con un lote y SQL_RESERVAR_FLOTA
+	 * los bloquea en orden, comprueba los solapes e inserta las reservas; la
+	 * factura se crea siempre en la misma transaccion, tambien con facturacion
+	 * diferida, con dos lineas por vehiculo.
+	 */
+	@Override
+	public List<ResultadoAlquiler> alquilarFlota(String nifCliente, List<String> matriculas, Date fechaIni, Date fechaFin) throws SQLException {
+		List<ResultadoAlquiler> resultados = new ArrayList<ResultadoAlquiler>();
+		if (matriculas.isEmpty()) {
+			return resultados;
+		}
+		if (fechaIni == null) {
+			LOGGER.error("La fecha de inicio no puede ser nula para el alquiler.");
+			throw new SQLException("Fecha de inicio requerida para el alquiler.");
+		}
+
+		long diasDiff = DIAS_DE_ALQUILER;
+		java.sql.Date sqlFechaIni = new java.sql.Date(fechaIni.getTime());
+		java.sql.Date sqlFechaFin = null;
+		java.sql.Date sqlFechaFinEfectiva;
+		if (fechaFin != null) {
+			diasDiff = TimeUnit.MILLISECONDS.toDays(fechaFin.getTime() - fechaIni.getTime());
+			if (diasDiff < 1) {
+				throw new AlquilerCochesException(AlquilerCochesException.SIN_DIAS);
+			}
+			sqlFechaFin = new java.sql.Date(fechaFin.getTime());
+			sqlFechaFinEfectiva = sqlFechaFin;
+		} else {
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(fechaIni);
+			cal.add(Calendar.DAY_OF_YEAR, DIAS_DE_ALQUILER);
+			sqlFechaFinEfectiva = new java.sql.Date(cal.getTimeInMillis());
+		}
+
+		for (String matricula : matriculas) {
+			if (matricula == null) {
 				throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_NO_EXIST);
 			}
+		}
+		// Un vehiculo repetido se solaparia consigo mismo
+		Set<String> ordenadas = new TreeSet<String>(matriculas);
+		if (ordenadas.size() < matriculas.size()) {
+			throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO);
+		}
 
-			BigDecimal precioCadaDia = rs.getBigDecimal("PRECIO_CADA_DIA");
-			int capacidadDeposito = rs.getInt("CAPACIDAD_DEPOSITO");
-			BigDecimal precioPorLitro = rs.getBigDecimal("PRECIO_POR_LITRO");
-			int idModelo = rs.getInt("ID_MODELO");
-			String tipoCombustible = rs.getString("TIPO_COMBUSTIBLE");
-			rs.close();
-			st.close();
+		if (filtros != null) {
+			if (!filtros.puedeExistirCliente(nifCliente)) {
+				throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST);
+			}
+			for (String matricula : ordenadas) {
+				if (!filtros.puedeExistirVehiculo(matricula)) {
+					throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_NO_EXIST);
+				}
+			}
+		}
 
-			// 3. Comprobar solapamiento de reservas (usando NVL para manejar fechas de fin NULL en la BD)
-			String sqlOverlapCheck = "SELECT IDRESERVA FROM RESERVAS WHERE MATRICULA = ? AND FECHA_INI < ? AND NVL(FECHA_FIN, FECHA_INI + 1000) > ?";
-			st = con.prepareStatement(sqlOverlapCheck);
-			st.setString(1, matricula);
-			st.setDate(2, sqlFechaFinEfectivaParaComprobacion); 
-			st.setDate(3, sqlFechaIni);          
-			rs = st.executeQuery();
-			if (rs.next()) {
-			    if(rs!=null) rs.close();
-			    if(st!=null) st.close();
-				throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO);
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+		ResultSet rs = null;
+
+		long inicio = System.nanoTime();
+		try {
+			con = pool.getConnection();
+
+			// 1. Cargar los vehiculos en la tabla temporal, por lotes
+			st = con.prepareStatement("INSERT INTO flota_lote (matricula) VALUES (?)");
+			int pendientes = 0;
+			for (String matricula : ordenadas) {
+				st.setString(1, matricula);
+				st.addBatch();
+				if (++pendientes == TAMANO_LOTE) {
+					st.executeBatch();
+					pendientes = 0;
+				}
+			}
+			if (pendientes > 0) {
+				st.executeBatch();
 			}
-			rs.close();
 			st.close();
 
-			// 4. Insertar la reserva
-			String sqlInsertReserva = "INSERT INTO RESERVAS (IDRESERVA, CLIENTE, MATRICULA, FECHA_INI, FECHA_FIN) VALUES (seq_reservas.nextVal, ?, ?, ?, ?)";
-			st = con.prepareStatement(sqlInsertReserva);
-			st.setString(1, nifCliente);
-			st.setString(2, matricula);
-			st.setDate(3, sqlFechaIni);
-			if (sqlFechaFinParaInsertar != null) {
-				st.setDate(4, sqlFechaFinParaInsertar);
+			// 2. Cliente, bloqueo ordenado, solapes de todos e insercion de las reservas
+			cst = con.prepareCall(SQL_RESERVAR_FLOTA);
+			cst.setString(1, nifCliente);
+			cst.setDate(2, sqlFechaIni);
+			if (sqlFechaFin != null) {
+				cst.setDate(3, sqlFechaFin);
 			} else {
-				st.setNull(4, Types.DATE); // MODIFICACIÓN CLAVE: Inserta NULL para pasar el Test Caso 4
+				cst.setNull(3, Types.DATE);
 			}
-			int GestiCanvis = st.executeUpdate();
-            if (GestiCanvis == 0) { 
-                throw new SQLException("Error al insertar la reserva, ninguna fila afectada.");
-            }
+			cst.setDate(4, sqlFechaFinEfectiva);
+			cst.registerOutParameter(5, Types.INTEGER);
+			cst.execute();
+			int codigo = cst.getInt(5);
+			cst.close();
+			if (codigo != 0) {
+				throw new AlquilerCochesException(codigo);
+			}
+
+			// 3. Una factura para toda la flota, asociada a cada reserva
+			st = con.prepareStatement("SELECT seq_num_fact.nextVal AS valor FROM dual");
+			rs = st.executeQuery();
+			rs.next();
+			int nroFactura = rs.getInt("valor");
+			rs.close();
 			st.close();
 
-			// 5. Crear factura y sus líneas
 			BigDecimal diasFactura = new BigDecimal(diasDiff);
-			BigDecimal capacidadDepositoComoBigDecimal = new BigDecimal(capacidadDeposito);
-			BigDecimal precioAlquiler = precioCadaDia.multiply(diasFactura);
-			BigDecimal precioCombustible = precioPorLitro.multiply(capacidadDepositoComoBigDecimal);
-			BigDecimal precioTotalFactura = precioAlquiler.add(precioCombustible);
-
-			int nroFactura;
-			st = con.prepareStatement("SELECT seq_num_fact.nextVal AS valor FROM dual");
+			BigDecimal precioTotalFactura = BigDecimal.ZERO;
+			Map<String, Integer> idsReserva = new HashMap<String, Integer>();
+			List<String> conceptos = new ArrayList<String>();
+			List<BigDecimal> importes = new ArrayList<BigDecimal>();
+			st = con.prepareStatement(SQL_DATOS_FLOTA);
 			rs = st.executeQuery();
-			if (!rs.next()) {
-			    if(rs!=null) rs.close();
-			    if(st!=null) st.close();
-				throw new SQLException("No se pudo obtener el siguiente valor de la secuencia de facturas.");
+			while (rs.next()) {
+				String matricula = rs.getString("MATRICULA");
+				int capacidadDeposito = rs.getInt("CAPACIDAD_DEPOSITO");
+				BigDecimal precioAlquiler = rs.getBigDecimal("PRECIO_CADA_DIA").multiply(diasFactura);
+				BigDecimal precioCombustible = rs.getBigDecimal("PRECIO_POR_LITRO").multiply(new BigDecimal(capacidadDeposito));
+				idsReserva.put(matricula, rs.getInt("IDRESERVA"));
+				conceptos.add(diasDiff + " dias de alquiler, vehiculo " + matricula);
+				importes.add(precioAlquiler);
+				conceptos.add("Deposito " + matricula + ", " + capacidadDeposito + " l de " + rs.getString("TIPO_COMBUSTIBLE"));
+				importes.add(precioCombustible);
+				precioTotalFactura = precioTotalFactura.add(precioAlquiler).add(precioCombustible);
 			}
-			nroFactura = rs.getInt("valor");
 			rs.close();
 			st.close();
-			
-			String sqlInsertFactura = "INSERT INTO FACTURAS (NROFACTURA, CLIENTE, IMPORTE) VALUES (?, ?, ?)";
-			st = con.prepareStatement(sqlInsertFactura);
+
+			st = con.prepareStatement("INSERT INTO FACTURAS (NROFACTURA, CLIENTE, IMPORTE) VALUES (?, ?, ?)");
 			st.setInt(1, nroFactura);
 			st.setString(2, nifCliente);
 			st.setBigDecimal(3, precioTotalFactura);
-			GestiCanvis = st.executeUpdate();
-            if (GestiCanvis == 0) {
-                throw new SQLException("Error al insertar la factura, ninguna fila afectada.");
-            }
+			st.executeUpdate();
 			st.close();
 
-			String sqlInsertLineaAlquiler = "INSERT INTO LINEAS_FACTURA (NROFACTURA, CONCEPTO, IMPORTE) VALUES (?, ?, ?)";
-			st = con.prepareStatement(sqlInsertLineaAlquiler);
-			st.setInt(1, nroFactura);
-			st.setString(2, diasDiff + " dias de alquiler, vehiculo modelo " + idModelo);
-			st.setBigDecimal(3, precioAlquiler);
-			GestiCanvis = st.executeUpdate();
-            if (GestiCanvis == 0) {
-                 throw new SQLException("Error al insertar la línea de factura (alquiler), ninguna fila afectada.");
-            }
+			st = con.prepareStatement("INSERT INTO LINEAS_FACTURA (NROFACTURA, CONCEPTO, IMPORTE) VALUES (?, ?, ?)");
+			for (int i = 0; i < conceptos.size(); i++) {
+				st.setInt(1, nroFactura);
+				st.setString(2, conceptos.get(i));
+				st.setBigDecimal(3, importes.get(i));
+				st.addBatch();
+			}
+			st.executeBatch();
 			st.close();
 
-			String sqlInsertLineaCombustible = "INSERT INTO LINEAS_FACTURA (NROFACTURA, CONCEPTO, IMPORTE) VALUES (?, ?, ?)";
-			st = con.prepareStatement(sqlInsertLineaCombustible);
+			st = con.prepareStatement("INSERT INTO FACTURAS_RESERVAS (IDRESERVA, NROFACTURA) SELECT IDRESERVA, ? FROM FLOTA_LOTE");
 			st.setInt(1, nroFactura);
-			st.setString(2, "Deposito lleno de " + capacidadDeposito + " litros de " + tipoCombustible);
-			st.setBigDecimal(3, precioCombustible);
-			GestiCanvis = st.executeUpdate();
-            if (GestiCanvis == 0) {
-                throw new SQLException("Error al insertar la línea de factura (combustible), ninguna fila afectada.");
-            }
+			st.executeUpdate();
 			st.close();
 
-			con.commit(); 
-			LOGGER.info("Alquiler realizado y factura creada con éxito para cliente {} y vehículo {}.", nifCliente, matricula);
+			// 4. Acumular en los totales del cliente
+			TotalesClientes.acumular(con, nifCliente, precioTotalFactura, ordenadas.size());
+
+			con.commit();
+			LOGGER.info("Alquiler de flota de {} vehículos realizado para cliente {} con factura {}.", ordenadas.size(), nifCliente, nroFactura);
+			for (String matricula : ordenadas) {
+				actualizarOcupacion(matricula, sqlFechaIni, finOcupado(sqlFechaIni, sqlFechaFin), true);
+			}
+			for (String matricula : matriculas) {
+				resultados.add(new ResultadoAlquiler(idsReserva.get(matricula), nroFactura));
+			}
+			return resultados;
 
 		} catch (SQLException e) {
-			LOGGER.error("SQLException en alquilar (Código: {}): {}", e.getErrorCode(), e.getMessage(), e);
+			Metricas.getInstance().registrarError(Operacion.ALQUILAR_FLOTA, e);
+			LOGGER.error("SQLException en alquiler de flota de {}: {} (Código SQL: {})", nifCliente, e.getMessage(), e.getErrorCode(), e);
 			if (con != null) {
 				try {
-					LOGGER.info("Realizando rollback debido a SQLException en alquilar...");
-					con.rollback(); 
+					con.rollback();
 				} catch (SQLException exRollback) {
-					LOGGER.error("Error CRÍTICO al intentar rollback en alquilar.", exRollback);
+					LOGGER.error("Error CRÍTICO al intentar rollback en alquilarFlota.", exRollback);
 				}
 			}
-			if (!(e instanceof AlquilerCochesException) && new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) { 
-				throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST); 
-			}
-			throw e; 
+			throw traducirPlazo(e);
 		} finally {
-			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en alquilar", e); }
-			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en alquilar", e); }
-			try { 
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en alquilarFlota", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en alquilarFlota", e); }
+			try { if (cst != null) cst.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando CallableStatement en alquilarFlota", e); }
+			try {
 				if (con != null) {
-					con.close(); 
+					con.close();
 				}
-			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en alquilar", e); }
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en alquilarFlota", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.ALQUILAR_FLOTA, nanos);
 		}
 	}
 
 	@Override
 	public void anular_alquiler(String idReservaStr, String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException {
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
-        Connection con = null;
-        PreparedStatement st = null;
-        ResultSet rs = null;
+		Connection con = null;
+		CallableStatement cst = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
 
-        long diasDiff;
+		if (fechaIni == null || fechaFin == null) {
+			LOGGER.error("Las fechas de inicio y fin son obligatorias para la anulación.");
+			throw new SQLException("Fechas de inicio y fin requeridas para la anulación.");
+		}
 
-        if (fechaIni == null || fechaFin == null) {
-            LOGGER.error("Las fechas de inicio y fin son obligatorias para la anulación.");
-            throw new SQLException("Fechas de inicio y fin requeridas para la anulación.");
-        }
+		long diasDiff = TimeUnit.MILLISECONDS.toDays(fechaFin.getTime() - fechaIni.getTime());
+		if (diasDiff < 1) {
+			throw new AlquilerCochesException(AlquilerCochesException.SIN_DIAS);
+		}
 
-        diasDiff = TimeUnit.MILLISECONDS.toDays(fechaFin.getTime() - fechaIni.getTime());
-        if (diasDiff < 1) {
-            throw new AlquilerCochesException(AlquilerCochesException.SIN_DIAS); 
-        }
+		int idReserva;
+		try {
+			idReserva = Integer.parseInt(idReservaStr);
+		} catch (NumberFormatException e) {
+			LOGGER.error("idReserva '{}' no es un número válido.", idReservaStr);
+			throw new AlquilerCochesException(AlquilerCochesException.RESERVA_NO_EXIST);
+		}
 
-        java.sql.Date sqlFechaIniParam = new java.sql.Date(fechaIni.getTime());
-        java.sql.Date sqlFechaFinParam = new java.sql.Date(fechaFin.getTime());
-        int idReserva;
+		long inicio = System.nanoTime();
+		try {
+			con = pool.getConnection();
 
-        try {
-            idReserva = Integer.parseInt(idReservaStr);
-        } catch (NumberFormatException e) {
-            LOGGER.error("idReserva '{}' no es un número válido.", idReservaStr);
-            throw new AlquilerCochesException(AlquilerCochesException.RESERVA_NO_EXIST); 
-        }
+			// 1. Borrar la reserva y su factura, y restarlas de los totales del
+			// cliente, en un solo viaje a la BD
+			cst = con.prepareCall(SQL_ANULAR);
+			cst.setInt(1, idReserva);
+			cst.setInt(2, DIAS_DE_ALQUILER);
+			cst.setInt(3, TotalesClientes.ranura());
+			cst.setString(4, nifCliente);
+			cst.setString(5, matricula);
+			cst.setDate(6, new java.sql.Date(fechaIni.getTime()));
+			cst.setDate(7, new java.sql.Date(fechaFin.getTime()));
+			cst.registerOutParameter(8, Types.INTEGER);
+			cst.registerOutParameter(9, Types.INTEGER);
+			cst.registerOutParameter(10, Types.DATE);
+			cst.execute();
 
-        try {
-            con = pool.getConnection();
-            con.setAutoCommit(false); 
-
-            // 1. Verificar existencia de la reserva y obtener sus datos
-            String dbNifCliente;
-            String dbMatricula;
-            java.sql.Date dbSqlFechaIni;
-            java.sql.Date dbSqlFechaFin;
-
-            String sqlCheckReserva = "SELECT cliente, matricula, fecha_ini, fecha_fin FROM Reservas WHERE idReserva = ?";
-            st = con.prepareStatement(sqlCheckReserva);
-            st.setInt(1, idReserva);
-            rs = st.executeQuery();
-
-            if (!rs.next()) {
-                if(rs!=null) rs.close(); 
-                if(st!=null) st.close();
-                throw new AlquilerCochesException(AlquilerCochesException.RESERVA_NO_EXIST); 
-            }
-            dbNifCliente = rs.getString("cliente");
-            dbMatricula = rs.getString("matricula");
-            dbSqlFechaIni = rs.getDate("fecha_ini");
-            dbSqlFechaFin = rs.getDate("fecha_fin");
-            rs.close(); 
-            st.close();
-
-            // 2. Validar que los datos proporcionados al método coinciden con los de la reserva almacenada
-            boolean fechasFinCoinciden;
-            if (dbSqlFechaFin == null) {
-                // Si en la BD es null, se asume que la reserva fue de la duración por defecto.
-                // La fecha fin del parámetro debe coincidir con esa fecha calculada.
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(dbSqlFechaIni);
-                cal.add(Calendar.DAY_OF_YEAR, DIAS_DE_ALQUILER);
-                java.sql.Date fechaFinCalculada = new java.sql.Date(cal.getTimeInMillis());
-                fechasFinCoinciden = fechaFinCalculada.equals(sqlFechaFinParam);
-            } else {
-                 fechasFinCoinciden = dbSqlFechaFin.equals(sqlFechaFinParam);
-            }
-
-            if (!dbNifCliente.equals(nifCliente) ||
-                !dbMatricula.equals(matricula) ||
-                !dbSqlFechaIni.equals(sqlFechaIniParam) ||
-                !fechasFinCoinciden ) {
-                LOGGER.error("Los datos proporcionados para la anulación no coinciden con los de la reserva ID {}.", idReserva);
-                throw new SQLException("Los datos proporcionados (NIF, matrícula, fechas) no coinciden con los de la reserva a anular.");
-            }
-            
-            // 3. Comprobar existencia del cliente
-            String sqlCheckCliente = "SELECT 1 FROM Clientes WHERE NIF = ?";
-            st = con.prepareStatement(sqlCheckCliente);
-            st.setString(1, nifCliente); 
-            rs = st.executeQuery();
-            if (!rs.next()) {
-                if(rs!=null) rs.close(); 
-                if(st!=null) st.close();
-                throw new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST); 
-            }
-            rs.close(); 
-            st.close();
-
-            // 4. Comprobar existencia del vehículo
-            String sqlCheckVehiculo = "SELECT 1 FROM Vehiculos WHERE matricula = ?";
-            st = con.prepareStatement(sqlCheckVehiculo);
-            st.setString(1, matricula); 
-            rs = st.executeQuery();
-            if (!rs.next()) {
-                if(rs!=null) rs.close(); 
-                if(st!=null) st.close();
-                throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_NO_EXIST); 
-            }
-            rs.close(); 
-            st.close();
-            
-            // Determinar la fecha de fin efectiva de la reserva original
-            java.sql.Date fechaFinReservaOriginalEfectiva;
-            if (dbSqlFechaFin != null) {
-                fechaFinReservaOriginalEfectiva = dbSqlFechaFin;
-            } else {
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(dbSqlFechaIni);
-                cal.add(Calendar.DAY_OF_YEAR, DIAS_DE_ALQUILER);
-                fechaFinReservaOriginalEfectiva = new java.sql.Date(cal.getTimeInMillis());
-            }
-
-            // 5. Comprobar "Si ese vehículo ya no está disponible" (Código 5)
-            String sqlVehiculoNoDisponibleCheck = "SELECT 1 FROM Reservas " +
-                                                  "WHERE matricula = ? " +
-                                                  "AND fecha_ini < ? " + 
-                                                  "AND NVL(fecha_fin, fecha_ini + 1000) > ? " + 
-                                                  "AND idReserva <> ?"; 
-            st = con.prepareStatement(sqlVehiculoNoDisponibleCheck);
-            st.setString(1, dbMatricula);    
-            st.setDate(2, fechaFinReservaOriginalEfectiva);
-            st.setDate(3, dbSqlFechaIni);    
-            st.setInt(4, idReserva);
-            rs = st.executeQuery();
-            if (rs.next()) { 
-                if(rs!=null) rs.close(); 
-                if(st!=null) st.close();
-                throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO); 
-            }
-            rs.close(); 
-            st.close();
-
-            // 6. Recalcular importe de la factura para encontrarla y eliminarla
-            long diasReservaOriginal;
-            if (dbSqlFechaFin != null) {
-                diasReservaOriginal = TimeUnit.MILLISECONDS.toDays(dbSqlFechaFin.getTime() - dbSqlFechaIni.getTime());
-            } else {
-                diasReservaOriginal = DIAS_DE_ALQUILER;
-            }
-            if (diasReservaOriginal < 1) diasReservaOriginal = 1;
-
-            String sqlModeloInfo = "SELECT m.precio_cada_dia, m.tipo_combustible, m.capacidad_deposito " + "FROM vehiculos v JOIN modelos m ON v.id_modelo = m.id_modelo " + "WHERE v.matricula = ?";
-            st = con.prepareStatement(sqlModeloInfo); st.setString(1, dbMatricula); rs = st.executeQuery();
-            if (!rs.next()) { throw new SQLException("Error crítico: No se pudo obtener información del modelo " + dbMatricula); }
-            BigDecimal precioPorDia = rs.getBigDecimal("precio_cada_dia"); String tipoCombustible = rs.getString("tipo_combustible"); int capacidadDeposito = rs.getInt("capacidad_deposito");
-            rs.close(); st.close();
-
-            String sqlPrecioCombustible = "SELECT precio_por_litro FROM precio_combustible WHERE tipo_combustible = ?";
-            st = con.prepareStatement(sqlPrecioCombustible); st.setString(1, tipoCombustible); rs = st.executeQuery();
-            if (!rs.next()) { throw new SQLException("Error crítico: No se pudo obtener precio del combustible " + tipoCombustible); }
-            BigDecimal precioPorLitro = rs.getBigDecimal("precio_por_litro");
-            rs.close(); st.close();
-
-            BigDecimal diasBigDecimal = new BigDecimal(diasReservaOriginal);
-            BigDecimal costoAlquiler = precioPorDia.multiply(diasBigDecimal);
-            BigDecimal capacidadBigDecimal = new BigDecimal(capacidadDeposito);
-            BigDecimal costoLlenarDeposito = precioPorLitro.multiply(capacidadBigDecimal);
-            BigDecimal importeTotalFacturaEsperado = costoAlquiler.add(costoLlenarDeposito);
-
-            String sqlFindFactura = "SELECT nroFactura FROM Facturas WHERE cliente = ? AND importe = ?";
-            st = con.prepareStatement(sqlFindFactura); st.setString(1, dbNifCliente); st.setBigDecimal(2, importeTotalFacturaEsperado); rs = st.executeQuery();
-            
-            int nroFacturaParaEliminar = -1;
-            if (rs.next()) {
-                nroFacturaParaEliminar = rs.getInt("nroFactura");
-                if (rs.next()) {
-                    if(rs!=null) rs.close(); if(st!=null) st.close();
-                    throw new SQLException("Ambigüedad: Múltiples facturas coinciden con los criterios para la anulación.");
-                }
-            }
-            rs.close(); st.close();
-
-            if (nroFacturaParaEliminar != -1) {
-                LOGGER.info("Factura Nro {} encontrada para anular.", nroFacturaParaEliminar);
-                
-                String sqlDeleteLineas = "DELETE FROM Lineas_Factura WHERE NroFactura = ?";
-                st = con.prepareStatement(sqlDeleteLineas);
-                st.setInt(1, nroFacturaParaEliminar);
-                st.executeUpdate();
-                st.close();
-
-                String sqlDeleteFactura = "DELETE FROM Facturas WHERE NroFactura = ?";
-                st = con.prepareStatement(sqlDeleteFactura);
-                st.setInt(1, nroFacturaParaEliminar);
-                if (st.executeUpdate() == 1) {
-                    LOGGER.info("Factura Nro {} eliminada con éxito.", nroFacturaParaEliminar);
-                } else {
-                    if(st!=null) st.close();
-                    throw new SQLException("Error al intentar eliminar la factura Nro " + nroFacturaParaEliminar);
-                }
-                st.close();
-            } else {
-                LOGGER.warn("No se encontró una factura para la reserva ID {}. Se anulará la reserva sin eliminar factura.", idReserva);
-            }
-
-            // 7. Eliminar la reserva
-            String sqlDeleteReserva = "DELETE FROM Reservas WHERE idReserva = ?";
-            st = con.prepareStatement(sqlDeleteReserva);
-            st.setInt(1, idReserva);
-            int reservaDeleted = st.executeUpdate();
-            if (reservaDeleted != 1) { 
-                if(st!=null) st.close();
-                throw new SQLException("Error inesperado al intentar eliminar la reserva ID: " + idReserva);
-            }
-            st.close();
-
-            con.commit(); 
-            LOGGER.info("Transacción de anulación confirmada para reserva ID {}.", idReserva);
-
-        } catch (AlquilerCochesException ace) {
-            LOGGER.warn("AlquilerCochesException en anulación (Reserva ID {}): {} (Código: {})", idReservaStr, ace.getMessage(), ace.getErrorCode());
-            if (con != null) {
-                try { 
-                    con.rollback(); 
-                } catch (SQLException exRollback) { 
-                    LOGGER.error("Error CRÍTICO al intentar rollback tras AlquilerCochesException.", exRollback); 
-                }
-            }
-            throw ace; 
-        } catch (SQLException e) {
-            LOGGER.error("SQLException en anulación (Reserva ID {}): {} (Código SQL: {})", idReservaStr, e.getMessage(), e.getErrorCode(), e);
-            if (con != null) {
-                try { 
-                    con.rollback(); 
-                } catch (SQLException exRollback) { 
-                    LOGGER.error("Error CRÍTICO al intentar rollback tras SQLException.", exRollback); 
-                }
-            }
-            throw e; 
-        } finally {
-            try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en anular_alquiler", e); }
-            try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en anular_alquiler", e); }
-            try { 
-                if (con != null) {
-                    con.close(); 
-                }
-            } catch (SQLException e) { LOGGER.warn("Error cerrando Connection en anular_alquiler", e); }
-        }
+			int filas = cst.getInt(8);
+			int nroFactura = cst.getInt(9);
+			boolean sinFactura = cst.wasNull();
+			java.sql.Date finGuardado = cst.getDate(10);
+			cst.close();
+
+			// 2. Solo si no se borro nada se averigua el motivo (camino poco frecuente)
+			if (filas == 0) {
+				st = con.prepareStatement("SELECT 1 FROM Reservas WHERE idReserva = ?");
+				st.setInt(1, idReserva);
+				rs = st.executeQuery();
+				if (!rs.next()) {
+					throw new AlquilerCochesException(AlquilerCochesException.RESERVA_NO_EXIST);
+				}
+				LOGGER.error("Los datos proporcionados para la anulación no coinciden con los de la reserva ID {}.", idReserva);
+				throw new SQLException("Los datos proporcionados (NIF, matrícula, fechas) no coinciden con los de la reserva a anular.");
+			}
+			if (filas < 0) {
+				throw new AlquilerCochesException(AlquilerCochesException.RESERVA_EN_FLOTA);
+			}
+
+			if (sinFactura) {
+				LOGGER.warn("No se encontró una factura para la reserva ID {}. Se anulará la reserva sin eliminar factura.", idReserva);
+			} else {
+				LOGGER.info("Factura Nro {} eliminada con éxito.", nroFactura);
+			}
+
+			con.commit();
+			LOGGER.info("Transacción de anulación confirmada para reserva ID {}.", idReserva);
+			actualizarOcupacion(matricula, fechaIni, finOcupado(fechaIni, finGuardado), false);
+
+		} catch (AlquilerCochesException ace) {
+			LOGGER.warn("AlquilerCochesException en anulación (Reserva ID {}): {} (Código: {})", idReservaStr, ace.getMessage(), ace.getErrorCode());
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback tras AlquilerCochesException.", exRollback);
+				}
+			}
+			throw ace;
+		} catch (SQLException e) {
+			Metricas.getInstance().registrarError(Operacion.ANULAR, e);
+			LOGGER.error("SQLException en anulación (Reserva ID {}): {} (Código SQL: {})", idReservaStr, e.getMessage(), e.getErrorCode(), e);
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback tras SQLException.", exRollback);
+				}
+			}
+			throw traducirPlazo(e);
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en anular_alquiler", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en anular_alquiler", e); }
+			try { if (cst != null) cst.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando CallableStatement en anular_alquiler", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en anular_alquiler", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.ANULAR, nanos);
+		}
+	}
+
+	@Override
+	public int anularLote(List<Integer> idsReserva) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		// Los duplicados violarian la clave de la tabla temporal
+		Set<Integer> ids = new LinkedHashSet<Integer>(idsReserva);
+		if (ids.isEmpty()) {
+			return 0;
+		}
+
+		long inicio = System.nanoTime();
+		try {
+			con = pool.getConnection();
+
+			// 1. Cargar las reservas a anular, por lotes
+			st = con.prepareStatement(SQL_CARGAR_LOTE);
+			int pendientes = 0;
+			for (Integer id : ids) {
+				st.setInt(1, id);
+				st.addBatch();
+				if (++pendientes == TAMANO_LOTE) {
+					st.executeBatch();
+					pendientes = 0;
+				}
+			}
+			if (pendientes > 0) {
+				st.executeBatch();
+			}
+			st.close();
+
+			// Quitar las facturas pendientes; espera a las que se esten generando
+			st = con.prepareStatement("DELETE FROM Facturas_Pendientes WHERE idReserva IN (SELECT idReserva FROM anulaciones_lote)");
+			st.executeUpdate();
+			st.close();
+
+			// 2. Emparejar cada reserva con su factura; una flota incompleta
+			// rechaza el lote entero
+			st = con.prepareStatement(SQL_EMPAREJAR_FACTURAS);
+			st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(SQL_FLOTAS_INCOMPLETAS);
+			rs = st.executeQuery();
+			rs.next();
+			int incompletas = rs.getInt(1);
+			rs.close();
+			st.close();
+			if (incompletas > 0) {
+				LOGGER.warn("Anulación por lotes rechazada: {} reservas de flotas que no se anulan enteras.", incompletas);
+				throw new AlquilerCochesException(AlquilerCochesException.RESERVA_EN_FLOTA);
+			}
+
+			// Intervalos a liberar en el mapa de ocupacion, solo si se mantiene
+			List<Object[]> liberar = new ArrayList<Object[]>();
+			if (ocupacion != null) {
+				st = con.prepareStatement("SELECT matricula, fecha_ini, NVL(fecha_fin, fecha_ini + ?) FROM Reservas WHERE idReserva IN (SELECT idReserva FROM anulaciones_lote)");
+				st.setInt(1, Misc.OPEN_END_DAYS);
+				rs = st.executeQuery();
+				while (rs.next()) {
+					liberar.add(new Object[] { rs.getString(1), rs.getDate(2), rs.getDate(3) });
+				}
+				rs.close();
+				st.close();
+			}
+
+			// 3. Restar lo anulado de los totales de cada cliente
+			st = con.prepareStatement(SQL_CREAR_RANURAS_LOTE);
+			st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(SQL_RESTAR_TOTALES_LOTE);
+			st.setInt(1, TotalesClientes.ranura());
+			st.executeUpdate();
+			st.close();
+
+			// 4. Borrados en bloque: asociaciones, lineas, facturas y reservas
+			st = con.prepareStatement("DELETE FROM Facturas_Reservas WHERE NroFactura IN (SELECT nroFactura FROM anulaciones_lote)");
+			st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement("DELETE FROM Lineas_Factura WHERE NroFactura IN (SELECT nroFactura FROM anulaciones_lote)");
+			st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement("DELETE FROM Facturas WHERE NroFactura IN (SELECT nroFactura FROM anulaciones_lote)");
+			int facturas = st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement("DELETE FROM Reservas WHERE idReserva IN (SELECT idReserva FROM anulaciones_lote)");
+			int anuladas = st.executeUpdate();
+			st.close();
+
+			con.commit();
+			LOGGER.info("Anulación por lotes confirmada: {} reservas y {} facturas de {} solicitadas.", anuladas, facturas, ids.size());
+			for (Object[] r : liberar) {
+				actualizarOcupacion((String) r[0], (Date) r[1], (Date) r[2], false);
+			}
+			return anuladas;
+
+		} catch (SQLException e) {
+			Metricas.getInstance().registrarError(Operacion.ANULAR_LOTE, e);
+			LOGGER.error("SQLException en anulación por lotes: {} (Código SQL: {})", e.getMessage(), e.getErrorCode(), e);
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en anularLote.", exRollback);
+				}
+			}
+			throw traducirPlazo(e);
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en anularLote", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en anularLote", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en anularLote", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.ANULAR_LOTE, nanos);
+		}
+	}
+
+	@Override
+	public void modificarAlquiler(int idReserva, Date nuevaFechaFin) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		if (nuevaFechaFin == null) {
+			LOGGER.error("La nueva fecha de fin no puede ser nula.");
+			throw new SQLException("Nueva fecha de fin requerida para modificar el alquiler.");
+		}
+
+		long inicio = System.nanoTime();
+		try {
+			con = pool.getConnection();
+
+			// 0. Con facturacion diferida, bloquear la factura pendiente para que
+			// el generador no la cree con las fechas antiguas (si ya la esta
+			// creando, se espera y la consulta siguiente la encuentra)
+			if (facturacionDiferida) {
+				st = con.prepareStatement("SELECT 1 FROM FACTURAS_PENDIENTES WHERE IDRESERVA = ? FOR UPDATE");
+				st.setInt(1, idReserva);
+				rs = st.executeQuery();
+				rs.close();
+				st.close();
+			}
+
+			// 1. Datos de la reserva, precios y factura asociada en una sola consulta
+			st = con.prepareStatement(SQL_DATOS_MODIFICACION);
+			st.setInt(1, idReserva);
+			rs = st.executeQuery();
+			if (!rs.next()) {
+				throw new AlquilerCochesException(AlquilerCochesException.RESERVA_NO_EXIST);
+			}
+			String cliente = rs.getString("cliente");
+			String matricula = rs.getString("matricula");
+			java.sql.Date dbFechaIni = rs.getDate("fecha_ini");
+			java.sql.Date dbFechaFin = rs.getDate("fecha_fin");
+			BigDecimal precioCadaDia = rs.getBigDecimal("precio_cada_dia");
+			int idModelo = rs.getInt("id_modelo");
+			int nroFactura = rs.getInt("nroFactura");
+			boolean sinFactura = rs.wasNull();
+			if (rs.getInt("reservas_factura") > 1) {
+				throw new AlquilerCochesException(AlquilerCochesException.RESERVA_EN_FLOTA);
+			}
+			rs.close();
+			st.close();
+
+			int diasAntes = dbFechaFin != null ? Misc.howManyDaysBetween(dbFechaFin, dbFechaIni) : DIAS_DE_ALQUILER;
+			int diasDespues = Misc.howManyDaysBetween(nuevaFechaFin, dbFechaIni);
+			if (diasDespues < 1) {
+				throw new AlquilerCochesException(AlquilerCochesException.SIN_DIAS);
+			}
+
+			java.sql.Date finAntes = new java.sql.Date(Misc.addDays(dbFechaIni, diasAntes).getTime());
+			java.sql.Date finDespues = new java.sql.Date(Misc.addDays(dbFechaIni, diasDespues).getTime());
+
+			// 2. Al ampliar solo hace falta comprobar el tramo nuevo [finAntes, finDespues),
+			// con la fila del vehiculo bloqueada. La reserva atomica, la de flota y
+			// otras modificaciones toman el mismo bloqueo antes de comprobar, asi que
+			// no pueden reservar el tramo entre la comprobacion y la actualizacion;
+			// el alquiler sin reserva atomica no lo toma y si puede colarse
+			if (diasDespues > diasAntes) {
+				st = con.prepareStatement("SELECT 1 FROM VEHICULOS WHERE MATRICULA = ? FOR UPDATE");
+				st.setString(1, matricula);
+				rs = st.executeQuery();
+				rs.close();
+				st.close();
+
+				st = con.prepareStatement("SELECT 1 FROM RESERVAS WHERE MATRICULA = ? AND IDRESERVA <> ? AND FECHA_INI < ? AND NVL(FECHA_FIN, FECHA_INI + " + Misc.OPEN_END_DAYS + ") > ?");
+				st.setString(1, matricula);
+				st.setInt(2, idReserva);
+				st.setDate(3, finDespues);
+				st.setDate(4, finAntes);
+				rs = st.executeQuery();
+				if (rs.next()) {
+					throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO);
+				}
+				rs.close();
+				st.close();
+			}
+
+			// 3. Actualizar la reserva si nadie la ha cambiado desde la lectura
+			st = con.prepareStatement("UPDATE RESERVAS SET FECHA_FIN = ? WHERE IDRESERVA = ? AND NVL(FECHA_FIN, FECHA_INI + ?) = ?");
+			st.setDate(1, finDespues);
+			st.setInt(2, idReserva);
+			st.setInt(3, DIAS_DE_ALQUILER);
+			st.setDate(4, finAntes);
+			if (st.executeUpdate() != 1) {
+				throw new SQLException("La reserva " + idReserva + " se ha modificado concurrentemente.");
+			}
+			st.close();
+
+			// 4. Ajustar solo la linea de dias de alquiler y el total de la factura
+			if (sinFactura && facturacionDiferida) {
+				LOGGER.debug("Factura de la reserva ID {} pendiente: se generará con las nuevas fechas.", idReserva);
+			} else if (sinFactura) {
+				LOGGER.warn("No se encontró una factura para la reserva ID {}. Solo se modifican las fechas.", idReserva);
+			} else if (diasDespues != diasAntes) {
+				BigDecimal importeAlquiler = precioCadaDia.multiply(new BigDecimal(diasDespues));
+				BigDecimal delta = precioCadaDia.multiply(new BigDecimal(diasDespues - diasAntes));
+
+				st = con.prepareStatement("UPDATE LINEAS_FACTURA SET CONCEPTO = ?, IMPORTE = ? WHERE NROFACTURA = ? AND CONCEPTO LIKE '% dias de alquiler,%'");
+				st.setString(1, diasDespues + " dias de alquiler, vehiculo modelo " + idModelo);
+				st.setBigDecimal(2, importeAlquiler);
+				st.setInt(3, nroFactura);
+				if (st.executeUpdate() != 1) {
+					throw new SQLException("Error al actualizar la línea de alquiler de la factura Nro " + nroFactura);
+				}
+				st.close();
+
+				st = con.prepareStatement("UPDATE FACTURAS SET IMPORTE = IMPORTE + ? WHERE NROFACTURA = ?");
+				st.setBigDecimal(1, delta);
+				st.setInt(2, nroFactura);
+				st.executeUpdate();
+				st.close();
+
+				TotalesClientes.acumular(con, cliente, delta, 0);
+			}
+
+			con.commit();
+			LOGGER.info("Reserva ID {} modificada: {} dias (antes {}).", idReserva, diasDespues, diasAntes);
+			java.sql.Date ocupadoAntes = finOcupado(dbFechaIni, dbFechaFin);
+			if (finDespues.after(ocupadoAntes)) {
+				actualizarOcupacion(matricula, ocupadoAntes, finDespues, true);
+			} else if (finDespues.before(ocupadoAntes)) {
+				actualizarOcupacion(matricula, finDespues, ocupadoAntes, false);
+			}
+
+		} catch (SQLException e) {
+			Metricas.getInstance().registrarError(Operacion.MODIFICAR, e);
+			if (e instanceof AlquilerCochesException) {
+				LOGGER.warn("AlquilerCochesException al modificar la reserva ID {}: {} (Código: {})", idReserva, e.getMessage(), e.getErrorCode());
+			} else {
+				LOGGER.error("SQLException al modificar la reserva ID {}: {} (Código SQL: {})", idReserva, e.getMessage(), e.getErrorCode(), e);
+			}
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en modificarAlquiler.", exRollback);
+				}
+			}
+			throw traducirPlazo(e);
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en modificarAlquiler", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en modificarAlquiler", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en modificarAlquiler", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.MODIFICAR, nanos);
+		}
+	}
+
+	@Override
+	public Pagina<Reserva> listarReservas(String nifCliente, String cursor, int limite) throws SQLException {
+		int filas = limitePagina(limite);
+		String[] posicion = cursor != null ? leerCursor(cursor, 'R', 2) : null;
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		long inicio = System.nanoTime();
+		try {
+			con = pool.getConnection();
+			// Los mismos parametros para la rama de reservas y la del historico
+			st = con.prepareStatement(posicion == null ? SQL_RESERVAS_PRIMERA : SQL_RESERVAS_SIGUIENTE);
+			int p = 1;
+			for (int rama = 0; rama < 2; rama++) {
+				st.setString(p++, nifCliente);
+				if (posicion != null) {
+					st.setString(p++, posicion[0]);
+					st.setString(p++, posicion[0]);
+					st.setInt(p++, Integer.parseInt(posicion[1]));
+				}
+				st.setInt(p++, filas + 1);
+			}
+			st.setInt(p, filas + 1);
+			st.setFetchSize(filas + 1);
+			rs = st.executeQuery();
+
+			List<Reserva> reservas = new ArrayList<Reserva>(filas);
+			String siguiente = null;
+			while (rs.next()) {
+				if (reservas.size() == filas) {
+					// Hay al menos una mas: el cursor apunta a la ultima devuelta
+					siguiente = cursorDe(reservas.get(filas - 1));
+					break;
+				}
+				// Con la hora, para que el cursor repita exactamente fecha_ini
+				reservas.add(new Reserva(rs.getInt("IDRESERVA"), rs.getString("MATRICULA"), rs.getTimestamp("FECHA_INI"),
+						rs.getDate("FECHA_FIN")));
+			}
+			con.commit();
+			return new Pagina<Reserva>(reservas, siguiente);
+
+		} catch (SQLException e) {
+			Metricas.getInstance().registrarError(Operacion.LISTAR_RESERVAS, e);
+			LOGGER.error("SQLException al listar las reservas de {}: {} (Código SQL: {})", nifCliente, e.getMessage(), e.getErrorCode(), e);
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en listarReservas.", exRollback);
+				}
+			}
+			throw traducirPlazo(e);
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en listarReservas", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en listarReservas", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en listarReservas", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.LISTAR_RESERVAS, nanos);
+		}
+	}
+
+	@Override
+	public Pagina<Factura> listarFacturas(String nifCliente, String cursor, int limite) throws SQLException {
+		int filas = limitePagina(limite);
+		String[] posicion = cursor != null ? leerCursor(cursor, 'F', 1) : null;
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		long inicio = System.nanoTime();
+		try {
+			con = pool.getConnection();
+			if (posicion == null) {
+				st = con.prepareStatement(SQL_FACTURAS_PRIMERA);
+				st.setString(1, nifCliente);
+				st.setInt(2, filas + 1);
+			} else {
+				st = con.prepareStatement(SQL_FACTURAS_SIGUIENTE);
+				st.setString(1, nifCliente);
+				st.setInt(2, Integer.parseInt(posicion[0]));
+				st.setInt(3, filas + 1);
+			}
+			st.setFetchSize(filas + 1);
+			rs = st.executeQuery();
+
+			List<Factura> facturas = new ArrayList<Factura>(filas);
+			String siguiente = null;
+			while (rs.next()) {
+				if (facturas.size() == filas) {
+					siguiente = cursorDe(facturas.get(filas - 1));
+					break;
+				}
+				facturas.add(new Factura(rs.getInt("NROFACTURA"), rs.getBigDecimal("IMPORTE")));
+			}
+			con.commit();
+			return new Pagina<Factura>(facturas, siguiente);
+
+		} catch (SQLException e) {
+			Metricas.getInstance().registrarError(Operacion.LISTAR_FACTURAS, e);
+			LOGGER.error("SQLException al listar las facturas de {}: {} (Código SQL: {})", nifCliente, e.getMessage(), e.getErrorCode(), e);
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en listarFacturas.", exRollback);
+				}
+			}
+			throw traducirPlazo(e);
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en listarFacturas", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en listarFacturas", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en listarFacturas", e); }
+			long nanos = System.nanoTime() - inicio;
+			pool.registrarLatencia(nanos);
+			Metricas.getInstance().registrarOperacion(Operacion.LISTAR_FACTURAS, nanos);
+		}
+	}
+
+	/**
+	 * Con un {@link PlazoLimite} en el hilo, una sentencia cancelada por su
+	 * tiempo maximo (ORA-01013) o una espera agotada es un PLAZO_AGOTADO.
+	 */
+	private static SQLException traducirPlazo(SQLException e) {
+		if (PlazoLimite.actual() != null && !(e instanceof AlquilerCochesException)
+				&& (e instanceof SQLTimeoutException || new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.CANCELLED))) {
+			return new AlquilerCochesException(AlquilerCochesException.PLAZO_AGOTADO);
+		}
+		return e;
+	}
+
+	private static int limitePagina(int limite) throws SQLException {
+		if (limite < 1) {
+			throw new SQLException("El limite de la pagina debe ser mayor que cero.");
+		}
+		return Math.min(limite, MAX_LIMITE_PAGINA);
+	}
+
+	/**
+	 * Cursor de {@link #listarReservas} que continua despues de una reserva.
+	 * 
+	 * @param r reserva leida por listarReservas
+	 * @return cursor opaco
+	 */
+	static String cursorDe(Reserva r) {
+		return crearCursor('R', new SimpleDateFormat("yyyyMMddHHmmss").format(r.getFechaIni()), String.valueOf(r.getIdReserva()));
+	}
+
+	/**
+	 * Cursor de {@link #listarFacturas} que continua despues de una factura.
+	 * 
+	 * @param f factura leida por listarFacturas
+	 * @return cursor opaco
+	 */
+	static String cursorDe(Factura f) {
+		return crearCursor('F', String.valueOf(f.getNroFactura()));
+	}
+
+	/**
+	 * Cursor opaco: el tipo de listado y la posicion, en Base64 para URL. El
+	 * cliente no lo interpreta; solo lo devuelve en la siguiente llamada.
+	 */
+	private static String crearCursor(char tipo, String... valores) {
+		StringBuilder sb = new StringBuilder().append(tipo);
+		for (String v : valores) {
+			sb.append(':').append(v);
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/** Decodifica y valida un cursor de {@link #crearCursor}: tipo y valores numericos. */
+	private static String[] leerCursor(String cursor, char tipo, int valores) throws AlquilerCochesException {
+		String texto;
+		try {
+			texto = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+		} catch (IllegalArgumentException e) {
+			throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+		}
+		String[] partes = texto.split(":", -1);
+		if (partes.length != valores + 1 || !partes[0].equals(String.valueOf(tipo))) {
+			throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+		}
+		String[] posicion = Arrays.copyOfRange(partes, 1, partes.length);
+		for (String v : posicion) {
+			// Como mucho YYYYMMDDHH24MISS
+			if (v.isEmpty() || v.length() > 14) {
+				throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+			}
+			for (int i = 0; i < v.length(); i++) {
+				if (!Character.isDigit(v.charAt(i))) {
+					throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+				}
+			}
+		}
+		try {
+			// El ultimo valor es siempre un idReserva o un nroFactura
+			Integer.parseInt(posicion[posicion.length - 1]);
+		} catch (NumberFormatException e) {
+			throw new AlquilerCochesException(AlquilerCochesException.CURSOR_INVALIDO);
+		}
+		return posicion;
 	}
 }
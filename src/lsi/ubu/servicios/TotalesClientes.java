@@ -0,0 +1,218 @@
+package lsi.ubu.servicios;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Totales por cliente (importe facturado y numero de reservas) mantenidos en
+ * CLIENTES_TOTALES dentro de la misma transaccion que alquila o anula.
+ *
+ * Para que un cliente con muchas reservas simultaneas no convierta su fila en
+ * un punto caliente, cada cliente tiene hasta {@value #RANURAS} filas
+ * (ranuras) y cada transaccion actualiza una al azar. La consulta suma esas
+ * pocas filas, que comparten el prefijo de la clave primaria.
+ *
+ * Las ranuras de un cliente se crean todas a la vez, a cero, la primera vez
+ * que se acumula algo suyo (y todas en {@link #reconstruir()}); despues solo
+ * se actualizan. Asi dos transacciones que estrenan a la vez una ranura no
+ * pueden chocar en la clave primaria, como pasaria con un MERGE: la segunda
+ * espera a la primera en el INSERT y se salta las filas que ya existen.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class TotalesClientes {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(TotalesClientes.class);
+
+	/** Filas por cliente entre las que se reparten las actualizaciones. */
+	static final int RANURAS = 8;
+
+	/** Suma importe y reservas en una ranura ya creada: (importe, reservas, nif, ranura). */
+	static final String SQL_ACUMULAR =
+		"UPDATE clientes_totales SET importe = importe + ?, reservas = reservas + ? WHERE nif = ? AND ranura = ?";
+
+	/** Crea a cero las ranuras del cliente si aun no tiene ninguna: (nif). */
+	private static final String SQL_CREAR_RANURAS = crearRanuras("SELECT ? nif FROM dual");
+
+	private static final String SQL_RECONSTRUIR =
+		"INSERT INTO clientes_totales (nif, ranura, importe, reservas) " +
+		"SELECT c.nif, s.ranura, DECODE(s.ranura, 0, c.importe, 0), DECODE(s.ranura, 0, c.reservas, 0) " +
+		"FROM (SELECT c.nif, " +
+		"             NVL((SELECT SUM(f.importe) FROM facturas f WHERE f.cliente = c.nif), 0) importe, " +
+		"             (SELECT COUNT(*) FROM reservas_todas r WHERE r.cliente = c.nif) reservas " +
+		"        FROM clientes c) c, " +
+		"     (SELECT LEVEL - 1 ranura FROM dual CONNECT BY LEVEL <= " + RANURAS + ") s";
+
+	/** Totales de un cliente. */
+	public static class Totales {
+		private final BigDecimal importe;
+		private final int reservas;
+
+		Totales(BigDecimal importe, int reservas) {
+			this.importe = importe;
+			this.reservas = reservas;
+		}
+
+		public BigDecimal getImporte() {
+			return importe;
+		}
+
+		public int getReservas() {
+			return reservas;
+		}
+	}
+
+	/**
+	 * Sentencia que crea a cero las {@value #RANURAS} ranuras de los clientes
+	 * que aun no tienen ninguna. Si otra transaccion las esta creando a la vez,
+	 * el INSERT espera a que confirme y se salta las que ya existen en lugar de
+	 * fallar con ORA-00001. Vale tambien dentro de un bloque PL/SQL.
+	 *
+	 * @param clientes consulta con una columna nif (p. ej. "SELECT ? nif FROM dual")
+	 * @return la sentencia INSERT, sin punto y coma
+	 */
+	static String crearRanuras(String clientes) {
+		return "INSERT /*+ IGNORE_ROW_ON_DUPKEY_INDEX(clientes_totales (nif, ranura)) */ " +
+			"INTO clientes_totales (nif, ranura, importe, reservas) " +
+			"SELECT c.nif, s.ranura, 0, 0 " +
+			"FROM (" + clientes + ") c, (SELECT LEVEL - 1 ranura FROM dual CONNECT BY LEVEL <= " + RANURAS + ") s " +
+			"WHERE NOT EXISTS (SELECT 1 FROM clientes_totales t WHERE t.nif = c.nif)";
+	}
+
+	/**
+	 * Ranura que actualizara la transaccion en curso.
+	 *
+	 * @return ranura al azar entre 0 y RANURAS-1
+	 */
+	static int ranura() {
+		return ThreadLocalRandom.current().nextInt(RANURAS);
+	}
+
+	/**
+	 * Acumula importe y reservas de un cliente usando la conexion de la
+	 * transaccion en curso, sin confirmar.
+	 *
+	 * @param con      conexion de la transaccion
+	 * @param nif      cliente
+	 * @param importe  importe a sumar (negativo para restar)
+	 * @param reservas reservas a sumar (negativo para restar)
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	static void acumular(Connection con, String nif, BigDecimal importe, int reservas) throws SQLException {
+		PreparedStatement st = con.prepareStatement(SQL_ACUMULAR);
+		try {
+			st.setBigDecimal(1, importe);
+			st.setInt(2, reservas);
+			st.setString(3, nif);
+			st.setInt(4, ranura());
+			if (st.executeUpdate() == 0) {
+				// Primer total del cliente: crear sus ranuras y repetir
+				PreparedStatement crear = con.prepareStatement(SQL_CREAR_RANURAS);
+				try {
+					crear.setString(1, nif);
+					crear.executeUpdate();
+				} finally {
+					crear.close();
+				}
+				st.executeUpdate();
+			}
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * Consulta los totales de un cliente.
+	 *
+	 * @param nif cliente
+	 * @return totales (a cero si el cliente no tiene ninguno)
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Totales consultar(String nif) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		try {
+			con = pool.getConnection();
+			st = con.prepareStatement("SELECT NVL(SUM(importe), 0), NVL(SUM(reservas), 0) FROM clientes_totales WHERE nif = ?");
+			st.setString(1, nif);
+			rs = st.executeQuery();
+			rs.next();
+			Totales totales = new Totales(rs.getBigDecimal(1), rs.getInt(2));
+			con.commit();
+			return totales;
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en consultar", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en consultar", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en consultar", e); }
+		}
+	}
+
+	/**
+	 * Recalcula todos los totales desde FACTURAS y las reservas (activas y
+	 * archivadas), corrigiendo cualquier desviacion. Deja todo en la ranura 0
+	 * y las demas creadas a cero, para que las altas posteriores solo tengan
+	 * que actualizar.
+	 *
+	 * @return numero de clientes recalculados
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public int reconstruir() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+
+		try {
+			con = pool.getConnection();
+			st = con.prepareStatement("LOCK TABLE clientes_totales IN EXCLUSIVE MODE");
+			st.execute();
+			st.close();
+
+			st = con.prepareStatement("DELETE FROM clientes_totales");
+			st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(SQL_RECONSTRUIR);
+			int clientes = st.executeUpdate();
+			con.commit();
+
+			LOGGER.info("Totales de {} clientes reconstruidos", clientes);
+			return clientes;
+
+		} catch (SQLException e) {
+			LOGGER.error("SQLException reconstruyendo los totales de clientes: {}", e.getMessage());
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException exRollback) {
+					LOGGER.error("Error CRÍTICO al intentar rollback en reconstruir.", exRollback);
+				}
+			}
+			throw e;
+		} finally {
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en reconstruir", e); }
+			try {
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando Connection en reconstruir", e); }
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package lsi.ubu.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Ejecuta los casos de {@link Tests} en paralelo. Cada trabajador tiene su
+ * propio esquema (un usuario de Oracle creado con sql/alquiler_coches.sql) y
+ * su propio pool, asignado a su hilo con
+ * {@link PoolDeConexiones#asignarAlHilo(PoolDeConexiones)}, de modo que los
+ * casos pueden seguir llamando a inicializa_test y contando con los valores de
+ * las secuencias sin pisarse. Los casos se reparten por turnos entre los
+ * trabajadores y el resultado se recoge en un {@link Informe}.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class EjecutorParalelo {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(EjecutorParalelo.class);
+
+	private static final String SCRIPT = "sql/alquiler_coches.sql";
+	private static final String PREFIJO_ESQUEMA = "alquiler_t";
+
+	/** Resultado de un caso. */
+	public static class ResultadoCaso {
+		private final String caso;
+		private final int trabajador;
+		private final long duracionMs;
+		private final List<String> fallos;
+
+		ResultadoCaso(String caso, int trabajador, long duracionMs, List<String> fallos) {
+			this.caso = caso;
+			this.trabajador = trabajador;
+			this.duracionMs = duracionMs;
+			this.fallos = fallos;
+		}
+
+		public String getCaso() {
+			return caso;
+		}
+
+		public int getTrabajador() {
+			return trabajador;
+		}
+
+		public long getDuracionMs() {
+			return duracionMs;
+		}
+
+		public List<String> getFallos() {
+			return fallos;
+		}
+
+		public boolean isCorrecto() {
+			return fallos.isEmpty();
+		}
+	}
+
+	/** Resultado de toda la ejecucion. */
+	public static class Informe {
+		private final List<ResultadoCaso> resultados;
+		private final long duracionMs;
+
+		Informe(List<ResultadoCaso> resultados, long duracionMs) {
+			this.resultados = resultados;
+			this.duracionMs = duracionMs;
+		}
+
+		public List<ResultadoCaso> getResultados() {
+			return resultados;
+		}
+
+		public long getDuracionMs() {
+			return duracionMs;
+		}
+
+		public int getFallidos() {
+			int n = 0;
+			for (ResultadoCaso r : resultados) {
+				if (!r.isCorrecto()) {
+					n++;
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * Escribe el informe en el log: una linea por caso y un resumen.
+		 */
+		public void volcar() {
+			for (ResultadoCaso r : resultados) {
+				if (r.isCorrecto()) {
+					LOGGER.info("{} OK (trabajador {}, {} ms)", r.getCaso(), r.getTrabajador(), r.getDuracionMs());
+				} else {
+					LOGGER.info("{} MAL (trabajador {}, {} ms): {}", r.getCaso(), r.getTrabajador(), r.getDuracionMs(), r.getFallos());
+				}
+			}
+			LOGGER.info("{} casos, {} fallidos, {} ms", resultados.size(), getFallidos(), duracionMs);
+		}
+	}
+
+	private final List<String> credenciales;
+
+	/**
+	 * Crea el ejecutor sobre esquemas ya existentes.
+	 *
+	 * @param credenciales un usuario/contrasena por trabajador
+	 */
+	public EjecutorParalelo(List<String> credenciales) {
+		this.credenciales = credenciales;
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args numero de trabajadores y credenciales usuario/contrasena de
+	 *             un usuario DBA, ambos obligatorios
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Uso: EjecutorParalelo <trabajadores> <usuario/contrasena DBA>");
+		}
+		int trabajadores = Integer.parseInt(args[0]);
+		String dba = args[1];
+
+		EjecutorParalelo ejecutor = new EjecutorParalelo(provisionar(trabajadores, dba));
+		ejecutor.preparar();
+		Informe informe = ejecutor.ejecutar(Arrays.asList(Tests.CASOS));
+		informe.volcar();
+	}
+
+	/**
+	 * Crea (o vuelve a crear) un usuario de Oracle por trabajador.
+	 *
+	 * @param trabajadores numero de esquemas
+	 * @param dba          credenciales usuario/contrasena con permiso para
+	 *                     crear usuarios
+	 * @return credenciales de los esquemas creados
+	 * @throws IOException si no se puede escribir o falla el script de
+	 *                     creacion
+	 */
+	public static List<String> provisionar(int trabajadores, String dba) throws IOException {
+		List<String> creados = new ArrayList<String>();
+		File script = File.createTempFile("esquemas", ".sql");
+		PrintWriter pw = new PrintWriter(script, StandardCharsets.UTF_8.name());
+		try {
+			for (int i = 1; i <= trabajadores; i++) {
+				String usuario = PREFIJO_ESQUEMA + i;
+				pw.println("begin execute immediate 'drop user " + usuario + " cascade'; exception when others then null; end;");
+				pw.println("/");
+				pw.println("create user " + usuario + " identified by " + usuario + ";");
+				pw.println("grant connect, resource, create view, unlimited tablespace to " + usuario + ";");
+				creados.add(usuario + "/" + usuario);
+			}
+			pw.println("exit");
+		} finally {
+			pw.close();
+		}
+		boolean correcto = ExecuteScript.run(script.getPath(), dba);
+		if (!script.delete()) {
+			script.deleteOnExit();
+		}
+		if (!correcto) {
+			throw new IOException("No se pudieron crear los esquemas de prueba con el usuario DBA");
+		}
+		LOGGER.info("Provisionados {} esquemas de prueba", trabajadores);
+		return creados;
+	}
+
+	/**
+	 * Crea las tablas y datos de prueba en todos los esquemas, en paralelo.
+	 *
+	 * @throws IOException          si el script falla en algun esquema o no
+	 *                              termina a tiempo
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	public void preparar() throws IOException, InterruptedException {
+		final AtomicInteger fallidos = new AtomicInteger();
+		ExecutorService hilos = Executors.newFixedThreadPool(credenciales.size());
+		for (final String c : credenciales) {
+			hilos.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!ExecuteScript.run(SCRIPT, c)) {
+						fallidos.incrementAndGet();
+					}
+				}
+			});
+		}
+		hilos.shutdown();
+		if (!hilos.awaitTermination(10, TimeUnit.MINUTES)) {
+			hilos.shutdownNow();
+			throw new IOException("La preparacion de los esquemas no termino a tiempo");
+		}
+		if (fallidos.get() > 0) {
+			throw new IOException("Fallo " + SCRIPT + " en " + fallidos.get() + " esquemas");
+		}
+	}
+
+	/**
+	 * Ejecuta los casos repartiendolos por turnos entre los trabajadores.
+	 *
+	 * @param casos nombres de los casos (ver {@link Tests#CASOS})
+	 * @return informe con el resultado de cada caso, en el orden recibido
+	 * @throws SQLException         si no se puede crear el pool de un esquema
+	 * @throws InterruptedException si se interrumpe la espera
+	 * @throws ExecutionException   si un trabajador falla fuera de un caso
+	 */
+	public Informe ejecutar(final List<String> casos) throws SQLException, InterruptedException, ExecutionException {
+		int n = credenciales.size();
+		long inicio = System.nanoTime();
+		ExecutorService hilos = Executors.newFixedThreadPool(n);
+		List<Future<List<ResultadoCaso>>> futuros = new ArrayList<Future<List<ResultadoCaso>>>();
+		List<PoolDeConexiones> pools = new ArrayList<PoolDeConexiones>();
+		try {
+			for (int t = 0; t < n; t++) {
+				final int trabajador = t;
+				String[] partes = credenciales.get(t).split("/", 2);
+				final PoolDeConexiones pool = PoolDeConexiones.crearParaEsquema(partes[0], partes[1]);
+				pools.add(pool);
+				futuros.add(hilos.submit(new Callable<List<ResultadoCaso>>() {
+					@Override
+					public List<ResultadoCaso> call() {
+						return ejecutarTurno(trabajador, casos, pool);
+					}
+				}));
+			}
+
+			List<ResultadoCaso> resultados = new ArrayList<ResultadoCaso>(Collections.<ResultadoCaso>nCopies(casos.size(), null));
+			for (int t = 0; t < n; t++) {
+				List<ResultadoCaso> parciales = futuros.get(t).get();
+				for (int k = 0; k < parciales.size(); k++) {
+					resultados.set(t + k * n, parciales.get(k));
+				}
+			}
+			return new Informe(resultados, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+		} finally {
+			hilos.shutdownNow();
+			// Los trabajadores cancelados deben soltar sus conexiones antes de cerrar
+			if (!hilos.awaitTermination(30, TimeUnit.SECONDS)) {
+				LOGGER.warn("Quedan trabajadores sin terminar; se cierran sus pools igualmente");
+			}
+			for (PoolDeConexiones pool : pools) {
+				try {
+					pool.cerrar();
+				} catch (SQLException e) {
+					LOGGER.warn("Error cerrando el pool {}: {}", pool.getNombre(), e.getMessage());
+				}
+			}
+		}
+	}
+
+	/** Casos trabajador, trabajador + n, trabajador + 2n... en el esquema del trabajador. */
+	private List<ResultadoCaso> ejecutarTurno(int trabajador, List<String> casos, PoolDeConexiones pool) {
+		List<ResultadoCaso> resultados = new ArrayList<ResultadoCaso>();
+		PoolDeConexiones.asignarAlHilo(pool);
+		try {
+			Tests tests = new Tests();
+			for (int k = trabajador; k < casos.size(); k += credenciales.size()) {
+				tests.getFallos().clear();
+				long inicio = System.nanoTime();
+				try {
+					tests.ejecutar(casos.get(k));
+				} catch (SQLException | RuntimeException e) {
+					tests.getFallos().add(e.toString());
+				}
+				resultados.add(new ResultadoCaso(casos.get(k), trabajador,
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio), new ArrayList<String>(tests.getFallos())));
+			}
+		} finally {
+			PoolDeConexiones.asignarAlHilo(null);
+		}
+		return resultados;
+	}
+}
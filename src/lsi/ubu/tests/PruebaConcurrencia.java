@@ -0,0 +1,389 @@
+package lsi.ubu.tests;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Prueba de concurrencia de alquilar: muchos hilos reservan a la vez los
+ * vehiculos de inicializa_test (tres matriculas, dos clientes) con intervalos
+ * aleatorios, algunos sin fecha de fin. Al terminar se comprueba que no hay
+ * dos reservas solapadas del mismo vehiculo, que cada reserva tiene su
+ * factura con sus dos lineas y que los totales por cliente cuadran. El
+ * informe da el rendimiento junto a las violaciones encontradas, para poder
+ * comparar estrategias de bloqueo mas rapidas sin perder la correccion.
+ *
+ * Borra los datos con inicializa_test: usar solo contra un esquema de pruebas.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class PruebaConcurrencia {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(PruebaConcurrencia.class);
+
+	private static final String[] CLIENTES = { "12345678A", "11111111B" };
+	private static final String[] MATRICULAS = { "1234-ABC", "1111-ABC", "2222-ABC" };
+
+	/** Dias que se facturan y se reservan cuando no hay fecha de fin (como en ServicioImpl). */
+	private static final int DIAS_POR_DEFECTO = 4;
+
+	/** Duracion maxima de una reserva con fecha de fin. */
+	private static final int MAX_DIAS = 7;
+
+	/** Probabilidad de pedir la reserva sin fecha de fin. */
+	private static final double PROB_SIN_FIN = 0.2;
+
+	/**
+	 * Pares de reservas solapadas. La de menor idReserva hace de reserva
+	 * existente (su fecha de fin nula cuenta como abierta) y la otra de nueva
+	 * (su fecha de fin nula cuenta como DIAS_POR_DEFECTO), que es como las
+	 * compara alquilar.
+	 */
+	private static final String SQL_SOLAPES =
+		"SELECT a.matricula, a.idReserva, b.idReserva " +
+		"FROM reservas a JOIN reservas b ON a.matricula = b.matricula AND a.idReserva < b.idReserva " +
+		"WHERE b.fecha_ini < NVL(a.fecha_fin, a.fecha_ini + 1000) " +
+		"  AND a.fecha_ini < NVL(b.fecha_fin, b.fecha_ini + ?) " +
+		"ORDER BY a.matricula, a.idReserva, b.idReserva";
+
+	/**
+	 * Facturas sin reservas (FACTURAS_RESERVAS) o cuyo importe no es la suma
+	 * de lo que cuestan sus reservas; una factura de flota tiene varias.
+	 */
+	private static final String SQL_FACTURAS_DESCUADRADAS =
+		"SELECT f.nroFactura, f.importe, COUNT(r.idReserva), " +
+		"       NVL(SUM(m.precio_cada_dia * NVL(r.fecha_fin - r.fecha_ini, ?) + pc.precio_por_litro * m.capacidad_deposito), 0) " +
+		"FROM facturas f " +
+		"LEFT JOIN facturas_reservas fr ON fr.nroFactura = f.nroFactura " +
+		"LEFT JOIN reservas_todas r ON r.idReserva = fr.idReserva " +
+		"LEFT JOIN vehiculos v ON r.matricula = v.matricula " +
+		"LEFT JOIN modelos m ON v.id_modelo = m.id_modelo " +
+		"LEFT JOIN precio_combustible pc ON m.tipo_combustible = pc.tipo_combustible " +
+		"GROUP BY f.nroFactura, f.importe " +
+		"HAVING COUNT(r.idReserva) = 0 " +
+		"    OR NVL(SUM(m.precio_cada_dia * NVL(r.fecha_fin - r.fecha_ini, ?) + pc.precio_por_litro * m.capacidad_deposito), 0) <> f.importe";
+
+	/** Reservas sin factura que tampoco la tienen pendiente. */
+	private static final String SQL_RESERVAS_SIN_FACTURA =
+		"SELECT r.idReserva FROM reservas r " +
+		"WHERE NOT EXISTS (SELECT 1 FROM facturas_reservas fr WHERE fr.idReserva = r.idReserva) " +
+		"  AND NOT EXISTS (SELECT 1 FROM facturas_pendientes p WHERE p.idReserva = r.idReserva)";
+
+	/** Facturas que no tienen exactamente dos lineas por reserva que sumen su importe. */
+	private static final String SQL_LINEAS_DESCUADRADAS =
+		"SELECT f.nroFactura, f.importe, COUNT(l.nroFactura), SUM(l.importe) " +
+		"FROM facturas f " +
+		"LEFT JOIN (SELECT nroFactura, COUNT(*) n FROM facturas_reservas GROUP BY nroFactura) fr ON fr.nroFactura = f.nroFactura " +
+		"LEFT JOIN lineas_factura l ON l.nroFactura = f.nroFactura " +
+		"GROUP BY f.nroFactura, f.importe, fr.n " +
+		"HAVING COUNT(l.nroFactura) <> 2 * NVL(fr.n, 0) OR NVL(SUM(l.importe), 0) <> f.importe";
+
+	/** Clientes cuyos totales no coinciden con sus facturas y reservas. */
+	private static final String SQL_TOTALES_DESCUADRADOS =
+		"SELECT c.nif, NVL(t.importe, 0), NVL(f.importe, 0), NVL(t.reservas, 0), NVL(r.n, 0) " +
+		"FROM clientes c " +
+		"LEFT JOIN (SELECT nif, SUM(importe) importe, SUM(reservas) reservas FROM clientes_totales GROUP BY nif) t ON t.nif = c.nif " +
+		"LEFT JOIN (SELECT cliente, SUM(importe) importe FROM facturas GROUP BY cliente) f ON f.cliente = c.nif " +
+		"LEFT JOIN (SELECT cliente, COUNT(*) n FROM reservas GROUP BY cliente) r ON r.cliente = c.nif " +
+		"WHERE NVL(t.importe, 0) <> NVL(f.importe, 0) OR NVL(t.reservas, 0) <> NVL(r.n, 0)";
+
+	/** Resultado de una ejecucion. */
+	public static class Informe {
+		private final long operaciones;
+		private final long reservas;
+		private final long ocupados;
+		private final long otrosErrores;
+		private final long duracionMs;
+		private final List<String> violaciones;
+
+		Informe(long operaciones, long reservas, long ocupados, long otrosErrores, long duracionMs, List<String> violaciones) {
+			this.operaciones = operaciones;
+			this.reservas = reservas;
+			this.ocupados = ocupados;
+			this.otrosErrores = otrosErrores;
+			this.duracionMs = duracionMs;
+			this.violaciones = violaciones;
+		}
+
+		public long getOperaciones() {
+			return operaciones;
+		}
+
+		public long getReservas() {
+			return reservas;
+		}
+
+		public long getOcupados() {
+			return ocupados;
+		}
+
+		public long getOtrosErrores() {
+			return otrosErrores;
+		}
+
+		public long getDuracionMs() {
+			return duracionMs;
+		}
+
+		/** @return operaciones terminadas (bien o con excepcion) por segundo */
+		public double getOperacionesPorSegundo() {
+			return duracionMs > 0 ? operaciones * 1000.0 / duracionMs : 0;
+		}
+
+		public List<String> getViolaciones() {
+			return violaciones;
+		}
+
+		public boolean isCorrecto() {
+			return violaciones.isEmpty();
+		}
+
+		/**
+		 * Escribe el informe en el log.
+		 */
+		public void volcar() {
+			LOGGER.info("{} operaciones en {} ms ({} op/s): {} reservas, {} vehiculo ocupado, {} otros errores",
+					operaciones, duracionMs, String.format("%.1f", getOperacionesPorSegundo()), reservas, ocupados, otrosErrores);
+			if (violaciones.isEmpty()) {
+				LOGGER.info("Sin violaciones: OK");
+			} else {
+				for (String v : violaciones) {
+					LOGGER.error(v);
+				}
+				LOGGER.error("{} violaciones: MAL", violaciones.size());
+			}
+		}
+	}
+
+	private final Servicio servicio;
+	private final int hilos;
+	private final int ventanaDias;
+	private final long semilla;
+
+	/**
+	 * Crea la prueba.
+	 *
+	 * @param servicio    implementacion a probar
+	 * @param hilos       hilos que reservan a la vez
+	 * @param ventanaDias dias entre los que se eligen las fechas de inicio;
+	 *                    cuantos menos, mas choques
+	 * @param semilla     semilla de los numeros aleatorios (el hilo i usa
+	 *                    semilla + i)
+	 */
+	public PruebaConcurrencia(Servicio servicio, int hilos, int ventanaDias, long semilla) {
+		this.servicio = servicio;
+		this.hilos = hilos;
+		this.ventanaDias = ventanaDias;
+		this.semilla = semilla;
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args hilos (por defecto 16), segundos (por defecto 30), dias de
+	 *             la ventana (por defecto 60) y "atomica" para probar la
+	 *             reserva con bloqueo del vehiculo
+	 */
+	public static void main(String[] args) throws Exception {
+		int hilos = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int segundos = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		int ventana = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+		ServicioImpl servicio = new ServicioImpl();
+		servicio.setReservaAtomica(args.length > 3 && "atomica".equals(args[3]));
+		Informe informe = new PruebaConcurrencia(servicio, hilos, ventana, System.nanoTime())
+				.ejecutar(segundos, TimeUnit.SECONDS);
+		informe.volcar();
+		System.exit(informe.isCorrecto() ? 0 : 1);
+	}
+
+	/**
+	 * Reinicia los datos, reserva durante el tiempo indicado y comprueba el
+	 * resultado.
+	 *
+	 * @param duracion tiempo reservando
+	 * @param unidad   unidad de la duracion
+	 * @return informe de rendimiento y violaciones
+	 * @throws SQLException         si falla el reinicio o la comprobacion
+	 * @throws InterruptedException si se interrumpe la espera
+	 * @throws IllegalStateException si los hilos no terminan ni
+	 *                               interrumpiendolos: la comprobacion no
+	 *                               seria fiable con reservas aun en curso
+	 */
+	public Informe ejecutar(long duracion, TimeUnit unidad) throws SQLException, InterruptedException {
+		reiniciar();
+
+		final long fin = System.nanoTime() + unidad.toNanos(duracion);
+		final AtomicLong operaciones = new AtomicLong();
+		final AtomicLong reservas = new AtomicLong();
+		final AtomicLong ocupados = new AtomicLong();
+		final AtomicLong otrosErrores = new AtomicLong();
+
+		long inicio = System.nanoTime();
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		for (int i = 0; i < hilos; i++) {
+			final Random aleatorio = new Random(semilla + i);
+			ejecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < fin) {
+						try {
+							reservar(aleatorio);
+							reservas.incrementAndGet();
+						} catch (AlquilerCochesException e) {
+							if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+								ocupados.incrementAndGet();
+							} else {
+								otrosErrores.incrementAndGet();
+							}
+						} catch (SQLException e) {
+							otrosErrores.incrementAndGet();
+							LOGGER.debug("Error en la prueba de concurrencia: {}", e.getMessage());
+						}
+						operaciones.incrementAndGet();
+					}
+				}
+			});
+		}
+		ejecutor.shutdown();
+		// Margen para que terminen las operaciones en curso
+		if (!ejecutor.awaitTermination(unidad.toMillis(duracion) + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS)) {
+			LOGGER.warn("Los hilos de la prueba no han terminado a tiempo, se interrumpen");
+			ejecutor.shutdownNow();
+			if (!ejecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Quedan hilos de la prueba sin terminar");
+			}
+		}
+		long duracionMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+
+		return new Informe(operaciones.get(), reservas.get(), ocupados.get(), otrosErrores.get(), duracionMs, comprobar());
+	}
+
+	private void reservar(Random aleatorio) throws SQLException {
+		// Fechas a medianoche dentro de mayo-junio, sin cambios de hora
+		// que acorten un dia al restar las fechas
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(2030, Calendar.MAY, 1);
+		cal.add(Calendar.DAY_OF_YEAR, aleatorio.nextInt(ventanaDias));
+		Date fechaIni = cal.getTime();
+		Date fechaFin = null;
+		if (aleatorio.nextDouble() >= PROB_SIN_FIN) {
+			cal.add(Calendar.DAY_OF_YEAR, 1 + aleatorio.nextInt(MAX_DIAS));
+			fechaFin = cal.getTime();
+		}
+		servicio.alquilar(CLIENTES[aleatorio.nextInt(CLIENTES.length)], MATRICULAS[aleatorio.nextInt(MATRICULAS.length)],
+				fechaIni, fechaFin);
+	}
+
+	private void reiniciar() throws SQLException {
+		Connection con = null;
+		CallableStatement cst = null;
+
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+		} finally {
+			try {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando recursos en reiniciar", e); }
+		}
+	}
+
+	/**
+	 * Busca solapes, facturas sin reserva o sin lineas y totales descuadrados.
+	 *
+	 * @return descripcion de cada violacion; vacia si todo cuadra
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public List<String> comprobar() throws SQLException {
+		List<String> violaciones = new ArrayList<String>();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+
+			st = con.prepareStatement(SQL_SOLAPES);
+			st.setInt(1, DIAS_POR_DEFECTO);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				violaciones.add("Vehiculo " + rs.getString(1) + " reservado dos veces: reservas " + rs.getInt(2) + " y "
+						+ rs.getInt(3));
+			}
+			rs.close();
+			st.close();
+
+			st = con.prepareStatement(SQL_FACTURAS_DESCUADRADAS);
+			st.setInt(1, DIAS_POR_DEFECTO);
+			st.setInt(2, DIAS_POR_DEFECTO);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				violaciones.add("Factura " + rs.getInt(1) + " de " + rs.getBigDecimal(2) + ": " + rs.getInt(3)
+						+ " reservas que suman " + rs.getBigDecimal(4));
+			}
+			rs.close();
+			st.close();
+
+			st = con.prepareStatement(SQL_RESERVAS_SIN_FACTURA);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				violaciones.add("Reserva " + rs.getInt(1) + " sin factura");
+			}
+			rs.close();
+			st.close();
+
+			st = con.prepareStatement(SQL_LINEAS_DESCUADRADAS);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				violaciones.add("Factura " + rs.getInt(1) + " de " + rs.getBigDecimal(2) + " con " + rs.getInt(3)
+						+ " lineas que suman " + rs.getBigDecimal(4));
+			}
+			rs.close();
+			st.close();
+
+			st = con.prepareStatement(SQL_TOTALES_DESCUADRADOS);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				violaciones.add("Totales de " + rs.getString(1) + ": importe " + rs.getBigDecimal(2) + " frente a "
+						+ rs.getBigDecimal(3) + " facturado, " + rs.getInt(4) + " reservas frente a " + rs.getInt(5));
+			}
+
+			con.commit();
+		} finally {
+			try { if (rs != null) rs.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando ResultSet en comprobar", e); }
+			try { if (st != null) st.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando PreparedStatement en comprobar", e); }
+			try { if (con != null) con.close(); } catch (SQLException e) { LOGGER.warn("Error cerrando Connection en comprobar", e); }
+		}
+		return Collections.unmodifiableList(violaciones);
+	}
+}
@@ -0,0 +1,181 @@
+package lsi.ubu.tests;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.Pagina;
+import lsi.ubu.servicios.Reserva;
+import lsi.ubu.servicios.ServicioFragmentado;
+import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.util.EnrutadorFragmentos;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Prueba del reparto en fragmentos. Hace de cada fragmento un esquema de la
+ * base de datos local (como {@link EjecutorParalelo}), reparte entre ellos las
+ * matriculas de inicializa_test y comprueba que cada reserva queda en el
+ * fragmento dueno de su vehiculo, con un id de ese fragmento, que los solapes
+ * se siguen detectando y que el listado mezcla bien los fragmentos.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class PruebaFragmentos {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(PruebaFragmentos.class);
+
+	private static final String[] MATRICULAS = { "1234-ABC", "1111-ABC", "2222-ABC" };
+
+	/**
+	 * Principal.
+	 *
+	 * @param args numero de fragmentos y credenciales usuario/contrasena de un
+	 *             usuario DBA, ambos obligatorios
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Uso: PruebaFragmentos <fragmentos> <usuario/contrasena DBA>");
+		}
+		int fragmentos = Integer.parseInt(args[0]);
+		String dba = args[1];
+
+		List<String> credenciales = EjecutorParalelo.provisionar(fragmentos, dba);
+		new EjecutorParalelo(credenciales).preparar();
+
+		EnrutadorFragmentos enrutador = new EnrutadorFragmentos();
+		try {
+			for (int i = 0; i < credenciales.size(); i++) {
+				String[] partes = credenciales.get(i).split("/", 2);
+				PoolDeConexiones pool = PoolDeConexiones.crearParaEsquema(partes[0], partes[1]);
+				try {
+					enrutador.anadirFragmento(i + 1, pool);
+				} catch (SQLException | RuntimeException e) {
+					pool.cerrar();
+					throw e;
+				}
+			}
+			new PruebaFragmentos().ejecutar(enrutador);
+		} finally {
+			for (PoolDeConexiones pool : enrutador.getFragmentos().values()) {
+				pool.cerrar();
+			}
+		}
+	}
+
+	/**
+	 * Reinicia los fragmentos y ejecuta las comprobaciones.
+	 *
+	 * @param enrutador fragmentos a probar
+	 * @return true si todo es correcto
+	 * @throws Exception si falla la preparacion
+	 */
+	public boolean ejecutar(EnrutadorFragmentos enrutador) throws Exception {
+		for (PoolDeConexiones pool : enrutador.getFragmentos().values()) {
+			reiniciar(pool);
+		}
+		enrutador.configurarSecuencias();
+		ServicioFragmentado servicio = new ServicioFragmentado(new ServicioImpl(), enrutador);
+		servicio.replicarReferencia(enrutador.getFragmentos().get(enrutador.getFragmentos().firstKey()));
+
+		SimpleDateFormat formato = new SimpleDateFormat("dd-MM-yyyy");
+		boolean correcto = true;
+
+		for (String matricula : MATRICULAS) {
+			servicio.alquilar("12345678A", matricula, formato.parse("11-3-2013"), formato.parse("13-3-2013"));
+			try {
+				servicio.alquilar("11111111B", matricula, formato.parse("12-3-2013"), formato.parse("14-3-2013"));
+				LOGGER.info("Solape en el fragmento de {} MAL no da excepcion", matricula);
+				correcto = false;
+			} catch (AlquilerCochesException e) {
+				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+					LOGGER.info("Solape en el fragmento de {} OK", matricula);
+				} else {
+					LOGGER.info("Solape en el fragmento de {} MAL: {}", matricula, e.getMessage());
+					correcto = false;
+				}
+			}
+		}
+
+		for (Map.Entry<Integer, PoolDeConexiones> f : enrutador.getFragmentos().entrySet()) {
+			Connection con = null;
+			PreparedStatement st = null;
+			ResultSet rs = null;
+			try {
+				con = f.getValue().getConnection();
+				st = con.prepareStatement("SELECT idReserva, matricula FROM reservas");
+				rs = st.executeQuery();
+				while (rs.next()) {
+					int id = rs.getInt(1);
+					String matricula = rs.getString(2);
+					if (enrutador.numeroDe(matricula) == f.getKey() && id % EnrutadorFragmentos.MAX_FRAGMENTOS == f.getKey()) {
+						LOGGER.info("Reserva {} de {} en el fragmento {} OK", id, matricula, f.getKey());
+					} else {
+						LOGGER.info("Reserva {} de {} en el fragmento {} MAL", id, matricula, f.getKey());
+						correcto = false;
+					}
+				}
+				con.commit();
+			} finally {
+				if (rs != null) {
+					rs.close();
+				}
+				if (st != null) {
+					st.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// Las tres reservas del cliente, de 2 en 2 y mezcladas por fecha e id
+		String ids = "";
+		String cursor = null;
+		Integer anterior = null;
+		boolean ordenado = true;
+		do {
+			Pagina<Reserva> pagina = servicio.listarReservas("12345678A", cursor, 2);
+			for (Reserva r : pagina.getElementos()) {
+				ordenado &= anterior == null || r.getIdReserva() < anterior;
+				anterior = r.getIdReserva();
+				ids += r.getIdReserva() + ",";
+			}
+			cursor = pagina.getSiguienteCursor();
+		} while (cursor != null);
+		if (ordenado && ids.split(",").length == MATRICULAS.length) {
+			LOGGER.info("Listado de todos los fragmentos OK");
+		} else {
+			LOGGER.info("Listado de todos los fragmentos MAL: {}", ids);
+			correcto = false;
+		}
+		return correcto;
+	}
+
+	private static void reiniciar(PoolDeConexiones pool) throws SQLException {
+		Connection con = null;
+		CallableStatement cst = null;
+		try {
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+}
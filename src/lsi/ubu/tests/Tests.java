@@ -1,21 +1,41 @@
 package lsi.ubu.tests;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import lsi.ubu.Misc;
 import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.ArchivoReservas;
+import lsi.ubu.servicios.Factura;
+import lsi.ubu.servicios.InformeUtilizacion;
+import lsi.ubu.servicios.OcupacionVehiculos;
+import lsi.ubu.servicios.Pagina;
+import lsi.ubu.servicios.Reserva;
+import lsi.ubu.servicios.ResultadoAlquiler;
 import lsi.ubu.servicios.Servicio;
 import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.servicios.TotalesClientes;
+import lsi.ubu.util.Cortacircuitos;
+import lsi.ubu.util.PlazoLimite;
 import lsi.ubu.util.PoolDeConexiones;
 
 public class Tests {
@@ -23,34 +43,108 @@ public class Tests {
 	/** Logger. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(Tests.class);
 
-	public void ejecutarTests() throws SQLException {
+	/** Nombres de los casos, en el orden en que los ejecuta {@link #ejecutarTests()}. */
+	public static final String[] CASOS = { "caso1", "caso2", "caso3", "caso4", "caso5_1", "caso5_2", "caso5_3", "caso6",
+			"caso7", "caso8", "caso9", "caso10", "caso11", "caso12", "caso13", "caso14", "caso15",
+			"caso16", "caso17", "caso18", "caso19" };
 
-		Servicio servicio = new ServicioImpl();
+	private final Servicio servicio = new ServicioImpl();
 
-		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+	private final SimpleDateFormat formatoFechas = new SimpleDateFormat("dd-MM-yyyy");
 
-		SimpleDateFormat formatoFechas = new SimpleDateFormat("dd-MM-yyyy");
+	/** Mensajes MAL y errores de los casos ejecutados con esta instancia. */
+	private final List<String> fallos = new ArrayList<String>();
 
-		// caso 1 nro dias negativo
-		{
-			try {
-				Calendar calendar = Calendar.getInstance();
-				calendar.add(Calendar.DATE, -1);
+	public void ejecutarTests() throws SQLException {
+		for (String caso : CASOS) {
+			ejecutar(caso);
+		}
+	}
 
-				Date ayer = calendar.getTime();
+	/**
+	 * Ejecuta un caso por su nombre.
+	 * 
+	 * @param caso nombre del caso (ver {@link #CASOS})
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void ejecutar(String caso) throws SQLException {
+		switch (caso) {
+		case "caso1": caso1(); break;
+		case "caso2": caso2(); break;
+		case "caso3": caso3(); break;
+		case "caso4": caso4(); break;
+		case "caso5_1": caso5_1(); break;
+		case "caso5_2": caso5_2(); break;
+		case "caso5_3": caso5_3(); break;
+		case "caso6": caso6(); break;
+		case "caso7": caso7(); break;
+		case "caso8": caso8(); break;
+		case "caso9": caso9(); break;
+		case "caso10": caso10(); break;
+		case "caso11": caso11(); break;
+		case "caso12": caso12(); break;
+		case "caso13": caso13(); break;
+		case "caso14": caso14(); break;
+		case "caso15": caso15(); break;
+		case "caso16": caso16(); break;
+		case "caso17": caso17(); break;
+		case "caso18": caso18(); break;
+		case "caso19": caso19(); break;
+		default:
+			throw new IllegalArgumentException("Caso desconocido: " + caso);
+		}
+	}
 
-				servicio.alquilar("12345678A", "1234-ABC", new Date(), ayer);
-				LOGGER.info("Nro de dias insuficiente MAL no da excepcion");
-			} catch (SQLException e) {
-				if (e.getErrorCode() == AlquilerCochesException.SIN_DIAS) {
-					LOGGER.info("Nro de dias insuficiente OK");
-				} else {
-					LOGGER.info("Nro de dias insuficiente MAL");
-				}
+	/**
+	 * Fallos anotados desde que se creo la instancia o se vacio la lista.
+	 * 
+	 * @return mensajes de los fallos (la lista es la propia de la instancia)
+	 */
+	public List<String> getFallos() {
+		return fallos;
+	}
+
+	private void informar(String mensaje) {
+		LOGGER.info(mensaje);
+		if (mensaje.contains("MAL")) {
+			fallos.add(mensaje);
+		}
+	}
+
+	private void error(String mensaje) {
+		LOGGER.error(mensaje);
+		fallos.add(mensaje);
+	}
+
+	/**
+	 * Caso 1 nro dias negativo.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso1() throws SQLException {
+		try {
+			Calendar calendar = Calendar.getInstance();
+			calendar.add(Calendar.DATE, -1);
+
+			Date ayer = calendar.getTime();
+
+			servicio.alquilar("12345678A", "1234-ABC", new Date(), ayer);
+			informar("Nro de dias insuficiente MAL no da excepcion");
+		} catch (SQLException e) {
+			if (e.getErrorCode() == AlquilerCochesException.SIN_DIAS) {
+				informar("Nro de dias insuficiente OK");
+			} else {
+				informar("Nro de dias insuficiente MAL");
 			}
 		}
+	}
 
-		/* Creamos fechas adecuadas */
+	/**
+	 * Caso 2 vehiculo inexistente.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso2() throws SQLException {
 		Date fechaIni = null;
 		Date fechaFin = null;
 
@@ -58,320 +152,1336 @@ public class Tests {
 			fechaIni = formatoFechas.parse("20-03-2013");
 			fechaFin = formatoFechas.parse("22-03-2013");
 		} catch (ParseException e1) {
-			LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			error("Error en el test al parsear la fechas desde cadena.");
 		}
 
-		// caso 2 vehiculo inexistente
-		{
-			try {
-				servicio.alquilar("87654321Z", "9999-ZZZ", fechaIni, fechaFin);
-				LOGGER.info("Alquilar vehiculo inexistente MAL no da excepcion");
-			} catch (SQLException e) {
-				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_NO_EXIST) {
-					LOGGER.info("Alquilar vehiculo inexistente OK");
-				} else {
-					LOGGER.info("Alquilar vehiculo inexistente MAL");
-				}
+		try {
+			servicio.alquilar("87654321Z", "9999-ZZZ", fechaIni, fechaFin);
+			informar("Alquilar vehiculo inexistente MAL no da excepcion");
+		} catch (SQLException e) {
+			if (e.getErrorCode() == AlquilerCochesException.VEHICULO_NO_EXIST) {
+				informar("Alquilar vehiculo inexistente OK");
+			} else {
+				informar("Alquilar vehiculo inexistente MAL");
 			}
 		}
+	}
 
-		// caso 3 cliente inexistente
-		{
-			try {
-				servicio.alquilar("87654321Z", "1234-ABC", fechaIni, fechaFin);
-				LOGGER.info("Alquilar a cliente inexistente MAL no da excepcion");
-			} catch (SQLException e) {
-				if (e.getErrorCode() == AlquilerCochesException.CLIENTE_NO_EXIST) {
-					LOGGER.info("Alquilar  a cliente inexistente OK");
-				} else {
-					LOGGER.info("Alquilar a cliente inexistente MAL");
-				}
+	/**
+	 * Caso 3 cliente inexistente.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso3() throws SQLException {
+		Date fechaIni = null;
+		Date fechaFin = null;
+
+		try {
+			fechaIni = formatoFechas.parse("20-03-2013");
+			fechaFin = formatoFechas.parse("22-03-2013");
+		} catch (ParseException e1) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		}
+
+		try {
+			servicio.alquilar("87654321Z", "1234-ABC", fechaIni, fechaFin);
+			informar("Alquilar a cliente inexistente MAL no da excepcion");
+		} catch (SQLException e) {
+			if (e.getErrorCode() == AlquilerCochesException.CLIENTE_NO_EXIST) {
+				informar("Alquilar  a cliente inexistente OK");
+			} else {
+				informar("Alquilar a cliente inexistente MAL");
 			}
 		}
+	}
 
-		// caso 4 Todo correcto pero NO especifico la fecha final
-		{
-			Connection con = null;
-			PreparedStatement st = null;
-			ResultSet rs = null;
-			CallableStatement cst = null;
+	/**
+	 * Caso 4 Todo correcto pero NO especifico la fecha final.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso4() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Date fechaIni;
 
-			try {
-				// Reinicio filas
-				con = pool.getConnection();
-				cst = con.prepareCall("{call inicializa_test}");
-				cst.execute();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		CallableStatement cst = null;
 
-				fechaIni = formatoFechas.parse("11-3-2013");
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
 
-				servicio.alquilar("12345678A", "1234-ABC", fechaIni, null);
+			fechaIni = formatoFechas.parse("11-3-2013");
 
-				String query = "";
-				query += " SELECT listAgg(matricula||TO_CHAR(fecha_ini, 'DD-MM-YYYY')||TO_CHAR(fecha_fin, 'DD-MM-YYYY')||facturas.importe||cliente||concepto||lineas_factura.importe, '#') ";
-				query += " within group (order by nroFactura, concepto) ";
-				query += " FROM facturas join lineas_factura using(NroFactura) ";
-				query += " join reservas using(cliente) ";
+			servicio.alquilar("12345678A", "1234-ABC", fechaIni, null);
 
-				st = con.prepareStatement(query);
+			String query = "";
+			query += " SELECT listAgg(matricula||TO_CHAR(fecha_ini, 'DD-MM-YYYY')||TO_CHAR(fecha_fin, 'DD-MM-YYYY')||facturas.importe||cliente||concepto||lineas_factura.importe, '#') ";
+			query += " within group (order by nroFactura, concepto) ";
+			query += " FROM facturas join lineas_factura using(NroFactura) ";
+			query += " join reservas using(cliente) ";
 
-				rs = st.executeQuery();
-				rs.next();
+			st = con.prepareStatement(query);
 
-				String resultado = rs.getString(1);
-				if (rs.wasNull()) {
-					resultado = ""; // El join esta vacio
-				}
+			rs = st.executeQuery();
+			rs.next();
 
-				LOGGER.info("Caso alquiler correcto pero NO especifico la fecha final --------------");
+			String resultado = rs.getString(1);
+			if (rs.wasNull()) {
+				resultado = ""; // El join esta vacio
+			}
 
-				String resultadoPrevisto = "1234-ABC11-03-201313512345678A4 dias de alquiler, vehiculo modelo 1   60#1234-ABC11-03-201313512345678ADeposito lleno de 50 litros de Gasolina 75";
+			informar("Caso alquiler correcto pero NO especifico la fecha final --------------");
 
-				if (resultado.equals(resultadoPrevisto)) {
-					LOGGER.info("SI Coinciden la factura y las linea de factura  OK");
-				} else {
-					LOGGER.info("NO Coinciden la factura y las linea de factura  MAL");
-					LOGGER.info("Se obtiene...*" + resultado + "*");
-					LOGGER.info("Y deberia ser*" + resultadoPrevisto + "*");
-				}
+			String resultadoPrevisto = "1234-ABC11-03-201313512345678A4 dias de alquiler, vehiculo modelo 1   60#1234-ABC11-03-201313512345678ADeposito lleno de 50 litros de Gasolina 75";
+
+			if (resultado.equals(resultadoPrevisto)) {
+				informar("SI Coinciden la factura y las linea de factura  OK");
+			} else {
+				informar("NO Coinciden la factura y las linea de factura  MAL");
+				informar("Se obtiene...*" + resultado + "*");
+				informar("Y deberia ser*" + resultadoPrevisto + "*");
+			}
 
+			rs.close();
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (rs != null) {
 				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
 
-			} catch (SQLException e) {
-				LOGGER.error(e.getMessage());
-			} catch (ParseException e) {
-				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
-			} finally {
-				if (cst != null) {
-					cst.close();
-				}
-				if (rs != null) {
-					rs.close();
-				}
-				if (st != null) {
-					st.close();
-				}
-				if (con != null) {
-					con.close();
-				}
+	/**
+	 * Caso 5 Intentar alquilar un coche ya alquilado 5.1 la fecha ini del alquiler esta dentro de una reserva.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso5_1() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Date fechaIni;
+		Date fechaFin;
+
+		// Reservo del 2013-3-10 al 12
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			String query = "";
+			query += " insert into reservas values ";
+			query += " (seq_reservas.NEXTVAL, '11111111B', '1234-ABC', date '2013-3-11'-1, date '2013-3-11'+1) ";
+
+			st = con.prepareStatement(query);
+			st.executeUpdate();
+
+			con.commit();
+
+			fechaIni = new java.sql.Date(formatoFechas.parse("11-03-2013").getTime());
+			fechaFin = new java.sql.Date(formatoFechas.parse("13-03-2013").getTime());
+
+			servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
+			informar("MAL Caso vehiculo ocupado solape de fechaIni no levanta excepcion");
+
+		} catch (SQLException e) {
+			if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+				informar("OK Caso vehiculo ocupado solape de fechaIni correcto");
+			} else {
+				informar("MAL Caso vehiculo ocupado solape de fechaIni levanta excepcion " + e.getMessage());
+			}
+		} catch (ParseException e1) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (con != null) {
+				con.close();
 			}
 		}
+	}
 
-		// caso 5 Intentar alquilar un coche ya alquilado
-		// --5.1 la fecha ini del alquiler esta dentro de una reserva
-		{
-			// Reservo del 2013-3-10 al 12
-			Connection con = null;
-			PreparedStatement st = null;
-			CallableStatement cst = null;
+	/**
+	 * 5.2 la fecha fin del alquiler esta dentro de una reserva.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso5_2() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Date fechaIni;
+		Date fechaFin;
 
-			try {
-				// Reinicio filas
-				con = pool.getConnection();
-				cst = con.prepareCall("{call inicializa_test}");
-				cst.execute();
+		// Reservo del 2013-3-10 al 12
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
 
-				String query = "";
-				query += " insert into reservas values ";
-				query += " (seq_reservas.NEXTVAL, '11111111B', '1234-ABC', date '2013-3-11'-1, date '2013-3-11'+1) ";
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
 
-				st = con.prepareStatement(query);
-				st.executeUpdate();
+			String query = "";
+			query += " insert into reservas values ";
+			query += " (seq_reservas.NEXTVAL, '11111111B', '1234-ABC', date '2013-3-11'-1, date '2013-3-11'+1) ";
 
-				con.commit();
+			st = con.prepareStatement(query);
+			st.executeUpdate();
 
-				fechaIni = new java.sql.Date(formatoFechas.parse("11-03-2013").getTime());
-				fechaFin = new java.sql.Date(formatoFechas.parse("13-03-2013").getTime());
+			con.commit();
 
-				servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
-				LOGGER.info("MAL Caso vehiculo ocupado solape de fechaIni no levanta excepcion");
+			fechaIni = new java.sql.Date(formatoFechas.parse("07-03-2013").getTime());
+			fechaFin = new java.sql.Date(formatoFechas.parse("11-03-2013").getTime());
 
-			} catch (SQLException e) {
-				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
-					LOGGER.info("OK Caso vehiculo ocupado solape de fechaIni correcto");
-				} else {
-					LOGGER.info("MAL Caso vehiculo ocupado solape de fechaIni levanta excepcion " + e.getMessage());
-				}
-			} catch (ParseException e1) {
-				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
-			} finally {
-				if (cst != null) {
-					cst.close();
-				}
-				if (st != null) {
-					st.close();
-				}
-				if (con != null) {
-					con.close();
-				}
+			servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
+			informar("MAL Caso vehiculo ocupado solape de fechaFin no levanta excepcion");
+
+		} catch (SQLException e) {
+			if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+				informar("OK Caso vehiculo ocupado solape de fechaFin correcto");
+			} else {
+				informar("MAL Caso vehiculo ocupado solape de fechaFin levanta excepcion " + e.getMessage());
+			}
+
+		} catch (ParseException e1) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (con != null) {
+				con.close();
 			}
 		}
+	}
 
-		// --5.2 la fecha fin del alquiler esta dentro de una reserva
-		{
-			// Reservo del 2013-3-10 al 12
-			Connection con = null;
-			PreparedStatement st = null;
-			CallableStatement cst = null;
+	/**
+	 * 5.3 la el intervalo del alquiler esta dentro de una reserva.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso5_3() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 
-			try {
-				// Reinicio filas
-				con = pool.getConnection();
-				cst = con.prepareCall("{call inicializa_test}");
-				cst.execute();
+		// Reservo del Reservo del 2013-3-9 al 13
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
 
-				String query = "";
-				query += " insert into reservas values ";
-				query += " (seq_reservas.NEXTVAL, '11111111B', '1234-ABC', date '2013-3-11'-1, date '2013-3-11'+1) ";
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			String query = "";
+			query += " insert into reservas values ";
+			query += " (seq_reservas.NEXTVAL, '11111111B', '1234-ABC', date '2013-3-11'-2, date '2013-3-11'+2) ";
+
+			st = con.prepareStatement(query);
+			st.executeUpdate();
+
+			con.commit();
+
+			java.sql.Date dateIni = new java.sql.Date(formatoFechas.parse("04-03-2013").getTime());
+			java.sql.Date dateFin = new java.sql.Date(formatoFechas.parse("19-03-2013").getTime());
+
+			servicio.alquilar("12345678A", "1234-ABC", dateIni, dateFin);
+			informar(
+					"MAL Caso vehiculo ocupado intervalo del alquiler esta dentro de una reserva no levanta excepcion");
+
+		} catch (SQLException e) {
+			if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+				informar("OK Caso vehiculo ocupado intervalo del alquiler esta dentro de una reserva correcto");
+			} else {
+				informar(
+						"MAL Caso vehiculo ocupado intervalo del alquiler esta dentro de una reserva levanta excepcion levanta excepcion "
+								+ e.getMessage());
+			}
+		} catch (ParseException e1) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
 
-				st = con.prepareStatement(query);
-				st.executeUpdate();
+	/**
+	 * Caso 6 Todo correcto pero SI especifico la fecha final.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso6() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Date fechaIni;
+		Date fechaFin;
+
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+		ResultSet rs = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			fechaIni = formatoFechas.parse("11-3-2013");
+			fechaFin = formatoFechas.parse("13-3-2013");
+
+			servicio.alquilar("12345678A", "2222-ABC", fechaIni, fechaFin);
+
+			String query = "";
+			query += " SELECT listAgg(nroFactura||matricula||TO_CHAR(fecha_ini, 'DD-MM-YYYY')||TO_CHAR(fecha_fin, 'DD-MM-YYYY')||facturas.importe||cliente||concepto||lineas_factura.importe, '#') ";
+			query += " within group (order by nroFactura, concepto) ";
+			query += " FROM facturas join lineas_factura using(NroFactura) ";
+			query += " join reservas using(cliente) ";
+
+			st = con.prepareStatement(query);
 
-				con.commit();
+			rs = st.executeQuery();
 
-				fechaIni = new java.sql.Date(formatoFechas.parse("07-03-2013").getTime());
-				fechaFin = new java.sql.Date(formatoFechas.parse("11-03-2013").getTime());
+			rs.next();
+			String resultado = rs.getString(1);
+			if (rs.wasNull()) {
+				resultado = ""; // El join esta vacio
+			}
+
+			informar("Caso alquiler correcto pero SI especifico la fecha final --------------");
+
+			String resultadoPrevisto = "12222-ABC11-03-201313-03-201310212345678A2 dias de alquiler, vehiculo modelo 2   32#12222-ABC11-03-201313-03-201310212345678ADeposito lleno de 50 litros de Gasoil   70";
 
-				servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
-				LOGGER.info("MAL Caso vehiculo ocupado solape de fechaFin no levanta excepcion");
+			if (resultado.equals(resultadoPrevisto)) {
+				informar("SI Coinciden la factura y las linea de factura OK");
+			} else {
+				informar("NO Coinciden la factura y las linea de factura MAL");
+				informar("Se obtiene...*" + resultado + "*");
+				informar("Y deberia ser*" + resultadoPrevisto + "*");
+			}
 
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 7 Anular un alquiler borra la reserva y su factura.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso7() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Date fechaIni;
+		Date fechaFin;
+
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+		ResultSet rs = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			fechaIni = formatoFechas.parse("11-3-2013");
+			fechaFin = formatoFechas.parse("13-3-2013");
+
+			servicio.alquilar("12345678A", "2222-ABC", fechaIni, fechaFin);
+			servicio.anular_alquiler("1", "12345678A", "2222-ABC", fechaIni, fechaFin);
+
+			String query = "";
+			query += " SELECT (SELECT count(*) FROM reservas) + (SELECT count(*) FROM facturas) ";
+			query += " + (SELECT count(*) FROM lineas_factura) FROM dual ";
+
+			st = con.prepareStatement(query);
+			rs = st.executeQuery();
+			rs.next();
+
+			if (rs.getInt(1) == 0) {
+				informar("Anular alquiler borra reserva y factura OK");
+			} else {
+				informar("Anular alquiler deja " + rs.getInt(1) + " filas MAL");
+			}
+
+			try {
+				servicio.anular_alquiler("1", "12345678A", "2222-ABC", fechaIni, fechaFin);
+				informar("Anular reserva inexistente MAL no da excepcion");
 			} catch (SQLException e) {
-				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
-					LOGGER.info("OK Caso vehiculo ocupado solape de fechaFin correcto");
+				if (e.getErrorCode() == AlquilerCochesException.RESERVA_NO_EXIST) {
+					informar("Anular reserva inexistente OK");
 				} else {
-					LOGGER.info("MAL Caso vehiculo ocupado solape de fechaFin levanta excepcion " + e.getMessage());
+					informar("Anular reserva inexistente MAL");
 				}
+			}
 
-			} catch (ParseException e1) {
-				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
-			} finally {
-				if (cst != null) {
-					cst.close();
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 8 Modificar la fecha final ajusta la reserva y la factura.
+	 * 
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso8() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Date fechaIni;
+		Date fechaFin;
+
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+		ResultSet rs = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			fechaIni = formatoFechas.parse("11-3-2013");
+			fechaFin = formatoFechas.parse("13-3-2013");
+
+			servicio.alquilar("12345678A", "2222-ABC", fechaIni, fechaFin);
+			servicio.modificarAlquiler(1, formatoFechas.parse("15-3-2013"));
+
+			String query = "";
+			query += " SELECT listAgg(nroFactura||TO_CHAR(fecha_fin, 'DD-MM-YYYY')||facturas.importe||concepto||lineas_factura.importe, '#') ";
+			query += " within group (order by nroFactura, concepto) ";
+			query += " FROM facturas join lineas_factura using(NroFactura) ";
+			query += " join reservas using(cliente) ";
+
+			st = con.prepareStatement(query);
+			rs = st.executeQuery();
+			rs.next();
+
+			String resultado = rs.getString(1);
+			if (rs.wasNull()) {
+				resultado = ""; // El join esta vacio
+			}
+
+			String resultadoPrevisto = "115-03-20131344 dias de alquiler, vehiculo modelo 2   64#115-03-2013134Deposito lleno de 50 litros de Gasoil   70";
+
+			if (resultado.equals(resultadoPrevisto)) {
+				informar("Modificar alquiler ajusta reserva y factura OK");
+			} else {
+				informar("Modificar alquiler MAL");
+				informar("Se obtiene...*" + resultado + "*");
+				informar("Y deberia ser*" + resultadoPrevisto + "*");
+			}
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 9 listados paginados: las paginas de 2 en 2 recorren las reservas y
+	 * facturas del cliente en orden, sin repetir ni saltar las de la misma
+	 * fecha de inicio, y un cursor manipulado se rechaza.
+	 */
+	public void caso9() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+		Connection con = null;
+		CallableStatement cst = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			servicio.alquilar("12345678A", "1234-ABC", formatoFechas.parse("11-3-2013"), formatoFechas.parse("13-3-2013"));
+			servicio.alquilar("12345678A", "1234-ABC", formatoFechas.parse("13-3-2013"), formatoFechas.parse("15-3-2013"));
+			servicio.alquilar("12345678A", "1111-ABC", formatoFechas.parse("13-3-2013"), formatoFechas.parse("14-3-2013"));
+			servicio.alquilar("12345678A", "2222-ABC", formatoFechas.parse("20-3-2013"), null);
+			servicio.alquilar("11111111B", "1234-ABC", formatoFechas.parse("20-3-2013"), formatoFechas.parse("22-3-2013"));
+
+			String reservas = "";
+			String cursor = null;
+			do {
+				Pagina<Reserva> pagina = servicio.listarReservas("12345678A", cursor, 2);
+				for (Reserva r : pagina.getElementos()) {
+					reservas += r.getIdReserva() + ",";
 				}
-				if (st != null) {
-					st.close();
+				reservas += "|";
+				cursor = pagina.getSiguienteCursor();
+			} while (cursor != null);
+
+			String facturas = "";
+			cursor = null;
+			do {
+				Pagina<Factura> pagina = servicio.listarFacturas("12345678A", cursor, 2);
+				for (Factura f : pagina.getElementos()) {
+					facturas += f.getNroFactura() + ",";
 				}
-				if (con != null) {
-					con.close();
+				facturas += "|";
+				cursor = pagina.getSiguienteCursor();
+			} while (cursor != null);
+
+			String resultadoPrevisto = "4,3,|2,1,|";
+			if (reservas.equals(resultadoPrevisto) && facturas.equals(resultadoPrevisto)) {
+				informar("Listados paginados OK");
+			} else {
+				informar("Listados paginados MAL");
+				informar("Se obtiene...*" + reservas + "* y *" + facturas + "*");
+				informar("Y deberia ser*" + resultadoPrevisto + "*");
+			}
+
+			try {
+				servicio.listarReservas("12345678A", "no-es-un-cursor", 2);
+				informar("Cursor invalido MAL no da excepcion");
+			} catch (SQLException e) {
+				if (e.getErrorCode() == AlquilerCochesException.CURSOR_INVALIDO) {
+					informar("Cursor invalido OK");
+				} else {
+					informar("Cursor invalido MAL");
 				}
 			}
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
 		}
+	}
 
-		// --5.3 la el intervalo del alquiler esta dentro de una reserva
-		{
-			// Reservo del Reservo del 2013-3-9 al 13
-			Connection con = null;
-			PreparedStatement st = null;
-			CallableStatement cst = null;
+	/**
+	 * Caso 10 plazo limite: con el vehiculo bloqueado por otra transaccion, un
+	 * alquiler con plazo de 1 segundo termina con PLAZO_AGOTADO en lugar de
+	 * quedarse esperando el bloqueo.
+	 */
+	public void caso10() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		ServicioImpl atomico = new ServicioImpl();
+		atomico.setReservaAtomica(true);
 
-			try {
-				// Reinicio filas
-				con = pool.getConnection();
-				cst = con.prepareCall("{call inicializa_test}");
-				cst.execute();
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+		ResultSet rs = null;
 
-				String query = "";
-				query += " insert into reservas values ";
-				query += " (seq_reservas.NEXTVAL, '11111111B', '1234-ABC', date '2013-3-11'-2, date '2013-3-11'+2) ";
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
 
-				st = con.prepareStatement(query);
-				st.executeUpdate();
+			// Bloqueo del vehiculo hasta el rollback del final
+			st = con.prepareStatement("SELECT matricula FROM vehiculos WHERE matricula = '1234-ABC' FOR UPDATE");
+			rs = st.executeQuery();
 
-				con.commit();
+			long inicio = System.nanoTime();
+			PlazoLimite previo = PlazoLimite.fijar(1, TimeUnit.SECONDS);
+			try {
+				atomico.alquilar("12345678A", "1234-ABC", formatoFechas.parse("11-3-2013"), formatoFechas.parse("13-3-2013"));
+				informar("Plazo limite MAL no da excepcion");
+			} catch (SQLException e) {
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+				if (e.getErrorCode() == AlquilerCochesException.PLAZO_AGOTADO && ms < 5000) {
+					informar("Plazo limite OK");
+				} else {
+					informar("Plazo limite MAL: " + e.getMessage() + " tras " + ms + " ms");
+				}
+			} finally {
+				PlazoLimite.restaurar(previo);
+			}
+			con.rollback();
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
 
-				java.sql.Date dateIni = new java.sql.Date(formatoFechas.parse("04-03-2013").getTime());
-				java.sql.Date dateFin = new java.sql.Date(formatoFechas.parse("19-03-2013").getTime());
+	/**
+	 * Caso 11 cortacircuitos: los errores de conexion lo abren, abierto el
+	 * alquiler falla enseguida con BD_NO_DISPONIBLE, pasada la espera deja
+	 * pasar una llamada de prueba y, si va bien, se cierra. Los errores de
+	 * negocio no cuentan como fallo.
+	 */
+	public void caso11() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Cortacircuitos cortacircuitos = new Cortacircuitos(4, 2, 0.5, 200, 1);
+		final List<String> cambios = new ArrayList<String>();
+		cortacircuitos.anadirOyente(new Cortacircuitos.Oyente() {
+			@Override
+			public void cambioDeEstado(Cortacircuitos.Estado anterior, Cortacircuitos.Estado nuevo) {
+				synchronized (cambios) {
+					cambios.add(nuevo.name());
+				}
+			}
+		});
+
+		cortacircuitos.registrar(new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO));
+		cortacircuitos.registrar(new SQLException("ORA-00001", "23000", 1));
+		if (cortacircuitos.getEstado() == Cortacircuitos.Estado.CERRADO) {
+			informar("Cortacircuitos ignora errores de negocio OK");
+		} else {
+			informar("Cortacircuitos ignora errores de negocio MAL");
+		}
 
-				servicio.alquilar("12345678A", "1234-ABC", dateIni, dateFin);
-				LOGGER.info(
-						"MAL Caso vehiculo ocupado intervalo del alquiler esta dentro de una reserva no levanta excepcion");
+		cortacircuitos.registrar(new SQLRecoverableException("IO Error", "08006", 17002));
+		cortacircuitos.registrar(new SQLException("ORA-03113", "08006", 3113));
 
+		pool.setCortacircuitos(cortacircuitos);
+		try {
+			long inicio = System.nanoTime();
+			try {
+				servicio.alquilar("12345678A", "1234-ABC", formatoFechas.parse("11-3-2013"), formatoFechas.parse("13-3-2013"));
+				informar("Cortacircuitos abierto MAL no da excepcion");
 			} catch (SQLException e) {
-				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
-					LOGGER.info("OK Caso vehiculo ocupado intervalo del alquiler esta dentro de una reserva correcto");
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+				if (e.getErrorCode() == AlquilerCochesException.BD_NO_DISPONIBLE && ms < 100) {
+					informar("Cortacircuitos abierto OK");
 				} else {
-					LOGGER.info(
-							"MAL Caso vehiculo ocupado intervalo del alquiler esta dentro de una reserva levanta excepcion levanta excepcion "
-									+ e.getMessage());
+					informar("Cortacircuitos abierto MAL: " + e.getMessage() + " tras " + ms + " ms");
 				}
-			} catch (ParseException e1) {
-				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			}
+
+			Thread.sleep(250);
+			Connection con = pool.getConnection(); // llamada de prueba
+			PreparedStatement st = null;
+			try {
+				st = con.prepareStatement("SELECT 1 FROM DUAL");
+				st.executeQuery().close();
 			} finally {
-				if (cst != null) {
-					cst.close();
-				}
 				if (st != null) {
 					st.close();
 				}
-				if (con != null) {
-					con.close();
-				}
+				con.close();
 			}
+			if (cortacircuitos.getEstado() == Cortacircuitos.Estado.CERRADO
+					&& cambios.equals(Arrays.asList("ABIERTO", "SEMIABIERTO", "CERRADO"))) {
+				informar("Cortacircuitos semiabierto y cerrado OK");
+			} else {
+				informar("Cortacircuitos semiabierto y cerrado MAL: " + cortacircuitos.getEstado() + " " + cambios);
+			}
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error("Interrumpido esperando al cortacircuitos.");
+		} finally {
+			pool.setCortacircuitos(null);
 		}
+	}
 
-		// caso 6 Todo correcto pero SI especifico la fecha final
-		{
-			Connection con = null;
-			PreparedStatement st = null;
-			CallableStatement cst = null;
-			ResultSet rs = null;
+	/**
+	 * Caso 12 alquiler de flota: dos vehiculos quedan reservados con una sola
+	 * factura de cuatro lineas, y una segunda flota con un vehiculo libre y
+	 * otro ocupado no reserva ninguno. Una reserva de la flota no se modifica
+	 * ni se anula en lote por separado; la flota entera si se anula.
+	 */
+	public void caso12() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+		Connection con = null;
+		PreparedStatement st = null;
+		CallableStatement cst = null;
+		ResultSet rs = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			List<ResultadoAlquiler> flota = servicio.alquilarFlota("12345678A", Arrays.asList("1234-ABC", "1111-ABC"),
+					formatoFechas.parse("11-3-2013"), formatoFechas.parse("13-3-2013"));
+			boolean unaFactura = flota.size() == 2;
+			for (ResultadoAlquiler r : flota) {
+				unaFactura &= r.getNroFactura() == flota.get(0).getNroFactura();
+			}
 
 			try {
-				// Reinicio filas
-				con = pool.getConnection();
-				cst = con.prepareCall("{call inicializa_test}");
-				cst.execute();
+				servicio.alquilarFlota("11111111B", Arrays.asList("2222-ABC", "1111-ABC"), formatoFechas.parse("12-3-2013"), null);
+				informar("Flota con vehiculo ocupado MAL no da excepcion");
+			} catch (SQLException e) {
+				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+					informar("Flota con vehiculo ocupado OK");
+				} else {
+					informar("Flota con vehiculo ocupado MAL: " + e.getMessage());
+				}
+			}
 
-				fechaIni = formatoFechas.parse("11-3-2013");
-				fechaFin = formatoFechas.parse("13-3-2013");
+			String query = "SELECT (SELECT COUNT(*) FROM reservas) || '#' || (SELECT COUNT(*) FROM facturas) || '#' || (SELECT COUNT(*) FROM lineas_factura) FROM dual";
+			st = con.prepareStatement(query);
+			rs = st.executeQuery();
+			rs.next();
+			String resultado = rs.getString(1);
+			String resultadoPrevisto = "2#1#4";
+			if (unaFactura && resultado.equals(resultadoPrevisto)) {
+				informar("Alquiler de flota con una factura OK");
+			} else {
+				informar("Alquiler de flota MAL");
+				informar("Se obtiene...*" + resultado + "*");
+				informar("Y deberia ser*" + resultadoPrevisto + "*");
+			}
+			rs.close();
+			st.close();
+
+			// Un vehiculo de la flota no se cambia solo; la flota entera si se anula
+			try {
+				servicio.modificarAlquiler(flota.get(0).getIdReserva(), formatoFechas.parse("14-3-2013"));
+				informar("Modificar reserva de flota MAL no da excepcion");
+			} catch (SQLException e) {
+				if (e.getErrorCode() == AlquilerCochesException.RESERVA_EN_FLOTA) {
+					informar("Modificar reserva de flota OK");
+				} else {
+					informar("Modificar reserva de flota MAL: " + e.getMessage());
+				}
+			}
+			try {
+				servicio.anularLote(Arrays.asList(flota.get(0).getIdReserva()));
+				informar("Anular parte de una flota MAL no da excepcion");
+			} catch (SQLException e) {
+				if (e.getErrorCode() == AlquilerCochesException.RESERVA_EN_FLOTA) {
+					informar("Anular parte de una flota OK");
+				} else {
+					informar("Anular parte de una flota MAL: " + e.getMessage());
+				}
+			}
+			int anuladas = servicio.anularLote(Arrays.asList(flota.get(0).getIdReserva(), flota.get(1).getIdReserva()));
+			st = con.prepareStatement(query);
+			rs = st.executeQuery();
+			rs.next();
+			resultado = rs.getString(1);
+			if (anuladas == 2 && resultado.equals("0#0#0")) {
+				informar("Anular flota entera OK");
+			} else {
+				informar("Anular flota MAL: " + anuladas + " anuladas, quedan " + resultado);
+			}
 
-				servicio.alquilar("12345678A", "2222-ABC", fechaIni, fechaFin);
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
 
-				String query = "";
-				query += " SELECT listAgg(nroFactura||matricula||TO_CHAR(fecha_ini, 'DD-MM-YYYY')||TO_CHAR(fecha_fin, 'DD-MM-YYYY')||facturas.importe||cliente||concepto||lineas_factura.importe, '#') ";
-				query += " within group (order by nroFactura, concepto) ";
-				query += " FROM facturas join lineas_factura using(NroFactura) ";
-				query += " join reservas using(cliente) ";
+	/**
+	 * Caso 13 clave de idempotencia: repetida con los mismos datos devuelve la
+	 * reserva original y repetida con otro vehiculo se rechaza.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso13() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 
-				st = con.prepareStatement(query);
+		Connection con = null;
+		CallableStatement cst = null;
 
-				rs = st.executeQuery();
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			// La cache de claves vive lo que la JVM: clave nueva en cada ejecucion
+			String clave = "caso13-" + System.nanoTime();
+			Date ini = formatoFechas.parse("11-3-2013");
+			Date fin = formatoFechas.parse("13-3-2013");
+			ResultadoAlquiler primero = servicio.alquilarIdempotente(clave, "12345678A", "1234-ABC", ini, fin);
+			ResultadoAlquiler repetido = servicio.alquilarIdempotente(clave, "12345678A", "1234-ABC", ini, fin);
+			if (repetido.getIdReserva() == primero.getIdReserva() && repetido.getNroFactura() == primero.getNroFactura()) {
+				informar("Clave de idempotencia repetida OK");
+			} else {
+				informar("Clave de idempotencia repetida MAL: " + repetido + " en lugar de " + primero);
+			}
 
-				rs.next();
-				String resultado = rs.getString(1);
-				if (rs.wasNull()) {
-					resultado = ""; // El join esta vacio
+			try {
+				servicio.alquilarIdempotente(clave, "12345678A", "1111-ABC", ini, fin);
+				informar("Clave de idempotencia con otros datos MAL no da excepcion");
+			} catch (SQLException e) {
+				if (e.getErrorCode() == AlquilerCochesException.CLAVE_REUTILIZADA) {
+					informar("Clave de idempotencia con otros datos OK");
+				} else {
+					informar("Clave de idempotencia con otros datos MAL: " + e.getMessage());
 				}
+			}
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 14 estado de sesion entre prestamos: una vez prestada cada conexion
+	 * fisica del pool, pedir otra vez una conexion no vuelve a cambiar su
+	 * autocommit ni su nivel de aislamiento en la base de datos.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso14() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+		try {
+			// Calentar: que todas las conexiones fisicas del pool se presten alguna vez
+			for (int i = 0; i < 50; i++) {
+				pool.getConnection().close();
+			}
+			long antes = pool.getAjustesSesion();
+			Connection primera = pool.getConnection();
+			primera.close();
+			Connection segunda = pool.getConnection();
+			boolean estadoCorrecto = !segunda.getAutoCommit()
+					&& segunda.getTransactionIsolation() == Connection.TRANSACTION_READ_COMMITTED;
+			segunda.close();
+			long ajustes = pool.getAjustesSesion() - antes;
+			if (ajustes == 0 && estadoCorrecto) {
+				informar("Prestamo sin cambios de sesion OK");
+			} else {
+				informar("Prestamo sin cambios de sesion MAL: " + ajustes + " cambios enviados a la base de datos");
+			}
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		}
+	}
 
-				LOGGER.info("Caso alquiler correcto pero SI especifico la fecha final --------------");
+	/**
+	 * Caso 15 coste de las paginas de reservas: con un historial largo
+	 * archivado, el plan de la pagina siguiente recorre cada tabla por su
+	 * indice en orden descendente y para al llenar la pagina (COUNT STOPKEY),
+	 * sin ordenar todo el historial; y las paginas mezclan bien reservas
+	 * activas y archivadas.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso15() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 
-				String resultadoPrevisto = "12222-ABC11-03-201313-03-201310212345678A2 dias de alquiler, vehiculo modelo 2   32#12222-ABC11-03-201313-03-201310212345678ADeposito lleno de 50 litros de Gasoil   70";
+		Connection con = null;
+		CallableStatement cst = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
 
-				if (resultado.equals(resultadoPrevisto)) {
-					LOGGER.info("SI Coinciden la factura y las linea de factura OK");
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			// 3000 reservas archivadas y 3 activas, intercaladas en fecha con las ultimas archivadas
+			st = con.prepareStatement("INSERT INTO reservas_hist (idReserva, cliente, matricula, fecha_ini, fecha_fin) "
+					+ "SELECT seq_reservas.NEXTVAL, '12345678A', '1234-ABC', DATE '2000-01-01' + 2 * LEVEL, "
+					+ "DATE '2000-01-01' + 2 * LEVEL + 1 FROM dual CONNECT BY LEVEL <= 3000");
+			st.executeUpdate();
+			st.close();
+			st = con.prepareStatement("INSERT INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin) "
+					+ "SELECT seq_reservas.NEXTVAL, '12345678A', '1111-ABC', DATE '2000-01-01' + 2 * 2999 - 3 + 2 * LEVEL, "
+					+ "NULL FROM dual CONNECT BY LEVEL <= 3");
+			st.executeUpdate();
+			st.close();
+			con.commit();
+
+			// Plan: los ? pasan a variables de enlace sin valor, como en SQL*Plus
+			String sql = ServicioImpl.SQL_RESERVAS_SIGUIENTE;
+			StringBuilder enlazada = new StringBuilder();
+			int n = 0;
+			for (char c : sql.toCharArray()) {
+				if (c == '?') {
+					enlazada.append(":b").append(++n);
 				} else {
-					LOGGER.info("NO Coinciden la factura y las linea de factura MAL");
-					LOGGER.info("Se obtiene...*" + resultado + "*");
-					LOGGER.info("Y deberia ser*" + resultadoPrevisto + "*");
+					enlazada.append(c);
 				}
+			}
+			st = con.prepareStatement("EXPLAIN PLAN SET STATEMENT_ID = 'caso15' FOR " + enlazada);
+			st.execute();
+			st.close();
+			st = con.prepareStatement("SELECT SUM(CASE WHEN operation = 'COUNT' AND options = 'STOPKEY' THEN 1 ELSE 0 END), "
+					+ "SUM(CASE WHEN operation = 'INDEX' AND options = 'RANGE SCAN DESCENDING' "
+					+ "AND object_name IN ('RESERVAS_CLIENTE_FECHA', 'RESERVAS_HIST_CLIENTE_FECHA') THEN 1 ELSE 0 END) "
+					+ "FROM plan_table WHERE statement_id = 'caso15'");
+			rs = st.executeQuery();
+			rs.next();
+			int cortes = rs.getInt(1);
+			int indices = rs.getInt(2);
+			rs.close();
+			st.close();
+			st = con.prepareStatement("DELETE FROM plan_table WHERE statement_id = 'caso15'");
+			st.executeUpdate();
+			st.close();
+			con.commit();
+			if (cortes >= 3 && indices == 2) {
+				informar("Plan de pagina de reservas acotado OK");
+			} else {
+				informar("Plan de pagina de reservas MAL: " + cortes + " COUNT STOPKEY y " + indices
+						+ " recorridos descendentes de indice");
+			}
 
+			// Las dos primeras paginas de 4: las 3 activas mezcladas con las ultimas archivadas
+			Pagina<Reserva> primera = servicio.listarReservas("12345678A", null, 4);
+			Pagina<Reserva> segunda = servicio.listarReservas("12345678A", primera.getSiguienteCursor(), 4);
+			String matriculas = "";
+			for (Reserva r : primera.getElementos()) {
+				matriculas += r.getMatricula() + ",";
+			}
+			for (Reserva r : segunda.getElementos()) {
+				matriculas += r.getMatricula() + ",";
+			}
+			String resultadoPrevisto = "1111-ABC,1234-ABC,1111-ABC,1234-ABC,1111-ABC,1234-ABC,1234-ABC,1234-ABC,";
+			if (matriculas.equals(resultadoPrevisto) && segunda.getSiguienteCursor() != null) {
+				informar("Paginas de reservas activas y archivadas OK");
+			} else {
+				informar("Paginas de reservas activas y archivadas MAL");
+				informar("Se obtiene...*" + matriculas + "*");
+				informar("Y deberia ser*" + resultadoPrevisto + "*");
+			}
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 16 primeros totales concurrentes: varias reservas simultaneas del
+	 * mismo cliente, que aun no tiene totales, crean sus ranuras a la vez sin
+	 * fallar, y los totales cuadran con las reservas y las facturas.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso16() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		final PoolDeConexiones delHilo = PoolDeConexiones.getAsignadoAlHilo();
+		final int hilos = 8;
+
+		Connection con = null;
+		CallableStatement cst = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+			con.commit();
+
+			// Todos los hilos reservan a la vez, cada uno en dias distintos
+			final CountDownLatch salida = new CountDownLatch(1);
+			final List<String> fallos = new ArrayList<String>();
+			List<Thread> trabajadores = new ArrayList<Thread>();
+			for (int i = 0; i < hilos; i++) {
+				final Date fechaIni = formatoFechas.parse((1 + 2 * i) + "-3-2013");
+				final Date fechaFin = formatoFechas.parse((2 + 2 * i) + "-3-2013");
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						PoolDeConexiones.asignarAlHilo(delHilo);
+						try {
+							salida.await();
+							servicio.alquilar("11111111B", "1234-ABC", fechaIni, fechaFin);
+						} catch (Exception e) {
+							synchronized (fallos) {
+								fallos.add(e.getMessage());
+							}
+						}
+					}
+				});
+				t.start();
+				trabajadores.add(t);
+			}
+			salida.countDown();
+			for (Thread t : trabajadores) {
+				t.join();
+			}
+
+			st = con.prepareStatement("SELECT NVL(SUM(importe), 0) FROM facturas WHERE cliente = '11111111B'");
+			rs = st.executeQuery();
+			rs.next();
+			BigDecimal facturado = rs.getBigDecimal(1);
+			con.commit();
+
+			TotalesClientes.Totales totales = new TotalesClientes().consultar("11111111B");
+			if (fallos.isEmpty() && totales.getReservas() == hilos && totales.getImporte().compareTo(facturado) == 0) {
+				informar("Primeros totales concurrentes OK");
+			} else {
+				informar("Primeros totales concurrentes MAL: " + fallos + ", " + totales.getReservas() + " reservas y "
+						+ totales.getImporte() + " de importe, facturado " + facturado);
+			}
+
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error("Interrumpido esperando a las reservas.");
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} finally {
+			if (rs != null) {
+				rs.close();
+			}
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 17 archivado y disponibilidad: una reserva sin fecha de fin
+	 * empezada hace un mes ya no se factura pero sigue bloqueando el vehiculo,
+	 * asi que no se archiva y el vehiculo sigue ocupado despues; una reserva
+	 * terminada si se archiva.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso17() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+		Connection con = null;
+		CallableStatement cst = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+			con.commit();
+
+			Date hoy = Misc.getCurrentDate();
+			servicio.alquilar("12345678A", "1234-ABC", Misc.addDays(hoy, -30), null);
+			servicio.alquilar("12345678A", "1111-ABC", Misc.addDays(hoy, -20), Misc.addDays(hoy, -10));
+
+			long archivadas = new ArchivoReservas().archivar(hoy, 100);
+			if (archivadas == 1) {
+				informar("Archivado sin reservas abiertas OK");
+			} else {
+				informar("Archivado sin reservas abiertas MAL: " + archivadas + " archivadas");
+			}
+
+			try {
+				servicio.alquilar("11111111B", "1234-ABC", Misc.addDays(hoy, 5), Misc.addDays(hoy, 7));
+				informar("Disponibilidad tras archivar MAL no da excepcion");
 			} catch (SQLException e) {
-				LOGGER.error(e.getMessage());
-			} catch (ParseException e) {
-				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
-			} finally {
-				if (rs != null) {
-					rs.close();
-				}
-				if (st != null) {
-					st.close();
+				if (e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO) {
+					informar("Disponibilidad tras archivar OK");
+				} else {
+					informar("Disponibilidad tras archivar MAL: " + e.getMessage());
 				}
-				if (cst != null) {
-					cst.close();
+			}
+
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} finally {
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Caso 18 mapa de ocupacion: tras alquilar con y sin fecha de fin,
+	 * modificar, anular y anular en lote con el mapa activo, los bits que han
+	 * dejado las actualizaciones son los mismos que los de reconstruir() desde
+	 * la base de datos, y una reserva sin fecha de fin ocupa el vehiculo tanto
+	 * como en la comprobacion de solapamiento.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso18() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		File fichero = new File(System.getProperty("java.io.tmpdir"), "ocupacion-caso18-" + System.nanoTime() + ".map");
+
+		Connection con = null;
+		CallableStatement cst = null;
+		OcupacionVehiculos mapa = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+			con.commit();
+
+			mapa = OcupacionVehiculos.abrir(fichero, 8);
+			mapa.reconstruir();
+			ServicioImpl conMapa = new ServicioImpl();
+			conMapa.setOcupacion(mapa);
+
+			Date hoy = Misc.getCurrentDate();
+			conMapa.alquilarIdempotente("caso18-a", "12345678A", "1234-ABC", Misc.addDays(hoy, 10), null);
+			conMapa.alquilarIdempotente("caso18-b", "12345678A", "1111-ABC", Misc.addDays(hoy, 5), Misc.addDays(hoy, 9));
+			ResultadoAlquiler modificada = conMapa.alquilarIdempotente("caso18-c", "11111111B", "2222-ABC", Misc.addDays(hoy, 20), null);
+			conMapa.modificarAlquiler(modificada.getIdReserva(), Misc.addDays(hoy, 26));
+			ResultadoAlquiler anulada = conMapa.alquilarIdempotente("caso18-d", "11111111B", "1111-ABC", Misc.addDays(hoy, 30), null);
+			conMapa.anular_alquiler(String.valueOf(anulada.getIdReserva()), "11111111B", "1111-ABC", Misc.addDays(hoy, 30),
+					Misc.addDays(hoy, 30 + Misc.DEFAULT_INVOICE_DAYS));
+			ResultadoAlquiler enLote = conMapa.alquilarIdempotente("caso18-e", "12345678A", "2222-ABC", Misc.addDays(hoy, 40), null);
+			conMapa.anularLote(Arrays.asList(enLote.getIdReserva()));
+
+			String incremental = bitsOcupacion(mapa, hoy, Misc.OPEN_END_DAYS + 20);
+			boolean abiertaOcupa = !mapa.estaLibre("1234-ABC", Misc.addDays(hoy, 500), Misc.addDays(hoy, 501));
+			mapa.reconstruir();
+			String reconstruido = bitsOcupacion(mapa, hoy, Misc.OPEN_END_DAYS + 20);
+
+			if (incremental.equals(reconstruido) && abiertaOcupa) {
+				informar("Mapa de ocupacion incremental y reconstruido OK");
+			} else {
+				informar("Mapa de ocupacion incremental y reconstruido MAL: "
+						+ (abiertaOcupa ? "bits distintos" : "la reserva sin fin no ocupa el vehiculo"));
+			}
+
+		} catch (IOException e) {
+			error("Error con el fichero del mapa de ocupacion: " + e.getMessage());
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} finally {
+			if (mapa != null) {
+				try {
+					mapa.cerrar();
+				} catch (IOException e) {
+					LOGGER.warn("Error cerrando el mapa de ocupacion del caso 18", e);
 				}
-				if (con != null) {
-					con.close();
+			}
+			if (!fichero.delete()) {
+				LOGGER.warn("No se pudo borrar el mapa de ocupacion {}", fichero);
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/** Dias ocupados (1) y libres (0) de cada vehiculo de prueba a partir de una fecha. */
+	private String bitsOcupacion(OcupacionVehiculos mapa, Date desde, int dias) {
+		StringBuilder bits = new StringBuilder();
+		for (String matricula : new String[] { "1234-ABC", "1111-ABC", "2222-ABC" }) {
+			for (int d = 0; d < dias; d++) {
+				bits.append(mapa.estaLibre(matricula, Misc.addDays(desde, d), Misc.addDays(desde, d + 1)) ? '0' : '1');
+			}
+			bits.append('|');
+		}
+		return bits.toString();
+	}
+
+	/**
+	 * Caso 19 informe de utilizacion: con reservas sin fecha de fin, que
+	 * cruzan de un mes a otro o que empiezan o acaban fuera del periodo, y
+	 * reservas archivadas, el calculo por trozos da los mismos contadores que
+	 * la referencia en SQL, y los dias esperados.
+	 *
+	 * @throws SQLException si falla el cierre de los recursos del caso
+	 */
+	public void caso19() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+		Connection con = null;
+		CallableStatement cst = null;
+		PreparedStatement st = null;
+
+		try {
+			// Reinicio filas
+			con = pool.getConnection();
+			cst = con.prepareCall("{call inicializa_test}");
+			cst.execute();
+
+			// tabla, matricula, inicio, fin (null sin fecha de fin)
+			String[][] reservas = {
+					{ "reservas", "1234-ABC", "29-1-2013", null }, // 4 dias entre enero y febrero
+					{ "reservas", "1111-ABC", "25-2-2013", "5-3-2013" }, // 4 en febrero y 4 en marzo
+					{ "reservas", "2222-ABC", "30-3-2013", null }, // 2 dentro del periodo
+					{ "reservas_hist", "2222-ABC", "10-1-2013", "15-1-2013" }, // 5 archivados
+					{ "reservas_hist", "1234-ABC", "30-12-2012", "2-1-2013" } }; // 1 dentro del periodo
+			for (String[] r : reservas) {
+				st = con.prepareStatement("INSERT INTO " + r[0] + " (idReserva, cliente, matricula, fecha_ini, fecha_fin) "
+						+ "VALUES (seq_reservas.NEXTVAL, '12345678A', ?, ?, ?)");
+				st.setString(1, r[1]);
+				st.setDate(2, new java.sql.Date(formatoFechas.parse(r[2]).getTime()));
+				st.setDate(3, r[3] == null ? null : new java.sql.Date(formatoFechas.parse(r[3]).getTime()));
+				st.executeUpdate();
+				st.close();
+			}
+			con.commit();
+
+			InformeUtilizacion informe = new InformeUtilizacion();
+			Date desde = formatoFechas.parse("1-1-2013");
+			Date hasta = formatoFechas.parse("1-4-2013");
+			InformeUtilizacion.Resultado calculado = informe.calcular(desde, hasta);
+			InformeUtilizacion.Resultado referencia = informe.calcularConSql(desde, hasta);
+
+			long dias = 0;
+			for (int m = 0; m < calculado.getNumModelos(); m++) {
+				for (int i = 0; i < calculado.getMeses().length; i++) {
+					dias += calculado.getDiasOcupados(m, i);
 				}
 			}
+			if (calculado.mismosContadores(referencia) && dias == 20) {
+				informar("Informe de utilizacion igual a la referencia OK");
+			} else {
+				informar("Informe de utilizacion igual a la referencia MAL: " + dias + " dias ocupados, "
+						+ (calculado.mismosContadores(referencia) ? "contadores iguales" : "contadores distintos"));
+			}
+
+		} catch (ParseException e) {
+			error("Error en el test al parsear la fechas desde cadena.");
+		} catch (SQLException e) {
+			error(e.getMessage());
+		} finally {
+			if (st != null) {
+				st.close();
+			}
+			if (cst != null) {
+				cst.close();
+			}
+			if (con != null) {
+				con.close();
+			}
 		}
 	}
 }
@@ -0,0 +1,228 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Envoltorio de una conexion prestada por {@link PoolDeConexiones}. Recuerda
+ * cuando se presto y, si se muestreo, la pila de quien la pidio, para poder
+ * detectar conexiones que nunca se devuelven al pool.
+ *
+ * Tambien responde desde memoria a las consultas de autocommit y nivel de
+ * aislamiento y se salta los cambios que no cambian nada, con el
+ * {@link EstadoSesion} que el pool guarda para cada conexion fisica.
+ *
+ * Si el hilo tiene un {@link PlazoLimite}, cada ejecucion de una sentencia
+ * lleva como setQueryTimeout el tiempo que le queda en ese momento, y si ya no
+ * queda no se ejecuta.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class ConexionVigilada implements InvocationHandler {
+
+	private final PoolDeConexiones pool;
+	private final Connection conexion;
+	private final long id;
+	private final long instantePrestamo;
+	private final Throwable pilaPrestamo;
+	private final String hilo;
+	private final EstadoSesion estado;
+
+	private final AtomicBoolean cerrada = new AtomicBoolean();
+	private final AtomicBoolean fugaNotificada = new AtomicBoolean();
+
+	private ConexionVigilada(PoolDeConexiones pool, Connection conexion, long id, boolean muestrearPila,
+			EstadoSesion estado) {
+		this.pool = pool;
+		this.conexion = conexion;
+		this.id = id;
+		this.estado = estado;
+		this.instantePrestamo = System.nanoTime();
+		this.pilaPrestamo = muestrearPila ? new Throwable("Conexion " + id + " prestada aqui") : null;
+		this.hilo = Thread.currentThread().getName();
+	}
+
+	/**
+	 * Envuelve una conexion para vigilar su devolucion.
+	 *
+	 * @param pool          pool al que se notifica el cierre
+	 * @param conexion      conexion real
+	 * @param id            identificador del prestamo
+	 * @param muestrearPila si se guarda la pila de quien pide la conexion
+	 * @param estado        estado de sesion conocido de la conexion fisica
+	 * @return conexion envuelta
+	 */
+	static ConexionVigilada envolver(PoolDeConexiones pool, Connection conexion, long id, boolean muestrearPila,
+			EstadoSesion estado) {
+		return new ConexionVigilada(pool, conexion, id, muestrearPila, estado);
+	}
+
+	/**
+	 * Conexion que se entrega al llamante.
+	 *
+	 * @return proxy sobre la conexion real
+	 */
+	Connection getProxy() {
+		return (Connection) Proxy.newProxyInstance(ConexionVigilada.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, this);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+			if (cerrada.compareAndSet(false, true)) {
+				pool.devolver(this);
+				conexion.close();
+			}
+			return null;
+		}
+		if ("isClosed".equals(method.getName()) && cerrada.get()) {
+			return Boolean.TRUE;
+		}
+		if (!cerrada.get()) {
+			switch (method.getName()) {
+			case "setAutoCommit":
+				if (args[0].equals(estado.autoCommit)) {
+					return null;
+				}
+				estado.autoCommit = null;
+				pool.anotarAjusteSesion();
+				conexion.setAutoCommit((Boolean) args[0]);
+				estado.autoCommit = (Boolean) args[0];
+				return null;
+			case "getAutoCommit":
+				if (estado.autoCommit != null) {
+					return estado.autoCommit;
+				}
+				break;
+			case "setTransactionIsolation":
+				if ((Integer) args[0] == estado.aislamiento) {
+					return null;
+				}
+				estado.aislamiento = EstadoSesion.DESCONOCIDO;
+				pool.anotarAjusteSesion();
+				conexion.setTransactionIsolation((Integer) args[0]);
+				estado.aislamiento = (Integer) args[0];
+				return null;
+			case "getTransactionIsolation":
+				if (estado.aislamiento != EstadoSesion.DESCONOCIDO) {
+					return estado.aislamiento;
+				}
+				break;
+			case "prepareStatement":
+			case "prepareCall":
+			case "createStatement":
+				return prepararConPlazo(method, args);
+			default:
+				break;
+			}
+		}
+		try {
+			return method.invoke(conexion, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Prepara una sentencia envuelta para que cada execute* lleve el tiempo
+	 * maximo que permite el plazo del hilo al ejecutarse.
+	 */
+	private Object prepararConPlazo(Method method, Object[] args) throws Throwable {
+		PlazoLimite.comprobar();
+		Object sentencia;
+		try {
+			sentencia = method.invoke(conexion, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+		Class<?> tipo;
+		if ("prepareCall".equals(method.getName())) {
+			tipo = CallableStatement.class;
+		} else if ("prepareStatement".equals(method.getName())) {
+			tipo = PreparedStatement.class;
+		} else {
+			tipo = Statement.class;
+		}
+		return Proxy.newProxyInstance(ConexionVigilada.class.getClassLoader(), new Class<?>[] { tipo },
+				new SentenciaConPlazo((Statement) sentencia));
+	}
+
+	/**
+	 * Pone el tiempo maximo justo antes de cada execute*. Las sentencias de la
+	 * cache de la conexion conservan su tiempo maximo, asi que una vez usado un
+	 * plazo se vuelve a poner a 0 cuando no lo hay.
+	 */
+	private class SentenciaConPlazo implements InvocationHandler {
+		private final Statement sentencia;
+
+		SentenciaConPlazo(Statement sentencia) {
+			this.sentencia = sentencia;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().startsWith("execute")) {
+				PlazoLimite plazo = PlazoLimite.actual();
+				if (plazo != null) {
+					PlazoLimite.comprobar();
+					estado.conPlazo = true;
+					sentencia.setQueryTimeout(plazo.getSegundosSentencia());
+				} else if (estado.conPlazo) {
+					sentencia.setQueryTimeout(0);
+				}
+			}
+			try {
+				return method.invoke(sentencia, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	long getId() {
+		return id;
+	}
+
+	long getInstantePrestamo() {
+		return instantePrestamo;
+	}
+
+	Throwable getPilaPrestamo() {
+		return pilaPrestamo;
+	}
+
+	String getHilo() {
+		return hilo;
+	}
+
+	/**
+	 * Marca la conexion como fuga.
+	 *
+	 * @return true si es la primera vez que se marca
+	 */
+	boolean marcarFuga() {
+		return fugaNotificada.compareAndSet(false, true);
+	}
+
+	/**
+	 * Estado de sesion de una conexion fisica que se conserva entre prestamos.
+	 * Un valor desconocido obliga a preguntar (o fijar) en la conexion real; si
+	 * un cambio falla a medias el valor queda desconocido.
+	 */
+	static class EstadoSesion {
+		static final int DESCONOCIDO = -1;
+
+		volatile Boolean autoCommit;
+		volatile int aislamiento = DESCONOCIDO;
+		volatile boolean conPlazo;
+	}
+}
@@ -0,0 +1,166 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+
+/**
+ * Control de admision delante de la capa de servicio. Limita cuantas
+ * operaciones de cada tipo se ejecutan a la vez, cuantas pueden esperar turno
+ * y cuanto pueden esperar. Lo que no cabe se rechaza enseguida con
+ * {@link AlquilerCochesException#SOBRECARGA} en lugar de quedarse bloqueado
+ * pidiendo conexion al pool, de modo que las operaciones admitidas mantienen
+ * una latencia razonable.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ControlAdmision {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ControlAdmision.class);
+
+	/** Tipos de operacion con limite propio. */
+	public enum Tipo {
+		RESERVA, ANULACION, CONSULTA
+	}
+
+	private final int[] limites;
+	private final Semaphore[] enCurso = new Semaphore[Tipo.values().length];
+	private final AtomicInteger enCola = new AtomicInteger();
+	private final AtomicLong[] admitidas = new AtomicLong[Tipo.values().length];
+	private final AtomicLong[] rechazadas = new AtomicLong[Tipo.values().length];
+	private final int maxCola;
+	private final long esperaMaxNanos;
+
+	/**
+	 * Crea el control de admision.
+	 *
+	 * @param reservas    reservas simultaneas permitidas
+	 * @param anulaciones anulaciones simultaneas permitidas
+	 * @param consultas   consultas simultaneas permitidas
+	 * @param maxCola     operaciones que pueden esperar turno a la vez
+	 * @param esperaMaxMs tiempo maximo de espera en la cola
+	 */
+	public ControlAdmision(int reservas, int anulaciones, int consultas, int maxCola, long esperaMaxMs) {
+		this.limites = new int[] { reservas, anulaciones, consultas };
+		for (Tipo t : Tipo.values()) {
+			enCurso[t.ordinal()] = new Semaphore(limites[t.ordinal()], true);
+			admitidas[t.ordinal()] = new AtomicLong();
+			rechazadas[t.ordinal()] = new AtomicLong();
+		}
+		this.maxCola = maxCola;
+		this.esperaMaxNanos = TimeUnit.MILLISECONDS.toNanos(esperaMaxMs);
+	}
+
+	/**
+	 * Pide turno para una operacion. Si se concede hay que llamar despues a
+	 * {@link #salir(Tipo)}. La espera no pasa del {@link PlazoLimite} del hilo.
+	 *
+	 * @param tipo tipo de operacion
+	 * @throws AlquilerCochesException con codigo SOBRECARGA si la cola esta
+	 *                                 llena o se agota la espera, o
+	 *                                 PLAZO_AGOTADO si se agota antes el plazo
+	 */
+	public void entrar(Tipo tipo) throws AlquilerCochesException {
+		PlazoLimite.comprobar();
+		Semaphore semaforo = enCurso[tipo.ordinal()];
+		// tryAcquire() sin tiempo se cuela delante de la cola aunque el
+		// semaforo sea justo; con tiempo cero respeta a los que esperan
+		boolean libre = false;
+		try {
+			libre = semaforo.tryAcquire(0, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (libre) {
+			admitidas[tipo.ordinal()].incrementAndGet();
+			return;
+		}
+		if (enCola.incrementAndGet() > maxCola) {
+			enCola.decrementAndGet();
+			rechazar(tipo, "cola llena");
+		}
+		long espera = esperaMaxNanos;
+		PlazoLimite plazo = PlazoLimite.actual();
+		if (plazo != null) {
+			espera = Math.min(espera, plazo.getRestanteNanos());
+		}
+		boolean concedido = false;
+		try {
+			concedido = semaforo.tryAcquire(espera, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			enCola.decrementAndGet();
+		}
+		if (!concedido) {
+			if (plazo != null && plazo.isAgotado()) {
+				rechazadas[tipo.ordinal()].incrementAndGet();
+				PlazoLimite.comprobar();
+			}
+			rechazar(tipo, "espera agotada");
+		}
+		admitidas[tipo.ordinal()].incrementAndGet();
+	}
+
+	/**
+	 * Devuelve el turno de una operacion terminada.
+	 *
+	 * @param tipo tipo de operacion
+	 */
+	public void salir(Tipo tipo) {
+		enCurso[tipo.ordinal()].release();
+	}
+
+	private void rechazar(Tipo tipo, String motivo) throws AlquilerCochesException {
+		long total = rechazadas[tipo.ordinal()].incrementAndGet();
+		LOGGER.debug("Operacion {} rechazada por {} ({} rechazadas)", tipo, motivo, total);
+		throw new AlquilerCochesException(AlquilerCochesException.SOBRECARGA);
+	}
+
+	/**
+	 * Operaciones esperando turno en este momento.
+	 *
+	 * @return profundidad de la cola
+	 */
+	public int getEnCola() {
+		return enCola.get();
+	}
+
+	/**
+	 * Operaciones de un tipo en ejecucion.
+	 *
+	 * @param tipo tipo de operacion
+	 * @return operaciones en curso
+	 */
+	public int getEnCurso(Tipo tipo) {
+		return limites[tipo.ordinal()] - enCurso[tipo.ordinal()].availablePermits();
+	}
+
+	/**
+	 * Operaciones de un tipo admitidas desde el arranque.
+	 *
+	 * @param tipo tipo de operacion
+	 * @return operaciones admitidas
+	 */
+	public long getAdmitidas(Tipo tipo) {
+		return admitidas[tipo.ordinal()].get();
+	}
+
+	/**
+	 * Operaciones de un tipo rechazadas desde el arranque.
+	 *
+	 * @param tipo tipo de operacion
+	 * @return operaciones rechazadas
+	 */
+	public long getRechazadas(Tipo tipo) {
+		return rechazadas[tipo.ordinal()].get();
+	}
+}
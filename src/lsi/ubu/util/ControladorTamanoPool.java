@@ -0,0 +1,218 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Control adaptativo del tamano del pool de conexiones. Muestrea
+ * periodicamente el tiempo de espera al pedir conexiones, las conexiones
+ * prestadas y libres, y la latencia de las operaciones, y agranda o reduce el
+ * pool dentro de unos limites usando {@link PoolDeConexiones#resizePool}.
+ *
+ * Para evitar oscilaciones solo se redimensiona cuando varias muestras
+ * consecutivas apuntan en la misma direccion (histeresis), y los umbrales de
+ * crecer y reducir estan separados.
+ *
+ * En cada muestra revisa tambien las fugas del pool, que de otro modo solo se
+ * revisan al pedir conexiones y no se verian con el pool parado.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ControladorTamanoPool {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ControladorTamanoPool.class);
+
+	// Valores por defecto
+	private static final long ESPERA_CRECER_MS = 50;
+	private static final long ESPERA_REDUCIR_MS = 5;
+	private static final long LATENCIA_SATURACION_MS = 2000;
+	private static final int MUESTRAS_HISTERESIS = 3;
+	private static final int PASO_CRECER = 2;
+	private static final int PASO_REDUCIR = 1;
+
+	/** Decision tomada en cada muestra. */
+	enum Decision {
+		CRECER, REDUCIR, MANTENER
+	}
+
+	private final PoolDeConexiones pool;
+	private final int minLimit;
+	private final int maxLimit;
+	private final long esperaCrecerNanos;
+	private final long esperaReducirNanos;
+	private final long latenciaSaturacionNanos;
+	private final int muestrasHisteresis;
+
+	private ScheduledExecutorService planificador;
+
+	// Estado del muestreo, solo lo toca el hilo del planificador
+	private int rachaCrecer;
+	private int rachaReducir;
+	private long ultimaEspera;
+	private long ultimosPrestamos;
+	private long ultimaLatencia;
+	private long ultimasOperaciones;
+
+	/**
+	 * Crea un controlador con los umbrales por defecto.
+	 *
+	 * @param pool     pool a controlar
+	 * @param minLimit tamano maximo mas pequeno permitido
+	 * @param maxLimit tamano maximo mas grande permitido
+	 */
+	public ControladorTamanoPool(PoolDeConexiones pool, int minLimit, int maxLimit) {
+		this(pool, minLimit, maxLimit, ESPERA_CRECER_MS, ESPERA_REDUCIR_MS, LATENCIA_SATURACION_MS,
+				MUESTRAS_HISTERESIS);
+	}
+
+	/**
+	 * Crea un controlador.
+	 *
+	 * @param pool                pool a controlar
+	 * @param minLimit            tamano maximo mas pequeno permitido
+	 * @param maxLimit            tamano maximo mas grande permitido
+	 * @param esperaCrecerMs      espera media (ms) a partir de la cual se crece
+	 * @param esperaReducirMs     espera media (ms) por debajo de la cual se
+	 *                            puede reducir
+	 * @param latenciaSaturacionMs latencia media (ms) a partir de la cual se
+	 *                            considera la base de datos saturada y no se
+	 *                            crece
+	 * @param muestrasHisteresis  muestras consecutivas necesarias para actuar
+	 */
+	public ControladorTamanoPool(PoolDeConexiones pool, int minLimit, int maxLimit, long esperaCrecerMs,
+			long esperaReducirMs, long latenciaSaturacionMs, int muestrasHisteresis) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("Limites del pool incorrectos: " + minLimit + ".." + maxLimit);
+		}
+		if (esperaReducirMs >= esperaCrecerMs) {
+			throw new IllegalArgumentException("El umbral de reducir debe ser menor que el de crecer");
+		}
+		this.pool = pool;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.esperaCrecerNanos = TimeUnit.MILLISECONDS.toNanos(esperaCrecerMs);
+		this.esperaReducirNanos = TimeUnit.MILLISECONDS.toNanos(esperaReducirMs);
+		this.latenciaSaturacionNanos = TimeUnit.MILLISECONDS.toNanos(latenciaSaturacionMs);
+		this.muestrasHisteresis = muestrasHisteresis;
+	}
+
+	/**
+	 * Arranca el muestreo periodico en un hilo demonio.
+	 *
+	 * @param periodo periodo de muestreo
+	 * @param unidad  unidad del periodo
+	 */
+	public synchronized void iniciar(long periodo, TimeUnit unidad) {
+		if (planificador != null) {
+			return;
+		}
+		if (!pool.isRedimensionable()) {
+			LOGGER.warn("El DataSource no es un pool UCP, no se activa el control de tamano");
+			return;
+		}
+		ultimaEspera = pool.getEsperaAcumulada();
+		ultimosPrestamos = pool.getPrestamos();
+		ultimaLatencia = pool.getLatenciaAcumulada();
+		ultimasOperaciones = pool.getOperaciones();
+
+		planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "control-tamano-pool");
+			t.setDaemon(true);
+			return t;
+		});
+		planificador.scheduleWithFixedDelay(() -> {
+			try {
+				pool.revisarFugas();
+				muestrear();
+			} catch (SQLException | RuntimeException e) {
+				LOGGER.error("Error en el control de tamano del pool: {}", e.getMessage());
+			}
+		}, periodo, periodo, unidad);
+		LOGGER.info("Control de tamano del pool activo entre {} y {} conexiones", minLimit, maxLimit);
+	}
+
+	/**
+	 * Detiene el muestreo.
+	 */
+	public synchronized void detener() {
+		if (planificador != null) {
+			planificador.shutdownNow();
+			planificador = null;
+		}
+	}
+
+	/**
+	 * Toma una muestra y, si procede, redimensiona el pool.
+	 *
+	 * @return decision tomada
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	Decision muestrear() throws SQLException {
+		long espera = pool.getEsperaAcumulada();
+		long prest = pool.getPrestamos();
+		long latencia = pool.getLatenciaAcumulada();
+		long ops = pool.getOperaciones();
+
+		long deltaPrestamos = prest - ultimosPrestamos;
+		long deltaOps = ops - ultimasOperaciones;
+		long esperaMedia = deltaPrestamos > 0 ? (espera - ultimaEspera) / deltaPrestamos : 0;
+		long latenciaMedia = deltaOps > 0 ? (latencia - ultimaLatencia) / deltaOps : 0;
+
+		ultimaEspera = espera;
+		ultimosPrestamos = prest;
+		ultimaLatencia = latencia;
+		ultimasOperaciones = ops;
+
+		int prestadas = pool.getConexionesPrestadas();
+		int libres = pool.getConexionesDisponibles();
+		int tamano = pool.getMaxPoolSize();
+
+		boolean presion = esperaMedia > esperaCrecerNanos || (libres == 0 && prestadas >= tamano);
+		boolean saturada = latenciaMedia > latenciaSaturacionNanos;
+		boolean holgura = esperaMedia < esperaReducirNanos && prestadas * 2 < tamano;
+
+		// Histeresis: cada direccion lleva su propia racha y se anulan entre si
+		if (presion && !saturada) {
+			rachaCrecer++;
+			rachaReducir = 0;
+		} else if (holgura) {
+			rachaReducir++;
+			rachaCrecer = 0;
+		} else {
+			rachaCrecer = 0;
+			rachaReducir = 0;
+		}
+
+		Decision decision = Decision.MANTENER;
+		int nuevo = tamano;
+		if (rachaCrecer >= muestrasHisteresis && tamano < maxLimit) {
+			decision = Decision.CRECER;
+			nuevo = Math.min(maxLimit, tamano + PASO_CRECER);
+		} else if (rachaReducir >= muestrasHisteresis && tamano > minLimit) {
+			decision = Decision.REDUCIR;
+			nuevo = Math.max(minLimit, tamano - PASO_REDUCIR);
+		}
+
+		String motivo = "esperaMedia=" + TimeUnit.NANOSECONDS.toMillis(esperaMedia) + "ms latenciaMedia="
+				+ TimeUnit.NANOSECONDS.toMillis(latenciaMedia) + "ms prestadas=" + prestadas + " libres=" + libres
+				+ " saturada=" + saturada;
+
+		if (decision == Decision.MANTENER) {
+			LOGGER.debug("Pool: MANTENER tamano {} ({})", tamano, motivo);
+		} else {
+			pool.resizePool(Math.min(nuevo, PoolDeConexiones.INITIAL_POOL_SIZE),
+					Math.min(nuevo, PoolDeConexiones.MIN_POOL_SIZE), nuevo);
+			rachaCrecer = 0;
+			rachaReducir = 0;
+			LOGGER.info("Pool: {} de {} a {} conexiones ({})", decision, tamano, nuevo, motivo);
+		}
+		return decision;
+	}
+}
@@ -0,0 +1,400 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * Cortacircuitos delante de la base de datos. Se activa con
+ * {@link PoolDeConexiones#setCortacircuitos(Cortacircuitos)} y anota los
+ * prestamos de conexion que fallan y el resultado de cada ejecucion de
+ * sentencia; solo cuentan como fallo los errores de conexion y los tiempos
+ * agotados (ver {@link #esFallo(SQLException)}), no los de negocio ni los de
+ * restricciones.
+ *
+ * Cerrado, si en las ultimas llamadas la tasa de fallos llega al umbral se
+ * abre: mientras esta abierto {@link #permitir()} rechaza enseguida con
+ * {@link AlquilerCochesException#BD_NO_DISPONIBLE} en lugar de esperar a que
+ * UCP desista de conectar. Pasada la espera queda semiabierto y deja pasar
+ * unas pocas llamadas de prueba, cada una con su {@link Sonda}: si todas van
+ * bien se cierra y si alguna falla vuelve a abrirse. Mientras esta
+ * semiabierto solo cuenta el primer resultado de cada sonda; los de
+ * conexiones prestadas antes no dicen nada de si la base de datos se ha
+ * recuperado.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class Cortacircuitos {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(Cortacircuitos.class);
+
+	/** Estados del cortacircuitos. */
+	public enum Estado {
+		CERRADO, ABIERTO, SEMIABIERTO
+	}
+
+	/**
+	 * Permiso de una llamada de prueba en estado semiabierto. Viaja con la
+	 * conexion prestada y se gasta con el primer resultado que se anota.
+	 */
+	public static final class Sonda {
+		private final long episodio;
+		private final AtomicBoolean gastada = new AtomicBoolean();
+
+		private Sonda(long episodio) {
+			this.episodio = episodio;
+		}
+	}
+
+	/** Recibe los cambios de estado; se le llama fuera del cerrojo. */
+	public interface Oyente {
+		/**
+		 * @param anterior estado que se deja
+		 * @param nuevo    estado al que se pasa
+		 */
+		void cambioDeEstado(Estado anterior, Estado nuevo);
+	}
+
+	private final SGBDErrorUtil traductor = new OracleSGBDErrorUtil();
+	private final List<Oyente> oyentes = new CopyOnWriteArrayList<Oyente>();
+
+	private final boolean[] ventana;
+	private final int minimoLlamadas;
+	private final double tasaApertura;
+	private final long esperaAbiertoNanos;
+	private final int sondas;
+
+	/** Estado y ventana; se leen y cambian con el cerrojo del objeto. */
+	private Estado estado = Estado.CERRADO;
+	private int posicion;
+	private int llamadas;
+	private int fallos;
+	private long instanteCambio = System.nanoTime();
+	private int sondasAdmitidas;
+	private int sondasCorrectas;
+	/** Cuenta los cambios de estado; una sonda solo vale en el suyo. */
+	private long episodio;
+
+	private final AtomicLong rechazadas = new AtomicLong();
+	private final AtomicLongArray transiciones = new AtomicLongArray(Estado.values().length);
+
+	/**
+	 * Crea el cortacircuitos, cerrado.
+	 *
+	 * @param tamanoVentana   llamadas recientes sobre las que se calcula la tasa
+	 *                        de fallos
+	 * @param minimoLlamadas  llamadas necesarias en la ventana antes de abrir
+	 * @param tasaApertura    fraccion de fallos (0..1] que lo abre
+	 * @param esperaAbiertoMs tiempo abierto antes de probar de nuevo
+	 * @param sondas          llamadas de prueba en estado semiabierto
+	 */
+	public Cortacircuitos(int tamanoVentana, int minimoLlamadas, double tasaApertura, long esperaAbiertoMs, int sondas) {
+		if (tamanoVentana < 1 || minimoLlamadas < 1 || minimoLlamadas > tamanoVentana || tasaApertura <= 0
+				|| tasaApertura > 1 || sondas < 1) {
+			throw new IllegalArgumentException("Configuracion de cortacircuitos no valida");
+		}
+		this.ventana = new boolean[tamanoVentana];
+		this.minimoLlamadas = minimoLlamadas;
+		this.tasaApertura = tasaApertura;
+		this.esperaAbiertoNanos = TimeUnit.MILLISECONDS.toNanos(esperaAbiertoMs);
+		this.sondas = sondas;
+	}
+
+	/**
+	 * @param oyente a quien avisar de los cambios de estado
+	 */
+	public void anadirOyente(Oyente oyente) {
+		oyentes.add(oyente);
+	}
+
+	/**
+	 * Pide paso para una llamada a la base de datos.
+	 *
+	 * @return la sonda con la que anotar el resultado si es una llamada de
+	 *         prueba, o null si esta cerrado
+	 * @throws AlquilerCochesException con codigo BD_NO_DISPONIBLE si esta
+	 *                                 abierto, o semiabierto con todas las
+	 *                                 sondas en curso
+	 */
+	public Sonda permitir() throws AlquilerCochesException {
+		Estado anterior = null;
+		boolean admitida = true;
+		Sonda sonda = null;
+		synchronized (this) {
+			if (estado != Estado.CERRADO) {
+				long ahora = System.nanoTime();
+				if (estado == Estado.ABIERTO && ahora - instanteCambio >= esperaAbiertoNanos) {
+					anterior = cambiar(Estado.SEMIABIERTO, ahora);
+				} else if (estado == Estado.SEMIABIERTO && ahora - instanteCambio >= esperaAbiertoNanos) {
+					// Sondas que no dieron resultado: se admiten otras
+					instanteCambio = ahora;
+					sondasAdmitidas = 0;
+				}
+				if (estado == Estado.SEMIABIERTO && sondasAdmitidas < sondas) {
+					sondasAdmitidas++;
+					sonda = new Sonda(episodio);
+				} else if (estado != Estado.CERRADO) {
+					admitida = false;
+				}
+			}
+		}
+		notificar(anterior, Estado.SEMIABIERTO);
+		if (!admitida) {
+			rechazadas.incrementAndGet();
+			throw new AlquilerCochesException(AlquilerCochesException.BD_NO_DISPONIBLE);
+		}
+		return sonda;
+	}
+
+	/**
+	 * Anota una llamada que termino bien y que no es de prueba; estando
+	 * semiabierto no cuenta.
+	 */
+	public void registrarExito() {
+		registrarExito(null);
+	}
+
+	/**
+	 * Anota una llamada que termino bien.
+	 *
+	 * @param sonda sonda de la llamada, o null si no es de prueba
+	 */
+	public void registrarExito(Sonda sonda) {
+		anotar(sonda, false);
+	}
+
+	/**
+	 * Anota una llamada que termino con error y que no es de prueba; solo
+	 * cuenta como fallo si es un error de conexion, y estando semiabierto no
+	 * cuenta.
+	 *
+	 * @param e error de la llamada
+	 */
+	public void registrar(SQLException e) {
+		registrar(null, e);
+	}
+
+	/**
+	 * Anota una llamada que termino con error; solo cuenta como fallo si es un
+	 * error de conexion.
+	 *
+	 * @param sonda sonda de la llamada, o null si no es de prueba
+	 * @param e     error de la llamada
+	 */
+	public void registrar(Sonda sonda, SQLException e) {
+		anotar(sonda, esFallo(e));
+	}
+
+	/**
+	 * Clasifica un error: es fallo si, el o alguna de sus causas, es de los que
+	 * JDBC reserva para la conexion o para un tiempo agotado (esperando
+	 * conexion, sentencia o socket), o el traductor lo da como
+	 * {@link SGBDError#CONNECTION_LOST}: una base de datos colgada suele
+	 * aparecer como tiempos agotados. Las AlquilerCochesException nunca lo
+	 * son.
+	 *
+	 * @param e error
+	 * @return true si indica que la base de datos no esta disponible
+	 */
+	public boolean esFallo(SQLException e) {
+		if (e instanceof AlquilerCochesException) {
+			return false;
+		}
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SQLRecoverableException || t instanceof SQLTransientConnectionException
+					|| t instanceof SQLNonTransientConnectionException || t instanceof SQLTimeoutException
+					|| t instanceof SocketTimeoutException) {
+				return true;
+			}
+			if (t instanceof SQLException && traductor.checkExceptionToCode((SQLException) t, SGBDError.CONNECTION_LOST)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void anotar(Sonda sonda, boolean fallo) {
+		Estado anterior = null;
+		Estado nuevo = null;
+		synchronized (this) {
+			switch (estado) {
+			case CERRADO:
+				if (llamadas == ventana.length) {
+					if (ventana[posicion]) {
+						fallos--;
+					}
+				} else {
+					llamadas++;
+				}
+				ventana[posicion] = fallo;
+				if (fallo) {
+					fallos++;
+				}
+				posicion = (posicion + 1) % ventana.length;
+				if (fallo && llamadas >= minimoLlamadas && fallos >= tasaApertura * llamadas) {
+					LOGGER.warn("Cortacircuitos abierto: {} fallos en las ultimas {} llamadas", fallos, llamadas);
+					nuevo = Estado.ABIERTO;
+					anterior = cambiar(nuevo, System.nanoTime());
+				}
+				break;
+			case SEMIABIERTO:
+				if (sonda == null || sonda.episodio != episodio || !sonda.gastada.compareAndSet(false, true)) {
+					// No es el primer resultado de una llamada de prueba de este episodio
+					break;
+				}
+				if (fallo) {
+					LOGGER.warn("Cortacircuitos abierto de nuevo: fallo una llamada de prueba");
+					nuevo = Estado.ABIERTO;
+					anterior = cambiar(nuevo, System.nanoTime());
+				} else if (++sondasCorrectas >= sondas) {
+					LOGGER.info("Cortacircuitos cerrado tras {} llamadas de prueba correctas", sondasCorrectas);
+					nuevo = Estado.CERRADO;
+					anterior = cambiar(nuevo, System.nanoTime());
+				}
+				break;
+			default:
+				// Abierto: resultados de llamadas admitidas antes de abrir
+				break;
+			}
+		}
+		notificar(anterior, nuevo);
+	}
+
+	/** Con el cerrojo: cambia de estado y vacia lo que se lleva contado. */
+	private Estado cambiar(Estado nuevo, long ahora) {
+		Estado anterior = estado;
+		estado = nuevo;
+		instanteCambio = ahora;
+		posicion = 0;
+		llamadas = 0;
+		fallos = 0;
+		sondasAdmitidas = 0;
+		sondasCorrectas = 0;
+		episodio++;
+		transiciones.incrementAndGet(nuevo.ordinal());
+		return anterior;
+	}
+
+	private void notificar(Estado anterior, Estado nuevo) {
+		if (anterior == null) {
+			return;
+		}
+		for (Oyente oyente : oyentes) {
+			try {
+				oyente.cambioDeEstado(anterior, nuevo);
+			} catch (RuntimeException e) {
+				LOGGER.warn("Error en un oyente del cortacircuitos", e);
+			}
+		}
+	}
+
+	/**
+	 * @return estado actual
+	 */
+	public synchronized Estado getEstado() {
+		return estado;
+	}
+
+	/**
+	 * @return llamadas rechazadas sin ir a la base de datos
+	 */
+	public long getRechazadas() {
+		return rechazadas.get();
+	}
+
+	/**
+	 * @param estado estado de destino
+	 * @return veces que se ha pasado a ese estado
+	 */
+	public long getTransiciones(Estado estado) {
+		return transiciones.get(estado.ordinal());
+	}
+
+	/**
+	 * Envuelve una conexion para anotar el resultado de sus sentencias.
+	 *
+	 * @param conexion conexion prestada, ya preparada
+	 * @param sonda    sonda con la que se presto, o null
+	 * @return conexion envuelta
+	 */
+	Connection envolver(Connection conexion, Sonda sonda) {
+		return (Connection) Proxy.newProxyInstance(Cortacircuitos.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new Vigilante(conexion, null, sonda));
+	}
+
+	/**
+	 * Anota los errores de conexion de cualquier metodo y el resultado de cada
+	 * execute*; las sentencias que entrega la conexion salen envueltas igual y
+	 * con la misma sonda.
+	 */
+	private class Vigilante implements InvocationHandler {
+		private final Object destino;
+		private final Class<?> tipo;
+		private final Sonda sonda;
+
+		Vigilante(Object destino, Class<?> tipo, Sonda sonda) {
+			this.destino = destino;
+			this.tipo = tipo;
+			this.sonda = sonda;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object resultado;
+			try {
+				resultado = method.invoke(destino, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof SQLException) {
+					registrar(sonda, (SQLException) e.getCause());
+				}
+				throw e.getCause();
+			}
+			String nombre = method.getName();
+			if (tipo != null) {
+				if (nombre.startsWith("execute")) {
+					registrarExito(sonda);
+				}
+				return resultado;
+			}
+			Class<?> tipoSentencia;
+			if ("prepareCall".equals(nombre)) {
+				tipoSentencia = CallableStatement.class;
+			} else if ("prepareStatement".equals(nombre)) {
+				tipoSentencia = PreparedStatement.class;
+			} else if ("createStatement".equals(nombre)) {
+				tipoSentencia = Statement.class;
+			} else {
+				return resultado;
+			}
+			return Proxy.newProxyInstance(Cortacircuitos.class.getClassLoader(), new Class<?>[] { tipoSentencia },
+					new Vigilante(resultado, tipoSentencia, sonda));
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package lsi.ubu.util;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reparto de los datos entre varias bases de datos (fragmentos), cada una con
+ * su propio {@link PoolDeConexiones}. Las claves (las matriculas) se asignan
+ * con un anillo de hash consistente: cada fragmento ocupa muchos puntos del
+ * anillo y una clave pertenece al primer punto que encuentra a partir de su
+ * hash. Al anadir un fragmento solo cambian de dueno las claves de los tramos
+ * que ocupa, alrededor de 1/N del total. Los datos no se mueven de fragmento,
+ * asi que solo se pueden anadir fragmentos mientras ninguno tenga reservas
+ * (ver {@link #anadirFragmento(int, PoolDeConexiones)}); los vehiculos se
+ * reparten despues con ServicioFragmentado.replicarReferencia.
+ *
+ * Cada fragmento tiene un numero fijo entre 1 y MAX_FRAGMENTOS - 1 y sus
+ * secuencias generan identificadores congruentes con ese numero (ver
+ * {@link #configurarSecuencias()}), asi que de un idReserva o un nroFactura se
+ * sabe en que fragmento esta sin consultar ninguno.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class EnrutadorFragmentos {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(EnrutadorFragmentos.class);
+
+	/** Modulo de los identificadores: un id pertenece al fragmento id % MAX_FRAGMENTOS. */
+	public static final int MAX_FRAGMENTOS = 64;
+
+	/** Puntos del anillo por fragmento; con mas, el reparto es mas uniforme. */
+	private static final int PUNTOS_POR_FRAGMENTO = 160;
+
+	private static final long SEMILLA = 0x9E3779B97F4A7C15L;
+
+	/** Fragmentos por numero. Se sustituyen enteros al cambiar (copia al escribir). */
+	private volatile SortedMap<Integer, PoolDeConexiones> fragmentos = new TreeMap<Integer, PoolDeConexiones>();
+
+	/** Hay alguna reserva, en curso o archivada. */
+	private static final String SQL_HAY_RESERVAS = "SELECT COUNT(*) FROM reservas_todas WHERE ROWNUM = 1";
+
+	/** Anillo: posicion -> numero de fragmento. */
+	private volatile TreeMap<Long, Integer> anillo = new TreeMap<Long, Integer>();
+
+	/**
+	 * Anade un fragmento al anillo. Las matriculas que pasan al nuevo fragmento
+	 * dejarian sus reservas en el anterior, fuera de la comprobacion de solapes
+	 * del nuevo dueno, y las reservas no se migran: si algun fragmento del
+	 * anillo ya tiene reservas (en curso o archivadas) se rechaza.
+	 *
+	 * @param numero numero del fragmento, entre 1 y MAX_FRAGMENTOS - 1; no se
+	 *               debe reutilizar el de un fragmento con datos distinto
+	 * @param pool   pool de la base de datos del fragmento
+	 * @throws IllegalStateException si algun fragmento ya tiene reservas
+	 * @throws SQLException          si hay un error con la base de datos
+	 */
+	public synchronized void anadirFragmento(int numero, PoolDeConexiones pool) throws SQLException {
+		if (numero < 1 || numero >= MAX_FRAGMENTOS) {
+			throw new IllegalArgumentException("Numero de fragmento fuera de rango: " + numero);
+		}
+		if (fragmentos.containsKey(numero)) {
+			throw new IllegalArgumentException("Fragmento repetido: " + numero);
+		}
+		for (Map.Entry<Integer, PoolDeConexiones> f : fragmentos.entrySet()) {
+			if (tieneReservas(f.getValue())) {
+				throw new IllegalStateException(
+						"No se puede anadir el fragmento " + numero + ": el fragmento " + f.getKey() + " ya tiene reservas");
+			}
+		}
+		SortedMap<Integer, PoolDeConexiones> nuevos = new TreeMap<Integer, PoolDeConexiones>(fragmentos);
+		nuevos.put(numero, pool);
+		TreeMap<Long, Integer> nuevoAnillo = new TreeMap<Long, Integer>(anillo);
+		for (int i = 0; i < PUNTOS_POR_FRAGMENTO; i++) {
+			nuevoAnillo.put(FiltroBloom.hash("fragmento-" + numero + "#" + i, SEMILLA), numero);
+		}
+		fragmentos = nuevos;
+		anillo = nuevoAnillo;
+		LOGGER.info("Fragmento {} anadido; {} fragmentos en el anillo", numero, nuevos.size());
+	}
+
+	private static boolean tieneReservas(PoolDeConexiones pool) throws SQLException {
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			con = pool.getConnection();
+			st = con.createStatement();
+			rs = st.executeQuery(SQL_HAY_RESERVAS);
+			rs.next();
+			return rs.getInt(1) > 0;
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (st != null) {
+					st.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			} catch (SQLException e) { LOGGER.warn("Error cerrando recursos en tieneReservas", e); }
+		}
+	}
+
+	/**
+	 * Numero del fragmento dueno de una clave.
+	 *
+	 * @param clave clave de reparto (matricula)
+	 * @return numero del fragmento
+	 */
+	public int numeroDe(String clave) {
+		TreeMap<Long, Integer> actual = anillo;
+		if (actual.isEmpty()) {
+			throw new IllegalStateException("No hay fragmentos");
+		}
+		Map.Entry<Long, Integer> punto = actual.ceilingEntry(FiltroBloom.hash(clave, SEMILLA));
+		return (punto != null ? punto : actual.firstEntry()).getValue();
+	}
+
+	/**
+	 * Pool del fragmento dueno de una clave.
+	 *
+	 * @param clave clave de reparto (matricula)
+	 * @return pool del fragmento
+	 */
+	public PoolDeConexiones fragmentoDe(String clave) {
+		return fragmentos.get(numeroDe(clave));
+	}
+
+	/**
+	 * Pool del fragmento que genero un identificador (idReserva o nroFactura).
+	 *
+	 * @param id identificador
+	 * @return pool del fragmento, o null si no es de ningun fragmento conocido
+	 */
+	public PoolDeConexiones fragmentoDeId(int id) {
+		return fragmentos.get(id % MAX_FRAGMENTOS);
+	}
+
+	/**
+	 * @return los fragmentos por numero (copia de solo lectura)
+	 */
+	public SortedMap<Integer, PoolDeConexiones> getFragmentos() {
+		return Collections.unmodifiableSortedMap(fragmentos);
+	}
+
+	/**
+	 * Ajusta seq_reservas y seq_num_fact de cada fragmento para que generen
+	 * numeros congruentes con el suyo (procedimiento configura_fragmento).
+	 * Hay que volver a llamarlo despues de inicializa_test, que las reinicia.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void configurarSecuencias() throws SQLException {
+		for (Map.Entry<Integer, PoolDeConexiones> f : fragmentos.entrySet()) {
+			Connection con = null;
+			CallableStatement cst = null;
+			try {
+				con = f.getValue().getConnection();
+				cst = con.prepareCall("{call configura_fragmento(?, ?)}");
+				cst.setInt(1, f.getKey());
+				cst.setInt(2, MAX_FRAGMENTOS);
+				cst.execute();
+			} finally {
+				try {
+					if (cst != null) {
+						cst.close();
+					}
+					if (con != null) {
+						con.close();
+					}
+				} catch (SQLException e) { LOGGER.warn("Error cerrando recursos en configurarSecuencias", e); }
+			}
+		}
+	}
+}
@@ -33,6 +33,17 @@ public class ExecuteScript {
 	 * @param file_name nombre del script .sql a ejecutar
 	 */
 	public static void run(String file_name) {
+		run(file_name, "hr/hr");
+	}
+
+	/**
+	 * Ejecuta el script sql con otro usuario.
+	 * 
+	 * @param file_name    nombre del script .sql a ejecutar
+	 * @param credenciales usuario y contrasena como usuario/contrasena
+	 * @return true si sqlplus termino con codigo 0
+	 */
+	public static boolean run(String file_name, String credenciales) {
 		String os = System.getProperty("os.name").toLowerCase();
 
 		try {
@@ -43,9 +54,9 @@ public class ExecuteScript {
 			// if is linux
 			if (os.indexOf("nux") >= 0) {
 				String sqlLauncher = "sql/lanza_sqlplus.sh";
-				p = Runtime.getRuntime().exec(new String[] { sqlLauncher, "hr/hr", "@" + file_name });
+				p = Runtime.getRuntime().exec(new String[] { sqlLauncher, credenciales, "@" + file_name });
 			} else if (os.indexOf("win") >= 0) { // if is windows
-				p = Runtime.getRuntime().exec("sqlplus hr/hr @" + file_name);
+				p = Runtime.getRuntime().exec("sqlplus " + credenciales + " @" + file_name);
 			} else {
 				throw (new Exception("lsi.ubu.util.ExecuteScript.java" + " Sistema operativo incompatible"));
 			}
@@ -55,8 +66,18 @@ public class ExecuteScript {
 				LOGGER.debug(line);
 			}
 			input.close();
+			int codigo = p.waitFor();
+			if (codigo != 0) {
+				LOGGER.error("sqlplus termino con codigo {} ejecutando {}", codigo, file_name);
+			}
+			return codigo == 0;
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			LOGGER.error("Interrumpido ejecutando {}", file_name);
+			return false;
 		} catch (Exception err) {
 			LOGGER.error(err.getMessage());
+			return false;
 		}
 	}
 }
@@ -0,0 +1,100 @@
+package lsi.ubu.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro de Bloom de cadenas. Responde "seguro que no esta" o "puede estar":
+ * no hay falsos negativos y la tasa de falsos positivos se fija al crearlo a
+ * partir del numero de elementos esperado, con un tope de memoria. Admite
+ * anadir elementos concurrentemente con las consultas.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class FiltroBloom {
+
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int numHashes;
+
+	/**
+	 * Crea un filtro vacio dimensionado para la tasa de falsos positivos
+	 * pedida, sin pasar del tope de memoria.
+	 *
+	 * @param elementosEsperados numero de elementos previsto
+	 * @param tasaFalsosPositivos tasa deseada (por ejemplo 0.01)
+	 * @param maxBytes            memoria maxima para los bits
+	 */
+	public FiltroBloom(long elementosEsperados, double tasaFalsosPositivos, long maxBytes) {
+		long n = Math.max(1, elementosEsperados);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(tasaFalsosPositivos) / (ln2 * ln2));
+		m = Math.max(64, Math.min(m, maxBytes * 8));
+		int palabras = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+		this.bits = new AtomicLongArray(palabras);
+		this.numBits = (long) palabras * 64;
+		this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * ln2));
+	}
+
+	/**
+	 * Anade un elemento.
+	 *
+	 * @param clave elemento
+	 */
+	public void anadir(String clave) {
+		long h1 = hash(clave, 0x9E3779B97F4A7C15L);
+		long h2 = hash(clave, 0xC2B2AE3D27D4EB4FL) | 1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, numBits);
+			int palabra = (int) (bit >>> 6);
+			long mascara = 1L << (bit & 63);
+			long actual;
+			do {
+				actual = bits.get(palabra);
+				if ((actual & mascara) != 0) {
+					break;
+				}
+			} while (!bits.compareAndSet(palabra, actual, actual | mascara));
+		}
+	}
+
+	/**
+	 * Consulta un elemento.
+	 *
+	 * @param clave elemento
+	 * @return false si seguro que no se anadio; true si puede haberse anadido
+	 */
+	public boolean puedeContener(String clave) {
+		long h1 = hash(clave, 0x9E3779B97F4A7C15L);
+		long h2 = hash(clave, 0xC2B2AE3D27D4EB4FL) | 1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, numBits);
+			if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** FNV-1a de 64 bits con semilla y mezcla final (tambien lo usa EnrutadorFragmentos). */
+	static long hash(String clave, long semilla) {
+		long h = 0xCBF29CE484222325L ^ semilla;
+		for (byte b : clave.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public long getNumBits() {
+		return numBits;
+	}
+
+	public int getNumHashes() {
+		return numHashes;
+	}
+}
@@ -0,0 +1,328 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * Registro de metricas del servicio: histogramas de latencia y errores por
+ * operacion, excepciones por codigo, errores de la base de datos por
+ * categoria y el estado del pool, del cortacircuitos y del control de
+ * admision. Se exportan en el formato de texto de Prometheus (ver
+ * {@link ServidorMetricas}).
+ *
+ * Cada {@link PoolDeConexiones} se registra aqui al crearse, con su etiqueta,
+ * y se exportan los pools registrados: exportar nunca crea un pool ni obliga
+ * a buscarlo en JNDI.
+ *
+ * Registrar no bloquea ni crea objetos: cada contador es una posicion de un
+ * AtomicLongArray. El trabajo (recorrer, formatear) se hace al exportar.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class Metricas {
+
+	/** Operaciones del servicio con metricas propias. */
+	public enum Operacion {
+		ALQUILAR("alquilar"), ALQUILAR_FLOTA("alquilar_flota"), ANULAR("anular_alquiler"), ANULAR_LOTE("anular_lote"), MODIFICAR("modificar_alquiler"),
+		LISTAR_RESERVAS("listar_reservas"), LISTAR_FACTURAS("listar_facturas");
+
+		private final String etiqueta;
+
+		Operacion(String etiqueta) {
+			this.etiqueta = etiqueta;
+		}
+
+		public String getEtiqueta() {
+			return etiqueta;
+		}
+	}
+
+	/** Limites superiores de los cubos del histograma, en segundos. */
+	private static final double[] CUBOS_SEGUNDOS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	/** Los mismos limites en nanosegundos. */
+	private static final long[] CUBOS_NANOS = new long[CUBOS_SEGUNDOS.length];
+
+	static {
+		for (int i = 0; i < CUBOS_SEGUNDOS.length; i++) {
+			CUBOS_NANOS[i] = (long) (CUBOS_SEGUNDOS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	/** Codigos de AlquilerCochesException contemplados (el 0 recoge el resto). */
+	private static final int MAX_CODIGO = 16;
+
+	private static final int OPERACIONES = Operacion.values().length;
+	private static final int POR_OPERACION = CUBOS_NANOS.length + 1;
+
+	/** Se crea despues de las constantes anteriores, que usa al construirse. */
+	private static final Metricas INSTANCIA = new Metricas();
+
+	/** Cubos de cada operacion: OPERACIONES x (cubos + infinito), sin acumular. */
+	private final AtomicLongArray cubos = new AtomicLongArray(OPERACIONES * POR_OPERACION);
+	private final AtomicLongArray sumaNanos = new AtomicLongArray(OPERACIONES);
+	private final AtomicLongArray errores = new AtomicLongArray(OPERACIONES);
+	private final AtomicLongArray excepciones = new AtomicLongArray(MAX_CODIGO);
+	private final AtomicLongArray erroresSGBD = new AtomicLongArray(SGBDError.values().length);
+	private final OracleSGBDErrorUtil traductor = new OracleSGBDErrorUtil();
+
+	private volatile ControlAdmision admision;
+
+	/** Pools a exportar por etiqueta, en orden alfabetico. */
+	private final Map<String, PoolDeConexiones> pools = new ConcurrentSkipListMap<String, PoolDeConexiones>();
+
+	private Metricas() {
+	}
+
+	/**
+	 * @return el registro de metricas del proceso
+	 */
+	public static Metricas getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Exporta tambien el estado de un control de admision.
+	 *
+	 * @param admision control a exportar, o null para ninguno
+	 */
+	public void setControlAdmision(ControlAdmision admision) {
+		this.admision = admision;
+	}
+
+	/**
+	 * Registra un pool para exportar sus metricas. Si la etiqueta ya esta en
+	 * uso se le anade un numero.
+	 *
+	 * @param nombre etiqueta deseada
+	 * @param pool   pool a exportar
+	 * @return etiqueta asignada, para {@link #quitarPool(String, PoolDeConexiones)}
+	 */
+	public String registrarPool(String nombre, PoolDeConexiones pool) {
+		String etiqueta = nombre;
+		for (int n = 2; pools.putIfAbsent(etiqueta, pool) != null; n++) {
+			etiqueta = nombre + "-" + n;
+		}
+		return etiqueta;
+	}
+
+	/**
+	 * Deja de exportar un pool.
+	 *
+	 * @param etiqueta etiqueta asignada al registrarlo
+	 * @param pool     pool registrado con esa etiqueta
+	 */
+	public void quitarPool(String etiqueta, PoolDeConexiones pool) {
+		pools.remove(etiqueta, pool);
+	}
+
+	/**
+	 * Anota la duracion de una operacion (termine bien o mal).
+	 *
+	 * @param operacion operacion
+	 * @param nanos     duracion
+	 */
+	public void registrarOperacion(Operacion operacion, long nanos) {
+		int cubo = 0;
+		while (cubo < CUBOS_NANOS.length && nanos > CUBOS_NANOS[cubo]) {
+			cubo++;
+		}
+		cubos.incrementAndGet(operacion.ordinal() * POR_OPERACION + cubo);
+		sumaNanos.addAndGet(operacion.ordinal(), nanos);
+	}
+
+	/**
+	 * Anota una operacion fallida y, si el error viene de la base de datos, su
+	 * categoria. Las AlquilerCochesException se cuentan al crearse.
+	 *
+	 * @param operacion operacion
+	 * @param e         excepcion
+	 */
+	public void registrarError(Operacion operacion, SQLException e) {
+		errores.incrementAndGet(operacion.ordinal());
+		if (!(e instanceof AlquilerCochesException)) {
+			erroresSGBD.incrementAndGet(traductor.translate(e.getErrorCode()).ordinal());
+		}
+	}
+
+	/**
+	 * Anota una AlquilerCochesException.
+	 *
+	 * @param codigo codigo de la excepcion
+	 */
+	public void registrarExcepcion(int codigo) {
+		excepciones.incrementAndGet(codigo > 0 && codigo < MAX_CODIGO ? codigo : 0);
+	}
+
+	/**
+	 * Escribe todas las metricas en el formato de texto de Prometheus.
+	 *
+	 * @param sb destino
+	 */
+	public void exportar(StringBuilder sb) {
+		sb.append("# HELP alquiler_operacion_segundos Latencia de las operaciones del servicio.\n");
+		sb.append("# TYPE alquiler_operacion_segundos histogram\n");
+		for (Operacion op : Operacion.values()) {
+			long acumulado = 0;
+			int base = op.ordinal() * POR_OPERACION;
+			for (int i = 0; i < POR_OPERACION; i++) {
+				acumulado += cubos.get(base + i);
+				sb.append("alquiler_operacion_segundos_bucket{operacion=\"").append(op.getEtiqueta()).append("\",le=\"")
+						.append(i < CUBOS_SEGUNDOS.length ? numero(CUBOS_SEGUNDOS[i]) : "+Inf").append("\"} ")
+						.append(acumulado).append('\n');
+			}
+			sb.append("alquiler_operacion_segundos_sum{operacion=\"").append(op.getEtiqueta()).append("\"} ")
+					.append(numero(sumaNanos.get(op.ordinal()) / 1e9)).append('\n');
+			sb.append("alquiler_operacion_segundos_count{operacion=\"").append(op.getEtiqueta()).append("\"} ")
+					.append(acumulado).append('\n');
+		}
+
+		sb.append("# HELP alquiler_operacion_errores_total Operaciones terminadas con excepcion.\n");
+		sb.append("# TYPE alquiler_operacion_errores_total counter\n");
+		for (Operacion op : Operacion.values()) {
+			sb.append("alquiler_operacion_errores_total{operacion=\"").append(op.getEtiqueta()).append("\"} ")
+					.append(errores.get(op.ordinal())).append('\n');
+		}
+
+		sb.append("# HELP alquiler_excepciones_total AlquilerCochesException lanzadas por codigo.\n");
+		sb.append("# TYPE alquiler_excepciones_total counter\n");
+		for (int codigo = 0; codigo < MAX_CODIGO; codigo++) {
+			long n = excepciones.get(codigo);
+			if (n > 0) {
+				sb.append("alquiler_excepciones_total{codigo=\"").append(codigo).append("\"} ").append(n).append('\n');
+			}
+		}
+
+		sb.append("# HELP alquiler_errores_sgbd_total Errores de la base de datos por categoria.\n");
+		sb.append("# TYPE alquiler_errores_sgbd_total counter\n");
+		for (SGBDError error : SGBDError.values()) {
+			sb.append("alquiler_errores_sgbd_total{categoria=\"").append(error.name()).append("\"} ")
+					.append(erroresSGBD.get(error.ordinal())).append('\n');
+		}
+
+		exportarPool(sb);
+
+		ControlAdmision control = admision;
+		if (control != null) {
+			sb.append("# HELP alquiler_admision_cola Operaciones esperando turno.\n");
+			sb.append("# TYPE alquiler_admision_cola gauge\n");
+			sb.append("alquiler_admision_cola ").append(control.getEnCola()).append('\n');
+			sb.append("# HELP alquiler_admision_en_curso Operaciones admitidas en ejecucion.\n");
+			sb.append("# TYPE alquiler_admision_en_curso gauge\n");
+			for (ControlAdmision.Tipo tipo : ControlAdmision.Tipo.values()) {
+				sb.append("alquiler_admision_en_curso{tipo=\"").append(tipo.name().toLowerCase(Locale.ROOT)).append("\"} ")
+						.append(control.getEnCurso(tipo)).append('\n');
+			}
+			sb.append("# HELP alquiler_admision_rechazadas_total Operaciones rechazadas por sobrecarga.\n");
+			sb.append("# TYPE alquiler_admision_rechazadas_total counter\n");
+			for (ControlAdmision.Tipo tipo : ControlAdmision.Tipo.values()) {
+				sb.append("alquiler_admision_rechazadas_total{tipo=\"").append(tipo.name().toLowerCase(Locale.ROOT)).append("\"} ")
+						.append(control.getRechazadas(tipo)).append('\n');
+			}
+		}
+	}
+
+	private void exportarPool(StringBuilder sb) {
+		Map<String, PoolDeConexiones> registrados = pools;
+		if (registrados.isEmpty()) {
+			return;
+		}
+		sb.append("# HELP alquiler_pool_conexiones Conexiones del pool por estado.\n");
+		sb.append("# TYPE alquiler_pool_conexiones gauge\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			PoolDeConexiones pool = e.getValue();
+			if (pool.isRedimensionable()) {
+				try {
+					int prestadas = pool.getConexionesPrestadas();
+					int disponibles = pool.getConexionesDisponibles();
+					sb.append("alquiler_pool_conexiones{pool=\"").append(e.getKey()).append("\",estado=\"prestadas\"} ")
+							.append(prestadas).append('\n');
+					sb.append("alquiler_pool_conexiones{pool=\"").append(e.getKey()).append("\",estado=\"disponibles\"} ")
+							.append(disponibles).append('\n');
+				} catch (SQLException ex) {
+					// Sin datos de la cache de conexiones en esta lectura
+				}
+			}
+		}
+		sb.append("# HELP alquiler_pool_espera_segundos_total Tiempo acumulado esperando conexion.\n");
+		sb.append("# TYPE alquiler_pool_espera_segundos_total counter\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			sb.append("alquiler_pool_espera_segundos_total{pool=\"").append(e.getKey()).append("\"} ")
+					.append(numero(e.getValue().getEsperaAcumulada() / 1e9)).append('\n');
+		}
+		sb.append("# HELP alquiler_pool_prestamos_total Conexiones entregadas.\n");
+		sb.append("# TYPE alquiler_pool_prestamos_total counter\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			sb.append("alquiler_pool_prestamos_total{pool=\"").append(e.getKey()).append("\"} ")
+					.append(e.getValue().getPrestamos()).append('\n');
+		}
+		sb.append("# HELP alquiler_pool_esperas_agotadas_total Peticiones de conexion que agotaron la espera.\n");
+		sb.append("# TYPE alquiler_pool_esperas_agotadas_total counter\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			sb.append("alquiler_pool_esperas_agotadas_total{pool=\"").append(e.getKey()).append("\"} ")
+					.append(e.getValue().getEsperasAgotadas()).append('\n');
+		}
+		sb.append("# HELP alquiler_pool_fugas_total Conexiones retenidas mas alla del umbral de fuga.\n");
+		sb.append("# TYPE alquiler_pool_fugas_total counter\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			sb.append("alquiler_pool_fugas_total{pool=\"").append(e.getKey()).append("\"} ")
+					.append(e.getValue().getFugas()).append('\n');
+		}
+
+		boolean cabecera = false;
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			Cortacircuitos cortacircuitos = e.getValue().getCortacircuitos();
+			if (cortacircuitos == null) {
+				continue;
+			}
+			if (!cabecera) {
+				sb.append("# HELP alquiler_cortacircuitos_estado Estado del cortacircuitos (1 el actual).\n");
+				sb.append("# TYPE alquiler_cortacircuitos_estado gauge\n");
+				cabecera = true;
+			}
+			Cortacircuitos.Estado actual = cortacircuitos.getEstado();
+			for (Cortacircuitos.Estado estado : Cortacircuitos.Estado.values()) {
+				sb.append("alquiler_cortacircuitos_estado{pool=\"").append(e.getKey()).append("\",estado=\"")
+						.append(estado.name().toLowerCase(Locale.ROOT)).append("\"} ").append(estado == actual ? 1 : 0)
+						.append('\n');
+			}
+		}
+		if (!cabecera) {
+			return;
+		}
+		sb.append("# HELP alquiler_cortacircuitos_transiciones_total Cambios de estado del cortacircuitos por destino.\n");
+		sb.append("# TYPE alquiler_cortacircuitos_transiciones_total counter\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			Cortacircuitos cortacircuitos = e.getValue().getCortacircuitos();
+			if (cortacircuitos != null) {
+				for (Cortacircuitos.Estado estado : Cortacircuitos.Estado.values()) {
+					sb.append("alquiler_cortacircuitos_transiciones_total{pool=\"").append(e.getKey()).append("\",estado=\"")
+							.append(estado.name().toLowerCase(Locale.ROOT)).append("\"} ")
+							.append(cortacircuitos.getTransiciones(estado)).append('\n');
+				}
+			}
+		}
+		sb.append("# HELP alquiler_cortacircuitos_rechazadas_total Llamadas rechazadas sin ir a la base de datos.\n");
+		sb.append("# TYPE alquiler_cortacircuitos_rechazadas_total counter\n");
+		for (Map.Entry<String, PoolDeConexiones> e : registrados.entrySet()) {
+			Cortacircuitos cortacircuitos = e.getValue().getCortacircuitos();
+			if (cortacircuitos != null) {
+				sb.append("alquiler_cortacircuitos_rechazadas_total{pool=\"").append(e.getKey()).append("\"} ")
+						.append(cortacircuitos.getRechazadas()).append('\n');
+			}
+		}
+	}
+
+	private static String numero(double valor) {
+		return Double.toString(valor);
+	}
+}
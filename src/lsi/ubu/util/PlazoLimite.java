@@ -0,0 +1,106 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.TimeUnit;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+
+/**
+ * Plazo de una operacion. Quien llama a la capa de servicio lo fija en su hilo
+ * con {@link #fijar(long, TimeUnit)} y lo quita con
+ * {@link #restaurar(PlazoLimite)}; mientras tanto lo van gastando, por orden,
+ * la espera de turno en {@link ControlAdmision}, el prestamo de conexion de
+ * {@link PoolDeConexiones} y cada ejecucion de sentencia, a la que se pone
+ * como setQueryTimeout el tiempo que queda al ejecutarla. Agotado el plazo la operacion termina
+ * con {@link AlquilerCochesException#PLAZO_AGOTADO}.
+ *
+ * Sin plazo fijado todo se comporta como antes.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public final class PlazoLimite {
+
+	/** Plazo de la operacion en curso en cada hilo. */
+	private static final ThreadLocal<PlazoLimite> PLAZO_DEL_HILO = new ThreadLocal<PlazoLimite>();
+
+	private final long limiteNanos;
+
+	private PlazoLimite(long limiteNanos) {
+		this.limiteNanos = limiteNanos;
+	}
+
+	/**
+	 * Fija el plazo del hilo. Un plazo fijado dentro de otro nunca lo amplia.
+	 *
+	 * @param duracion tiempo disponible desde ahora
+	 * @param unidad   unidad de la duracion
+	 * @return plazo que habia antes (puede ser null), para
+	 *         {@link #restaurar(PlazoLimite)}
+	 */
+	public static PlazoLimite fijar(long duracion, TimeUnit unidad) {
+		PlazoLimite previo = PLAZO_DEL_HILO.get();
+		long limite = System.nanoTime() + unidad.toNanos(duracion);
+		if (previo != null && previo.limiteNanos - limite < 0) {
+			limite = previo.limiteNanos;
+		}
+		PLAZO_DEL_HILO.set(new PlazoLimite(limite));
+		return previo;
+	}
+
+	/**
+	 * Vuelve al plazo que habia antes de {@link #fijar(long, TimeUnit)}.
+	 *
+	 * @param previo lo devuelto por fijar
+	 */
+	public static void restaurar(PlazoLimite previo) {
+		if (previo == null) {
+			PLAZO_DEL_HILO.remove();
+		} else {
+			PLAZO_DEL_HILO.set(previo);
+		}
+	}
+
+	/**
+	 * @return plazo del hilo, o null si no hay
+	 */
+	public static PlazoLimite actual() {
+		return PLAZO_DEL_HILO.get();
+	}
+
+	/**
+	 * Comprueba que al hilo le queda plazo.
+	 *
+	 * @throws AlquilerCochesException con codigo PLAZO_AGOTADO si ya no queda
+	 */
+	public static void comprobar() throws AlquilerCochesException {
+		PlazoLimite plazo = PLAZO_DEL_HILO.get();
+		if (plazo != null && plazo.isAgotado()) {
+			throw new AlquilerCochesException(AlquilerCochesException.PLAZO_AGOTADO);
+		}
+	}
+
+	/**
+	 * @return tiempo que queda, negativo si el plazo ya paso
+	 */
+	public long getRestanteNanos() {
+		return limiteNanos - System.nanoTime();
+	}
+
+	/**
+	 * @return true si el plazo ya paso
+	 */
+	public boolean isAgotado() {
+		return getRestanteNanos() <= 0;
+	}
+
+	/**
+	 * Tiempo maximo de una sentencia para no pasarse del plazo. JDBC lo pide en
+	 * segundos, asi que se redondea hacia arriba.
+	 *
+	 * @return segundos para setQueryTimeout (al menos 1)
+	 */
+	int getSegundosSentencia() {
+		long segundos = (getRestanteNanos() + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, segundos));
+	}
+}
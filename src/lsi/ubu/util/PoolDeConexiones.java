@@ -2,7 +2,16 @@ package lsi.ubu.util;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -12,6 +21,9 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import oracle.jdbc.OracleConnection;
+import oracle.ucp.UniversalConnectionPoolException;
+import oracle.ucp.admin.UniversalConnectionPoolManagerImpl;
 import oracle.ucp.jdbc.PoolDataSource;
 import oracle.ucp.jdbc.PoolDataSourceFactory;
 
@@ -49,12 +61,85 @@ public class PoolDeConexiones {
 	// hr/hr.
 	private static final String PASSWORD = "hr";
 
+	// Limites del pool (los usa tambien el control adaptativo de tamano)
+	static final int MIN_POOL_SIZE = 3;
+	static final int MAX_POOL_SIZE = 10;
+	static final int INITIAL_POOL_SIZE = 5;
+
+	// Vigilancia de prestamos, valores por defecto
+	private static final long TIEMPO_MAX_ESPERA_MS = 5000;
+	private static final long UMBRAL_FUGA_MS = 60000;
+	private static final int MUESTREO_PILA = 16;
+	private static final long INTERVALO_REVISION_MS = 1000;
+
 	/** Pool de conexiones. */
 	private static PoolDeConexiones poolDeConexiones;
 
+	/** Numera los pools de UCP creados fuera de JNDI, que necesitan nombre propio para cerrarse. */
+	private static final AtomicInteger POOLS_CREADOS = new AtomicInteger();
+
+	/** Pool propio del hilo, si se le ha asignado uno (ver asignarAlHilo). */
+	private static final ThreadLocal<PoolDeConexiones> POOL_DEL_HILO = new ThreadLocal<PoolDeConexiones>();
+
 	/** DataSource. */
 	private DataSource ds;
 
+	/** Etiqueta con la que se exportan sus metricas (ver {@link Metricas}). */
+	private final String nombre;
+
+	/** Tiempo de espera acumulado al pedir conexiones (nanosegundos). */
+	private final AtomicLong esperaAcumulada = new AtomicLong();
+
+	/** Numero de conexiones entregadas. */
+	private final AtomicLong prestamos = new AtomicLong();
+
+	/** Latencia acumulada de las operaciones registradas (nanosegundos). */
+	private final AtomicLong latenciaAcumulada = new AtomicLong();
+
+	/** Numero de operaciones registradas. */
+	private final AtomicLong operaciones = new AtomicLong();
+
+	/**
+	 * Estado de sesion conocido de cada conexion fisica, entre prestamos. La
+	 * clave es la conexion fisica y no la que devuelve el DataSource, porque
+	 * UCP entrega un proxy nuevo en cada prestamo.
+	 */
+	private final Map<Connection, ConexionVigilada.EstadoSesion> estados = Collections
+			.synchronizedMap(new WeakHashMap<Connection, ConexionVigilada.EstadoSesion>());
+
+	/** Cambios de autocommit o aislamiento que llegaron a la conexion real. */
+	private final AtomicLong ajustesSesion = new AtomicLong();
+
+	/** Conexiones prestadas y aun no devueltas. */
+	private final Map<Long, ConexionVigilada> pendientes = new ConcurrentHashMap<>();
+
+	/**
+	 * Un permiso por conexion que puede prestar UCP. La espera por una conexion
+	 * libre se hace aqui, con el tiempo que permiten tiempoMaxEsperaMs y el
+	 * {@link PlazoLimite} del hilo, y no en UCP, que solo espera segundos
+	 * enteros y con un tiempo comun a todo el pool.
+	 */
+	private final Turnos turnos;
+
+	/** Peticiones de conexion que agotaron el tiempo de espera. */
+	private final AtomicLong esperasAgotadas = new AtomicLong();
+
+	/** Conexiones retenidas mas alla del umbral de fuga. */
+	private final AtomicLong fugas = new AtomicLong();
+
+	/** Ultima revision de fugas (nanosegundos). */
+	private final AtomicLong ultimaRevision = new AtomicLong(System.nanoTime());
+
+	private volatile long tiempoMaxEsperaMs = TIEMPO_MAX_ESPERA_MS;
+	private volatile long umbralFugaNanos = TimeUnit.MILLISECONDS.toNanos(UMBRAL_FUGA_MS);
+	private volatile int muestreoPila = MUESTREO_PILA;
+
+	/** Registro de sentencias lentas; null si no se cronometran. */
+	private volatile RegistroSentenciasLentas registroSentencias;
+
+	/** Cortacircuitos delante de la base de datos; null si no hay. */
+	private volatile Cortacircuitos cortacircuitos;
+
 	/**
 	 * Constructor del pool de conexiones, siguiendo el patron de dise�o Singleton.
 	 * 
@@ -69,6 +154,7 @@ public class PoolDeConexiones {
 			Context context = new InitialContext(properties);
 
 			ds = (DataSource) context.lookup(JDBC_TESTDB_DS);
+			turnos = new Turnos(tamanoMaximo(ds));
 
 		} catch (NamingException e) {
 			LOGGER.error("Problema: no se encuentra el nombre del recurso en el contexto JNDI");
@@ -77,6 +163,27 @@ public class PoolDeConexiones {
 			// La aplicacion ya no puede seguir si no se instancia un pool
 			throw new RuntimeException();
 		}
+		nombre = Metricas.getInstance().registrarPool("principal", this);
+
+		try {
+			aplicarTiempoMaxEspera();
+		} catch (SQLException e) {
+			LOGGER.warn("No se pudo fijar el tiempo maximo de espera del pool: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Constructor de un pool fuera del singleton.
+	 * 
+	 * @param nombre etiqueta para las metricas
+	 * @param ds     DataSource ya configurado
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	private PoolDeConexiones(String nombre, DataSource ds) throws SQLException {
+		this.ds = ds;
+		this.turnos = new Turnos(tamanoMaximo(ds));
+		aplicarTiempoMaxEspera();
+		this.nombre = Metricas.getInstance().registrarPool(nombre, this);
 	}
 
 	/**
@@ -84,6 +191,10 @@ public class PoolDeConexiones {
 	 * 
 	 */
 	public static PoolDeConexiones getInstance() {
+		PoolDeConexiones delHilo = POOL_DEL_HILO.get();
+		if (delHilo != null) {
+			return delHilo;
+		}
 		if (poolDeConexiones == null) {
 			poolDeConexiones = new PoolDeConexiones();
 		}
@@ -91,28 +202,405 @@ public class PoolDeConexiones {
 	}
 
 	/**
-	 * Obtiene una conexion.
+	 * Crea un pool independiente del singleton sobre el esquema de otro usuario
+	 * de la misma base de datos, con la misma configuracion que
+	 * {@link #reconfigurarPool()}.
+	 * 
+	 * @param usuario usuario (esquema)
+	 * @param clave   contrasena
+	 * @return pool nuevo
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	public static PoolDeConexiones crearParaEsquema(String usuario, String clave) throws SQLException {
+		return new PoolDeConexiones(usuario, crearPoolDataSource(usuario, clave));
+	}
+
+	/**
+	 * Crea el pool por defecto sin pasar por JNDI y sin abrir conexiones de
+	 * antemano (la primera se abre al pedirla). Es para procesos cortos: evita
+	 * cargar el contexto del sistema de ficheros y esperar a las
+	 * INITIAL_POOL_SIZE conexiones iniciales. Debe llamarse antes del primer
+	 * {@link #getInstance()}; despues no tiene efecto.
+	 * 
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	public static synchronized void iniciarSinJndi() throws SQLException {
+		if (poolDeConexiones == null) {
+			poolDeConexiones = new PoolDeConexiones("principal", crearPoolDataSource(USER, PASSWORD));
+		}
+	}
+
+	/** Misma configuracion que {@link #reconfigurarPool()} pero empezando con una conexion. */
+	private static PoolDataSource crearPoolDataSource(String usuario, String clave) throws SQLException {
+		PoolDataSource pds = PoolDataSourceFactory.getPoolDataSource();
+		pds.setConnectionFactoryClassName(CONNECTION_FACTORY);
+		pds.setURL("jdbc:oracle:" + DRIVER_TYPE + ":" + usuario + "/" + clave + "@" + HOST + ":" + PORT + ":" + SID);
+		pds.setMinPoolSize(1);
+		pds.setMaxPoolSize(MAX_POOL_SIZE);
+		pds.setInitialPoolSize(1);
+		pds.setTimeToLiveConnectionTimeout(18000);
+		pds.setMaxStatements(6);
+		pds.setConnectionPoolName("alquiler-" + usuario + "-" + POOLS_CREADOS.incrementAndGet());
+		return pds;
+	}
+
+	/**
+	 * Cierra un pool creado con {@link #crearParaEsquema(String, String)}:
+	 * destruye el pool de UCP, con sus conexiones fisicas, y deja de exportar
+	 * sus metricas. Las conexiones aun prestadas dejan de ser validas.
+	 * 
+	 * @throws SQLException si UCP no puede destruir el pool
+	 */
+	public void cerrar() throws SQLException {
+		Metricas.getInstance().quitarPool(nombre, this);
+		if (!(ds instanceof PoolDataSource)) {
+			return;
+		}
+		String nombrePool = ((PoolDataSource) ds).getConnectionPoolName();
+		if (nombrePool == null) {
+			return;
+		}
+		try {
+			UniversalConnectionPoolManagerImpl.getUniversalConnectionPoolManager().destroyConnectionPool(nombrePool);
+			LOGGER.debug("Pool {} cerrado", nombrePool);
+		} catch (UniversalConnectionPoolException e) {
+			throw new SQLException("No se pudo cerrar el pool " + nombrePool, e);
+		}
+	}
+
+	/**
+	 * Hace que {@link #getInstance()} devuelva este pool en el hilo actual, para
+	 * que el codigo que lo use trabaje sobre otro esquema sin cambios.
+	 * 
+	 * @param pool pool del hilo, o null para volver al singleton
+	 */
+	public static void asignarAlHilo(PoolDeConexiones pool) {
+		if (pool == null) {
+			POOL_DEL_HILO.remove();
+		} else {
+			POOL_DEL_HILO.set(pool);
+		}
+	}
+
+	/**
+	 * Pool asignado al hilo actual, para poder restaurarlo despues de
+	 * cambiarlo.
+	 * 
+	 * @return el pool del hilo, o null si el hilo usa el singleton
+	 */
+	public static PoolDeConexiones getAsignadoAlHilo() {
+		return POOL_DEL_HILO.get();
+	}
+
+	/**
+	 * Obtiene una conexion. La espera por una conexion libre dura como mucho
+	 * tiempoMaxEsperaMs o lo que quede del {@link PlazoLimite} del hilo, lo
+	 * que sea menor; si se agota el plazo se lanza PLAZO_AGOTADO. Con el
+	 * {@link Cortacircuitos} abierto se rechaza sin pedirla a UCP.
 	 * 
 	 * @return conexion
 	 * @throws SQLException si hay un error con la base de datos
 	 */
 	public Connection getConnection() throws SQLException {
-		Connection conn = ds.getConnection();
+		revisarFugasSiToca();
+		PlazoLimite plazo = PlazoLimite.actual();
+		if (plazo != null) {
+			PlazoLimite.comprobar();
+		}
+		Cortacircuitos cortacircuitos = this.cortacircuitos;
+		Cortacircuitos.Sonda sonda = null;
+		if (cortacircuitos != null) {
+			sonda = cortacircuitos.permitir();
+		}
+
+		long inicio = System.nanoTime();
+		long espera = TimeUnit.MILLISECONDS.toNanos(tiempoMaxEsperaMs);
+		if (plazo != null) {
+			espera = Math.min(espera, plazo.getRestanteNanos());
+		}
+		boolean conTurno;
+		try {
+			conTurno = turnos.tryAcquire(espera, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido esperando una conexion del pool", e);
+		}
+		if (!conTurno) {
+			long esperado = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+			esperaAcumulada.addAndGet(System.nanoTime() - inicio);
+			esperasAgotadas.incrementAndGet();
+			SQLTimeoutException agotada = new SQLTimeoutException("No se obtuvo conexion del pool tras " + esperado
+					+ " ms (" + pendientes.size() + " conexiones sin devolver)");
+			if (cortacircuitos != null) {
+				cortacircuitos.registrar(sonda, agotada);
+			}
+			PlazoLimite.comprobar();
+			throw agotada;
+		}
+
+		Connection conn;
+		try {
+			conn = ds.getConnection();
+		} catch (SQLException e) {
+			turnos.release();
+			long esperado = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+			esperaAcumulada.addAndGet(System.nanoTime() - inicio);
+			SQLException error = e;
+			if (esperado >= tiempoMaxEsperaMs) {
+				error = new SQLTimeoutException("No se obtuvo conexion del pool tras " + esperado + " ms ("
+						+ pendientes.size() + " conexiones sin devolver)", e);
+			}
+			if (cortacircuitos != null) {
+				cortacircuitos.registrar(sonda, error);
+			}
+			if (error != e || (plazo != null && plazo.isAgotado())) {
+				esperasAgotadas.incrementAndGet();
+			}
+			PlazoLimite.comprobar();
+			throw error;
+		}
+		esperaAcumulada.addAndGet(System.nanoTime() - inicio);
+		if (plazo != null && plazo.isAgotado()) {
+			// La conexion llego tarde: para la sonda cuenta como tiempo agotado
+			esperasAgotadas.incrementAndGet();
+			if (cortacircuitos != null) {
+				cortacircuitos.registrar(sonda, new SQLTimeoutException("Plazo agotado obteniendo conexion del pool tras "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio) + " ms"));
+			}
+			turnos.release();
+			conn.close();
+			PlazoLimite.comprobar();
+		}
+		long id = prestamos.incrementAndGet();
+
+		// Estado de sesion: solo se toca la conexion si no se sabe ya como esta
+		Connection prestada = conn;
+		Connection fisica = fisica(conn);
+		ConexionVigilada.EstadoSesion estado = estados.get(fisica);
+		if (estado == null) {
+			estado = new ConexionVigilada.EstadoSesion();
+			estados.put(fisica, estado);
+		}
+
+		RegistroSentenciasLentas registro = registroSentencias;
+		if (registro != null) {
+			conn = registro.envolver(conn);
+		}
+
+		int muestreo = muestreoPila;
+		ConexionVigilada vigilada = ConexionVigilada.envolver(this, conn, id, muestreo > 0 && id % muestreo == 0, estado);
+		Connection proxy = vigilada.getProxy();
+		try {
+			proxy.setAutoCommit(false);
+			proxy.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			// Connection.TRANSACTION_SERIALIZABLE);
+			// No v�lidos en Oracle:
+			// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		} catch (SQLException e) {
+			if (cortacircuitos != null) {
+				cortacircuitos.registrar(sonda, e);
+			}
+			estados.remove(fisica);
+			turnos.release();
+			prestada.close();
+			throw e;
+		}
+		if (cortacircuitos != null) {
+			// Por fuera, tras preparar la sesion: el prestamo no prueba nada y
+			// cuentan las sentencias de la conexion
+			proxy = cortacircuitos.envolver(proxy, sonda);
+		}
+
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(traceConnectionSettings(proxy));
+		}
+
+		pendientes.put(id, vigilada);
+		return proxy;
+	}
+
+	/**
+	 * Configura la vigilancia de prestamos.
+	 * 
+	 * @param tiempoMaxEsperaMs tiempo maximo esperando una conexion libre; UCP
+	 *                          lo admite en segundos enteros, asi que debe ser
+	 *                          de al menos 1000 ms y se redondea hacia arriba
+	 * @param umbralFugaMs      tiempo a partir del cual una conexion no devuelta
+	 *                          se considera una fuga
+	 * @param muestreoPila      se guarda la pila de uno de cada muestreoPila
+	 *                          prestamos (0 para no guardarla nunca)
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 * @throws IllegalArgumentException si tiempoMaxEsperaMs es menor de un
+	 *                                  segundo
+	 */
+	public void configurarVigilancia(long tiempoMaxEsperaMs, long umbralFugaMs, int muestreoPila)
+			throws SQLException {
+		if (tiempoMaxEsperaMs < TimeUnit.SECONDS.toMillis(1)) {
+			throw new IllegalArgumentException("UCP no admite esperas de menos de un segundo: " + tiempoMaxEsperaMs + " ms");
+		}
+		this.tiempoMaxEsperaMs = tiempoMaxEsperaMs;
+		this.umbralFugaNanos = TimeUnit.MILLISECONDS.toNanos(umbralFugaMs);
+		this.muestreoPila = muestreoPila;
+		aplicarTiempoMaxEspera();
+	}
+
+	/**
+	 * Activa o desactiva el registro de sentencias lentas para las conexiones
+	 * que se presten a partir de ahora.
+	 * 
+	 * @param registro registro a usar, o null para no cronometrar sentencias
+	 */
+	public void setRegistroSentencias(RegistroSentenciasLentas registro) {
+		this.registroSentencias = registro;
+	}
+
+	/**
+	 * Activa o desactiva el cortacircuitos para los prestamos y las conexiones
+	 * que se presten a partir de ahora.
+	 * 
+	 * @param cortacircuitos cortacircuitos a usar, o null para no usar ninguno
+	 */
+	public void setCortacircuitos(Cortacircuitos cortacircuitos) {
+		this.cortacircuitos = cortacircuitos;
+	}
+
+	/**
+	 * @return cortacircuitos activo, o null si no hay
+	 */
+	public Cortacircuitos getCortacircuitos() {
+		return cortacircuitos;
+	}
 
-		conn.setAutoCommit(false);
-		LOGGER.debug("Activacion de Autocommit={}", conn.getAutoCommit());
+	/**
+	 * Traslada el tiempo maximo de espera al pool de UCP, redondeado hacia
+	 * arriba a segundos enteros. La espera la limitan antes los turnos; esta
+	 * solo cubre una conexion que UCP tarde en abrir.
+	 * 
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	private void aplicarTiempoMaxEspera() throws SQLException {
+		if (ds instanceof PoolDataSource) {
+			int segundos = (int) Math.max(1, (tiempoMaxEsperaMs + 999) / 1000);
+			((PoolDataSource) ds).setConnectionWaitTimeout(segundos);
+		}
+	}
 
-		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-		// Connection.TRANSACTION_SERIALIZABLE);
-		// No v�lidos en Oracle:
-		// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-		// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+	/**
+	 * Notificacion del envoltorio cuando se cierra una conexion.
+	 * 
+	 * @param vigilada conexion devuelta
+	 */
+	void devolver(ConexionVigilada vigilada) {
+		pendientes.remove(vigilada.getId());
+		turnos.release();
+	}
 
-		LOGGER.debug(traceConnectionSettings(conn));
+	/** Anota un cambio de sesion que ha ido a la conexion real. */
+	void anotarAjusteSesion() {
+		ajustesSesion.incrementAndGet();
+	}
 
+	/**
+	 * Conexion fisica que hay debajo del proxy de un prestamo, o la propia
+	 * conexion si no es de Oracle.
+	 */
+	private static Connection fisica(Connection conn) {
+		try {
+			if (conn.isWrapperFor(OracleConnection.class)) {
+				return conn.unwrap(OracleConnection.class);
+			}
+		} catch (SQLException e) {
+			LOGGER.debug("No se pudo obtener la conexion fisica: {}", e.getMessage());
+		}
 		return conn;
 	}
 
+	/**
+	 * Revisa las fugas como mucho una vez por intervalo, aprovechando las
+	 * peticiones de conexion en lugar de un hilo propio. Con el pool parado no
+	 * hay peticiones: para eso {@link ControladorTamanoPool} llama tambien a
+	 * {@link #revisarFugas()} en cada muestra.
+	 */
+	private void revisarFugasSiToca() {
+		long ahora = System.nanoTime();
+		long ultima = ultimaRevision.get();
+		if (ahora - ultima >= TimeUnit.MILLISECONDS.toNanos(INTERVALO_REVISION_MS)
+				&& ultimaRevision.compareAndSet(ultima, ahora)) {
+			revisarFugas();
+		}
+	}
+
+	/**
+	 * Marca como fuga las conexiones retenidas mas alla del umbral.
+	 * 
+	 * @return numero de fugas nuevas detectadas
+	 */
+	public int revisarFugas() {
+		long ahora = System.nanoTime();
+		int nuevas = 0;
+		for (ConexionVigilada v : pendientes.values()) {
+			long retenida = ahora - v.getInstantePrestamo();
+			if (retenida >= umbralFugaNanos && v.marcarFuga()) {
+				nuevas++;
+				fugas.incrementAndGet();
+				if (v.getPilaPrestamo() != null) {
+					LOGGER.warn("Posible fuga: conexion {} retenida {} ms por el hilo {}", v.getId(),
+							TimeUnit.NANOSECONDS.toMillis(retenida), v.getHilo(), v.getPilaPrestamo());
+				} else {
+					LOGGER.warn("Posible fuga: conexion {} retenida {} ms por el hilo {} (pila no muestreada)",
+							v.getId(), TimeUnit.NANOSECONDS.toMillis(retenida), v.getHilo());
+				}
+			}
+		}
+		return nuevas;
+	}
+
+	/**
+	 * Conexiones prestadas y aun no devueltas.
+	 * 
+	 * @return numero de conexiones pendientes
+	 */
+	public int getConexionesPendientes() {
+		return pendientes.size();
+	}
+
+	/**
+	 * Peticiones de conexion que agotaron el tiempo maximo de espera.
+	 * 
+	 * @return numero de esperas agotadas
+	 */
+	public long getEsperasAgotadas() {
+		return esperasAgotadas.get();
+	}
+
+	/**
+	 * @return etiqueta del pool en las metricas
+	 */
+	public String getNombre() {
+		return nombre;
+	}
+
+	/**
+	 * Conexiones detectadas como fuga.
+	 * 
+	 * @return numero de fugas
+	 */
+	public long getFugas() {
+		return fugas.get();
+	}
+
+	/**
+	 * Cambios de autocommit o nivel de aislamiento que han tenido que ir a la
+	 * conexion real; con el estado de sesion recordado deja de crecer en
+	 * cuanto cada conexion fisica se ha prestado una vez.
+	 * 
+	 * @return numero de cambios
+	 */
+	public long getAjustesSesion() {
+		return ajustesSesion.get();
+	}
+
 	/**
 	 * Reconfigura el pool de conexiones volviendo a publicar la nueva
 	 * configuracion.
@@ -136,9 +624,9 @@ public class PoolDeConexiones {
 		pds.setURL(url);
 
 		//// Configuracion del pool
-		pds.setMinPoolSize(3);
-		pds.setMaxPoolSize(10);
-		pds.setInitialPoolSize(5);
+		pds.setMinPoolSize(MIN_POOL_SIZE);
+		pds.setMaxPoolSize(MAX_POOL_SIZE);
+		pds.setInitialPoolSize(INITIAL_POOL_SIZE);
 		pds.setTimeToLiveConnectionTimeout(18000);
 
 		//// Activacion de la cache de sentencias prepradas (6 sentencias)
@@ -190,10 +678,138 @@ public class PoolDeConexiones {
 	 * @param maxLimit     tama�o maximo
 	 * @throws SQLException si hay un error con la cache de conexiones
 	 */
-	private void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
-		((PoolDataSource) ds).setMinPoolSize(minLimit);
-		((PoolDataSource) ds).setMaxPoolSize(maxLimit);
-		((PoolDataSource) ds).setInitialPoolSize(initialLimit);
+	void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
+		PoolDataSource pds = (PoolDataSource) ds;
+		// El orden importa: UCP rechaza un minimo mayor que el maximo vigente
+		if (minLimit > pds.getMaxPoolSize()) {
+			pds.setMaxPoolSize(maxLimit);
+			pds.setMinPoolSize(minLimit);
+		} else {
+			pds.setMinPoolSize(minLimit);
+			pds.setMaxPoolSize(maxLimit);
+		}
+		pds.setInitialPoolSize(initialLimit);
+		turnos.redimensionar(maxLimit);
+	}
+
+	/** Tamano maximo del DataSource, si es un pool de UCP. */
+	private static int tamanoMaximo(DataSource ds) {
+		return ds instanceof PoolDataSource ? ((PoolDataSource) ds).getMaxPoolSize() : MAX_POOL_SIZE;
+	}
+
+	/**
+	 * Semaforo de prestamos cuyo numero de permisos sigue al tamano maximo del
+	 * pool. Es justo para que las peticiones se atiendan por orden de llegada.
+	 */
+	private static final class Turnos extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private int permisos;
+
+		Turnos(int permisos) {
+			super(permisos, true);
+			this.permisos = permisos;
+		}
+
+		/**
+		 * Cambia el numero de permisos. Al reducirlo, los que estan en uso se
+		 * descuentan a medida que se devuelven.
+		 */
+		synchronized void redimensionar(int nuevos) {
+			if (nuevos > permisos) {
+				release(nuevos - permisos);
+			} else if (nuevos < permisos) {
+				reducePermits(permisos - nuevos);
+			}
+			permisos = nuevos;
+		}
+	}
+
+	/**
+	 * Indica si el DataSource es un pool de UCP y por tanto admite
+	 * redimensionado.
+	 * 
+	 * @return true si el pool se puede redimensionar
+	 */
+	boolean isRedimensionable() {
+		return ds instanceof PoolDataSource;
+	}
+
+	/**
+	 * Tamano maximo actual del pool.
+	 * 
+	 * @return numero maximo de conexiones
+	 */
+	int getMaxPoolSize() {
+		return ((PoolDataSource) ds).getMaxPoolSize();
+	}
+
+	/**
+	 * Conexiones prestadas en este momento.
+	 * 
+	 * @return numero de conexiones en uso
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	int getConexionesPrestadas() throws SQLException {
+		return ((PoolDataSource) ds).getBorrowedConnectionsCount();
+	}
+
+	/**
+	 * Conexiones libres en este momento.
+	 * 
+	 * @return numero de conexiones ociosas
+	 * @throws SQLException si hay un error con la cache de conexiones
+	 */
+	int getConexionesDisponibles() throws SQLException {
+		return ((PoolDataSource) ds).getAvailableConnectionsCount();
+	}
+
+	/**
+	 * Tiempo total esperado en {@link #getConnection()} desde el arranque.
+	 * 
+	 * @return nanosegundos acumulados
+	 */
+	long getEsperaAcumulada() {
+		return esperaAcumulada.get();
+	}
+
+	/**
+	 * Numero de conexiones entregadas desde el arranque.
+	 * 
+	 * @return prestamos acumulados
+	 */
+	long getPrestamos() {
+		return prestamos.get();
+	}
+
+	/**
+	 * Registra la latencia de una operacion ejecutada con una conexion del pool.
+	 * Se usa para distinguir una base de datos saturada (no conviene abrir mas
+	 * conexiones) de un pool demasiado pequeno.
+	 * 
+	 * @param nanos duracion de la operacion en nanosegundos
+	 */
+	public void registrarLatencia(long nanos) {
+		latenciaAcumulada.addAndGet(nanos);
+		operaciones.incrementAndGet();
+	}
+
+	/**
+	 * Latencia acumulada de las operaciones registradas.
+	 * 
+	 * @return nanosegundos acumulados
+	 */
+	long getLatenciaAcumulada() {
+		return latenciaAcumulada.get();
+	}
+
+	/**
+	 * Numero de operaciones registradas.
+	 * 
+	 * @return operaciones acumuladas
+	 */
+	long getOperaciones() {
+		return operaciones.get();
 	}
 
 	/**
@@ -0,0 +1,329 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registro de sentencias lentas. Cuando se activa en
+ * {@link PoolDeConexiones#setRegistroSentencias(RegistroSentenciasLentas)}, las
+ * conexiones del pool se envuelven en un proxy que cronometra cada execute*:
+ * las que pasan del umbral se escriben en el log con su SQL, sus parametros y
+ * las filas afectadas o leidas, y todas se acumulan por texto SQL (veces,
+ * tiempo total y maximo). Las que terminan con error tambien se cronometran y,
+ * si son lentas, se escriben con el error. Una consulta lenta se escribe al
+ * cerrar su ResultSet o, si no se cierra, al cerrar o volver a ejecutar la
+ * sentencia, que lo cierran implicitamente.
+ *
+ * Desactivado no cuesta nada: el pool entrega las conexiones sin envolver.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class RegistroSentenciasLentas {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(RegistroSentenciasLentas.class);
+
+	/** Acumulado de un texto SQL. */
+	public static class Estadistica {
+		private final String sql;
+		private final AtomicLong veces = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		Estadistica(String sql) {
+			this.sql = sql;
+		}
+
+		void anotar(long nanos) {
+			veces.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max;
+			do {
+				max = maxNanos.get();
+			} while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public long getVeces() {
+			return veces.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+	}
+
+	private final long umbralNanos;
+	private final Map<String, Estadistica> estadisticas = new ConcurrentHashMap<String, Estadistica>();
+
+	/**
+	 * Crea el registro.
+	 *
+	 * @param umbralMs duracion a partir de la cual una sentencia se considera
+	 *                 lenta
+	 */
+	public RegistroSentenciasLentas(long umbralMs) {
+		this.umbralNanos = TimeUnit.MILLISECONDS.toNanos(umbralMs);
+	}
+
+	/**
+	 * Envuelve una conexion para cronometrar sus sentencias.
+	 *
+	 * @param conexion conexion real
+	 * @return conexion envuelta
+	 */
+	Connection envolver(Connection conexion) {
+		return (Connection) Proxy.newProxyInstance(RegistroSentenciasLentas.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new ConexionCronometrada(conexion));
+	}
+
+	/**
+	 * Acumulados por texto SQL, de mayor a menor tiempo total.
+	 *
+	 * @return copia de las estadisticas
+	 */
+	public List<Estadistica> getEstadisticas() {
+		List<Estadistica> lista = new ArrayList<Estadistica>(estadisticas.values());
+		Collections.sort(lista, new Comparator<Estadistica>() {
+			@Override
+			public int compare(Estadistica a, Estadistica b) {
+				return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+			}
+		});
+		return lista;
+	}
+
+	/**
+	 * Escribe en el log las sentencias con mas tiempo total acumulado.
+	 *
+	 * @param cuantas numero de sentencias a escribir
+	 */
+	public void volcarResumen(int cuantas) {
+		List<Estadistica> lista = getEstadisticas();
+		for (Estadistica e : lista.subList(0, Math.min(cuantas, lista.size()))) {
+			LOGGER.info("{} veces, {} ms en total, {} ms como maximo: {}", e.getVeces(),
+					TimeUnit.NANOSECONDS.toMillis(e.getTotalNanos()), TimeUnit.NANOSECONDS.toMillis(e.getMaxNanos()),
+					e.getSql());
+		}
+	}
+
+	private void anotar(String sql, long nanos) {
+		Estadistica e = estadisticas.get(sql);
+		if (e == null) {
+			Estadistica nueva = new Estadistica(sql);
+			e = estadisticas.putIfAbsent(sql, nueva);
+			if (e == null) {
+				e = nueva;
+			}
+		}
+		e.anotar(nanos);
+	}
+
+	private static Object invocar(Object destino, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(destino, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/** Conexion que entrega sentencias cronometradas. */
+	private class ConexionCronometrada implements InvocationHandler {
+		private final Connection conexion;
+
+		ConexionCronometrada(Connection conexion) {
+			this.conexion = conexion;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object resultado = invocar(conexion, method, args);
+			String nombre = method.getName();
+			Class<?> tipo;
+			if ("prepareCall".equals(nombre)) {
+				tipo = CallableStatement.class;
+			} else if ("prepareStatement".equals(nombre)) {
+				tipo = PreparedStatement.class;
+			} else if ("createStatement".equals(nombre)) {
+				tipo = Statement.class;
+			} else {
+				return resultado;
+			}
+			String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+			return Proxy.newProxyInstance(RegistroSentenciasLentas.class.getClassLoader(), new Class<?>[] { tipo },
+					new SentenciaCronometrada((Statement) resultado, sql));
+		}
+	}
+
+	/** Sentencia que recuerda sus parametros y cronometra cada ejecucion. */
+	private class SentenciaCronometrada implements InvocationHandler {
+		private final Statement sentencia;
+		private final String sql;
+		private Object[] parametros = new Object[8];
+		/** ResultSet lento aun sin registrar; lo cierra la sentencia si no se cierra antes. */
+		private ResultadoContado abierto;
+
+		SentenciaCronometrada(Statement sentencia, String sql) {
+			this.sentencia = sentencia;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String nombre = method.getName();
+			if (nombre.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				guardarParametro((Integer) args[0], "setNull".equals(nombre) ? "NULL" : args[1]);
+			} else if ("clearParameters".equals(nombre)) {
+				Arrays.fill(parametros, null);
+			} else if (nombre.startsWith("execute")) {
+				registrarAbierto();
+				return ejecutar(method, args);
+			} else if ("close".equals(nombre)) {
+				try {
+					return invocar(sentencia, method, args);
+				} finally {
+					registrarAbierto();
+				}
+			}
+			return invocar(sentencia, method, args);
+		}
+
+		private void registrarAbierto() {
+			if (abierto != null) {
+				abierto.registrar();
+				abierto = null;
+			}
+		}
+
+		private void guardarParametro(int indice, Object valor) {
+			if (indice >= parametros.length) {
+				parametros = Arrays.copyOf(parametros, Math.max(indice + 1, parametros.length * 2));
+			}
+			parametros[indice] = valor;
+		}
+
+		private Object ejecutar(Method method, Object[] args) throws Throwable {
+			String texto = sql != null ? sql : (args != null && args.length > 0 ? String.valueOf(args[0]) : "?");
+			long inicio = System.nanoTime();
+			Object resultado;
+			long nanos;
+			try {
+				resultado = invocar(sentencia, method, args);
+			} catch (Throwable t) {
+				nanos = System.nanoTime() - inicio;
+				if (nanos >= umbralNanos) {
+					LOGGER.warn("Sentencia lenta con error ({} ms, {}): {} {}", TimeUnit.NANOSECONDS.toMillis(nanos),
+							t.getMessage(), texto, parametrosComoTexto());
+				}
+				throw t;
+			} finally {
+				nanos = System.nanoTime() - inicio;
+				anotar(texto, nanos);
+			}
+			if (nanos < umbralNanos) {
+				return resultado;
+			}
+
+			String binds = parametrosComoTexto();
+			long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+			if (resultado instanceof ResultSet) {
+				// Las filas leidas se conocen al cerrar el ResultSet
+				abierto = new ResultadoContado((ResultSet) resultado, texto, binds, ms);
+				return Proxy.newProxyInstance(RegistroSentenciasLentas.class.getClassLoader(),
+						new Class<?>[] { ResultSet.class }, abierto);
+			}
+			String filas;
+			if (resultado instanceof int[]) {
+				int total = 0;
+				for (int n : (int[]) resultado) {
+					total += Math.max(n, 0);
+				}
+				filas = total + " (lote de " + ((int[]) resultado).length + ")";
+			} else if (resultado instanceof Integer || resultado instanceof Long) {
+				filas = String.valueOf(resultado);
+			} else {
+				filas = String.valueOf(sentencia.getUpdateCount());
+			}
+			LOGGER.warn("Sentencia lenta ({} ms, {} filas): {} {}", ms, filas, texto, binds);
+			return resultado;
+		}
+
+		private String parametrosComoTexto() {
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = 1; i < parametros.length; i++) {
+				if (parametros[i] != null) {
+					if (sb.length() > 1) {
+						sb.append(", ");
+					}
+					sb.append(i).append('=').append(parametros[i]);
+				}
+			}
+			return sb.append(']').toString();
+		}
+	}
+
+	/**
+	 * ResultSet de una consulta lenta: cuenta las filas y la registra al
+	 * cerrarse, o al cerrarse su sentencia.
+	 */
+	private static class ResultadoContado implements InvocationHandler {
+		private final ResultSet resultado;
+		private final String sql;
+		private final String binds;
+		private final long ms;
+		private long filas;
+		private boolean registrado;
+
+		ResultadoContado(ResultSet resultado, String sql, String binds, long ms) {
+			this.resultado = resultado;
+			this.sql = sql;
+			this.binds = binds;
+			this.ms = ms;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object valor = invocar(resultado, method, args);
+			if ("next".equals(method.getName()) && Boolean.TRUE.equals(valor)) {
+				filas++;
+			} else if ("close".equals(method.getName())) {
+				registrar();
+			}
+			return valor;
+		}
+
+		void registrar() {
+			if (!registrado) {
+				registrado = true;
+				LOGGER.warn("Consulta lenta ({} ms, {} filas leidas): {} {}", ms, filas, sql, binds);
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package lsi.ubu.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publica las {@link Metricas} en http://host:puerto/metrics con el servidor
+ * HTTP incluido en el JDK, para que las recoja Prometheus.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ServidorMetricas {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServidorMetricas.class);
+
+	private static final String TIPO_CONTENIDO = "text/plain; version=0.0.4; charset=utf-8";
+
+	private HttpServer servidor;
+
+	/**
+	 * Arranca el servidor.
+	 *
+	 * @param puerto puerto de escucha (0 para uno libre cualquiera)
+	 * @throws IOException si no se puede abrir el puerto
+	 */
+	public synchronized void iniciar(int puerto) throws IOException {
+		if (servidor != null) {
+			return;
+		}
+		servidor = HttpServer.create(new InetSocketAddress(puerto), 0);
+		servidor.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange intercambio) throws IOException {
+				StringBuilder sb = new StringBuilder(8192);
+				Metricas.getInstance().exportar(sb);
+				byte[] cuerpo = sb.toString().getBytes(StandardCharsets.UTF_8);
+				intercambio.getResponseHeaders().set("Content-Type", TIPO_CONTENIDO);
+				intercambio.sendResponseHeaders(200, cuerpo.length);
+				OutputStream os = intercambio.getResponseBody();
+				try {
+					os.write(cuerpo);
+				} finally {
+					os.close();
+				}
+			}
+		});
+		servidor.start();
+		LOGGER.info("Metricas publicadas en http://localhost:{}/metrics", getPuerto());
+	}
+
+	/**
+	 * Para el servidor.
+	 */
+	public synchronized void detener() {
+		if (servidor != null) {
+			servidor.stop(0);
+			servidor = null;
+		}
+	}
+
+	/**
+	 * @return puerto de escucha
+	 */
+	public synchronized int getPuerto() {
+		return servidor.getAddress().getPort();
+	}
+}
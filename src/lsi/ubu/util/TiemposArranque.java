@@ -0,0 +1,60 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+/**
+ * Tiempos de las fases del arranque de un proceso corto, para ver en que se va
+ * el tiempo hasta la primera operacion. Cada llamada a {@link #fase(String)}
+ * cierra la fase que empezo en la llamada anterior (o al crear el objeto). El
+ * tiempo de la JVM hasta main se calcula al volcar, para no cargar la gestion
+ * (java.lang.management) antes de tiempo.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class TiemposArranque {
+
+	private final long inicioMs = System.currentTimeMillis();
+	private final long inicioNanos = System.nanoTime();
+	private long ultima = inicioNanos;
+	private final Map<String, Long> fases = new LinkedHashMap<String, Long>();
+
+	/**
+	 * Cierra la fase en curso.
+	 *
+	 * @param nombre nombre de la fase que termina
+	 */
+	public synchronized void fase(String nombre) {
+		long ahora = System.nanoTime();
+		Long previo = fases.get(nombre);
+		fases.put(nombre, (previo != null ? previo : 0) + (ahora - ultima));
+		ultima = ahora;
+	}
+
+	/**
+	 * @return milisegundos desde que arranco la JVM hasta que se creo este objeto
+	 */
+	public long getJvmMs() {
+		return inicioMs - ManagementFactory.getRuntimeMXBean().getStartTime();
+	}
+
+	/**
+	 * Escribe en el log una linea por fase y el total desde el arranque de la
+	 * JVM.
+	 *
+	 * @param logger destino
+	 */
+	public synchronized void volcar(Logger logger) {
+		long jvm = getJvmMs();
+		logger.info("Arranque: {} ms hasta main (JVM)", jvm);
+		for (Map.Entry<String, Long> f : fases.entrySet()) {
+			logger.info("Arranque: {} ms en {}", TimeUnit.NANOSECONDS.toMillis(f.getValue()), f.getKey());
+		}
+		logger.info("Arranque: {} ms en total", jvm + TimeUnit.NANOSECONDS.toMillis(ultima - inicioNanos));
+	}
+}
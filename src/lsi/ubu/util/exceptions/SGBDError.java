@@ -13,6 +13,8 @@ public enum SGBDError {
 	FK_VIOLATED_DELETE, // Violaci�n de clave for�nea por hijo existente => con delete/udate
 	PK_VIOLATED, // Violaci�n de clave primaria
 	NOT_EXISTS_SEQUENCE, // No existe la secuencia utilizada
+	CANCELLED, // Sentencia cancelada (p.ej. por setQueryTimeout)
+	CONNECTION_LOST, // Base de datos caida, parada o inaccesible
 	// A�adir antes de esta l�nea si fuera necesario
 
 	UNKNOWN; // No determinado.
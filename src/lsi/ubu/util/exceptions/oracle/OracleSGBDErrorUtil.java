@@ -20,6 +20,13 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	private static final int PK_VIOLATED = 1;
 	private static final int FK_VIOLATED = 2291; //ORA-02291: integrity constraint (la que sea) violated - parent key not found
 	private static final int NOT_EXISTS_SEQUENCE = 2289;
+	private static final int CANCELLED = 1013; //ORA-01013: user requested cancel of current operation
+	// Base de datos inaccesible: iniciandose o parandose (ORA-01033/01034/01089/01090),
+	// canal de comunicacion roto (ORA-03113/03114/03135), listener o servicio no
+	// disponible (ORA-12514/12516/12518/12519/12520/12521/12528/12537/12541/12543/12170)
+	// y errores de E/S o de conexion cerrada del driver (17002/17008/17410)
+	private static final int[] CONNECTION_LOST = { 1033, 1034, 1089, 1090, 3113, 3114, 3135, 12170, 12514, 12516,
+			12518, 12519, 12520, 12521, 12528, 12537, 12541, 12543, 17002, 17008, 17410 };
 	private static final int FK_VIOLATED_DELETE = 2292; //ORA-02292: integrity constraint (la que sea) violated - child record found
 	// Aadir segn sea necesario, por parte del alumno...
 
@@ -49,6 +56,13 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 			return SGBDError.FK_VIOLATED_DELETE;
 		case NOT_EXISTS_SEQUENCE:
 			return SGBDError.NOT_EXISTS_SEQUENCE;
+		case CANCELLED:
+			return SGBDError.CANCELLED;
+		}
+		for (int codigo : CONNECTION_LOST) {
+			if (codigo == errorSGBD) {
+				return SGBDError.CONNECTION_LOST;
+			}
 		}
 		return SGBDError.UNKNOWN;
 	}